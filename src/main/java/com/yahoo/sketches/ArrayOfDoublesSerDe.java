@@ -28,6 +28,27 @@ public class ArrayOfDoublesSerDe extends ArrayOfItemsSerDe<Double> {
     return bytes;
   }
 
+  @Override
+  public boolean serializesItemsIndependently() {
+    return true;
+  }
+
+  @Override
+  public int getSerializedSizeBytes(final Object[] items, final int offset, final int length) {
+    return Double.BYTES * length;
+  }
+
+  @Override
+  public int serializeToMemory(final Object[] items, final int offset, final int length,
+      final WritableMemory mem, final long offsetBytes) {
+    long pos = offsetBytes;
+    for (int i = offset; i < (offset + length); i++) {
+      mem.putDouble(pos, (Double) items[i]);
+      pos += Double.BYTES;
+    }
+    return Double.BYTES * length;
+  }
+
   @Override
   public Double[] deserializeFromMemory(final Memory mem, final int length) {
     Util.checkBounds(0, Double.BYTES, mem.getCapacity());
@@ -5,7 +5,11 @@
 
 package com.yahoo.sketches;
 
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
 import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
 
 /**
  * Base class for serializing and deserializing custom types.
@@ -35,4 +39,88 @@ public abstract class ArrayOfItemsSerDe<T> {
    */
   public abstract T[] deserializeFromMemory(Memory mem, int numItems);
 
+  /**
+   * Returns true if the serialized form of an array of items is the concatenation of the
+   * serialized forms of its items, and this SerDe implements
+   * {@link #getSerializedSizeBytes(Object[], int, int)} and
+   * {@link #serializeToMemory(Object[], int, int, WritableMemory, long)} without going through
+   * serializeToByteArray(). A sketch then serializes its items in several ranges, straight from
+   * its buffers, and deserializes them as a single array.
+   *
+   * <p>The default is false, which makes a sketch serialize all of its items with a single call
+   * of serializeToByteArray(). Implementations that meet the above conditions should override
+   * this to return true.</p>
+   *
+   * @return true if the items may be serialized in ranges
+   */
+  public boolean serializesItemsIndependently() {
+    return false;
+  }
+
+  /**
+   * Returns the number of bytes that
+   * {@link #serializeToMemory(Object[], int, int, WritableMemory, long)} writes for the given
+   * range of items. Sketches call this to size the destination before they serialize their items
+   * in ranges, which they only do if {@link #serializesItemsIndependently()} returns true.
+   *
+   * <p>The default implementation serializes the items to a byte array to find out.
+   * Implementations that opt into serialization in ranges should override it.</p>
+   *
+   * @param items array that holds the items. It can be an array of a supertype of T, such as the
+   * Object[] buffer of a sketch, but the items in the given range must be of type T.
+   * @param offset the index of the first item
+   * @param length the number of items, at least 1
+   * @return the number of bytes of the serialized items
+   */
+  public int getSerializedSizeBytes(final Object[] items, final int offset, final int length) {
+    return serializeToByteArray(copyOfRange(items, offset, length)).length;
+  }
+
+  /**
+   * Serializes the given range of items straight into the given WritableMemory, in the same form
+   * as {@link #serializeToByteArray(Object[])}. Sketches call this only if
+   * {@link #serializesItemsIndependently()} returns true.
+   *
+   * <p>The default implementation serializes the items to a byte array and copies it into the
+   * WritableMemory. Implementations that opt into serialization in ranges should override it to
+   * write the items directly.</p>
+   *
+   * @param items array that holds the items. It can be an array of a supertype of T, such as the
+   * Object[] buffer of a sketch, but the items in the given range must be of type T.
+   * @param offset the index of the first item
+   * @param length the number of items, at least 1
+   * @param mem the destination WritableMemory
+   * @param offsetBytes the offset in the destination WritableMemory to write the first byte to
+   * @return the number of bytes written
+   */
+  public int serializeToMemory(final Object[] items, final int offset, final int length,
+      final WritableMemory mem, final long offsetBytes) {
+    final byte[] bytes = serializeToByteArray(copyOfRange(items, offset, length));
+    mem.putByteArray(offsetBytes, bytes, 0, bytes.length);
+    return bytes.length;
+  }
+
+  /**
+   * Copies the given range of items into an array that serializeToByteArray() of a subclass
+   * accepts. An array of a type narrower than Object[] is copied with its own component type.
+   * The Object[] buffer of a sketch is copied into an array of the most specific class that all
+   * items in the range share, so that a range that mixes subtypes of T, such as Long and Double
+   * items of a Number sketch, fits.
+   */
+  @SuppressWarnings("unchecked")
+  private T[] copyOfRange(final Object[] items, final int offset, final int length) {
+    if (items.getClass() != Object[].class) {
+      return (T[]) Arrays.copyOfRange(items, offset, offset + length);
+    }
+    Class<?> cls = items[offset].getClass();
+    for (int i = offset + 1; i < (offset + length); i++) {
+      while (!cls.isInstance(items[i])) {
+        cls = cls.getSuperclass();
+      }
+    }
+    final T[] arr = (T[]) Array.newInstance(cls, length);
+    System.arraycopy(items, offset, arr, 0, length);
+    return arr;
+  }
+
 }
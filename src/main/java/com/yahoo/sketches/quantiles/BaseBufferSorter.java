@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.ToLongFunction;
+
+/**
+ * The strategy used by an ItemsSketch to sort its base buffer, which happens every time the base
+ * buffer fills up and is the dominant cost of updates for larger values of <i>k</i>.
+ *
+ * <p>Any implementation must sort the given range into the same order as the comparator of the
+ * sketch. The default strategy, {@link #comparatorSort(Comparator)}, sorts with that comparator.
+ * {@link #radixSort(ToLongFunction)} is much faster for items that can supply an order-preserving
+ * <i>long</i> key.</p>
+ *
+ * @param <T> type of item
+ */
+public interface BaseBufferSorter<T> {
+
+  /**
+   * Sorts the given range of the given array. The array may be longer than the range and
+   * elements outside of the range must not be modified.
+   * @param items the array to be sorted
+   * @param fromIndex the index of the first element, inclusive, to be sorted
+   * @param toIndex the index of the last element, exclusive, to be sorted
+   */
+  void sort(T[] items, int fromIndex, int toIndex);
+
+  /**
+   * Returns a sorter that sorts with the given comparator using the TimSort of
+   * {@link Arrays#sort(Object[], int, int, Comparator)}. This is the default.
+   * @param <T> type of item
+   * @param comparator to compare items
+   * @return a sorter that uses the given comparator
+   */
+  static <T> BaseBufferSorter<T> comparatorSort(final Comparator<? super T> comparator) {
+    return (items, fromIndex, toIndex) -> Arrays.sort(items, fromIndex, toIndex, comparator);
+  }
+
+  /**
+   * Returns a sorter that performs an LSD radix sort of the items on a <i>long</i> key.
+   * The key must be order-preserving: for any two items <i>a</i> and <i>b</i>,
+   * <i>key(a) &lt; key(b)</i> must hold exactly when the comparator of the sketch orders <i>a</i>
+   * before <i>b</i>. Items with equal keys must compare as equal.
+   * The sort is stable and costs a constant number of linear passes over the range.
+   * @param <T> type of item
+   * @param keyFunction extracts the order-preserving key of an item
+   * @return a radix sorter on the given key
+   */
+  static <T> BaseBufferSorter<T> radixSort(final ToLongFunction<? super T> keyFunction) {
+    return new RadixBaseBufferSorter<>(keyFunction);
+  }
+
+}
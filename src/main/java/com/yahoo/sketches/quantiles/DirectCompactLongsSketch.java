@@ -0,0 +1,378 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMBINED_BUFFER;
+import static com.yahoo.sketches.quantiles.PreambleUtil.ORDERED_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractMaxLong;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractMinLong;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.quantiles.Util.computeBaseBufferItems;
+import static com.yahoo.sketches.quantiles.Util.computeBitPattern;
+
+import java.util.Arrays;
+
+import com.yahoo.memory.Memory;
+
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+
+/**
+ * A read-only view of the compact Memory image of a LongsSketch. The queries are answered by
+ * reading the image in place instead of heapifying it first, which makes this the cheaper choice
+ * when only a few queries are asked of each image.
+ *
+ * <p>The levels of a compact image are each sorted, so the number of retained items below a
+ * value is found with one binary search per level. A quantile is the smallest retained item
+ * whose cumulative weight exceeds the requested position, which is found by a binary search over
+ * each level with that count as the predicate. If the base buffer of the image is not ordered it
+ * is copied and sorted once, when the image is wrapped. Otherwise the queries allocate nothing
+ * beyond their result arrays.</p>
+ *
+ * <p>The answers are identical to those of the heapified sketch.</p>
+ */
+public final class DirectCompactLongsSketch {
+  private final Memory mem_;
+  private final int k_;
+  private final long n_;
+  private final int baseBufferCount_;
+  private final long bitPattern_;
+  private final long minValue_;
+  private final long maxValue_;
+  private final long[] sortedBaseBuffer_; //null if the base buffer of the image is ordered
+
+  private DirectCompactLongsSketch(final Memory mem, final int k, final long n,
+      final long minValue, final long maxValue, final long[] sortedBaseBuffer) {
+    mem_ = mem;
+    k_ = k;
+    n_ = n;
+    baseBufferCount_ = computeBaseBufferItems(k, n);
+    bitPattern_ = computeBitPattern(k, n);
+    minValue_ = minValue;
+    maxValue_ = maxValue;
+    sortedBaseBuffer_ = sortedBaseBuffer;
+  }
+
+  /**
+   * Wraps the given Memory, which must hold a compact image of a LongsSketch.
+   * A reference to the Memory is retained and the Memory must not be changed while it is wrapped.
+   * @param srcMem a compact Memory image of a LongsSketch
+   * @return a read-only sketch that answers queries directly from the given Memory
+   */
+  public static DirectCompactLongsSketch wrap(final Memory srcMem) {
+    final long memCapBytes = srcMem.getCapacity();
+    if (memCapBytes < 8) {
+      throw new SketchesArgumentException("Memory too small: " + memCapBytes);
+    }
+    final int preambleLongs = extractPreLongs(srcMem);
+    final int serVer = extractSerVer(srcMem);
+    final int familyID = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final int k = extractK(srcMem);
+
+    if (serVer != LongsSketch.LONGS_SER_VER) {
+      throw new SketchesArgumentException(
+          "Possible corruption: Invalid serialization version: " + serVer);
+    }
+    final boolean empty = Util.checkPreLongsFlagsCap(preambleLongs, flags, memCapBytes);
+    Util.checkFamilyID(familyID);
+    Util.checkK(k);
+    if (empty) {
+      return new DirectCompactLongsSketch(srcMem, k, 0, Long.MAX_VALUE, Long.MIN_VALUE, null);
+    }
+
+    if (!Util.checkIsCompactMemory(srcMem)) {
+      throw new SketchesArgumentException("Only the compact form can be wrapped.");
+    }
+    final long n = extractN(srcMem);
+    final long memBytesNeeded = LongsSketch.getStorageBytes(k, n);
+    if (memCapBytes < memBytesNeeded) {
+      throw new SketchesArgumentException(
+          "Possible corruption: Memory capacity too small: " + memCapBytes + " < " + memBytesNeeded);
+    }
+    long[] sortedBaseBuffer = null;
+    if ((flags & ORDERED_FLAG_MASK) == 0) {
+      sortedBaseBuffer = new long[computeBaseBufferItems(k, n)];
+      srcMem.getLongArray(COMBINED_BUFFER, sortedBaseBuffer, 0, sortedBaseBuffer.length);
+      Arrays.sort(sortedBaseBuffer);
+    }
+    return new DirectCompactLongsSketch(srcMem, k, n,
+        extractMinLong(srcMem), extractMaxLong(srcMem), sortedBaseBuffer);
+  }
+
+  /**
+   * This returns an approximation to the value of the data item
+   * that would be preceded by the given fraction of a hypothetical sorted
+   * version of the input stream so far. See {@link LongsSketch#getQuantile(double)}.
+   *
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * If fraction = 0.0, the true minimum value of the stream is returned.
+   * If fraction = 1.0, the true maximum value of the stream is returned.
+   *
+   * @return the approximation to the value at the above fraction.
+   * @throws SketchesStateException if the sketch is empty.
+   */
+  public long getQuantile(final double fraction) {
+    if (isEmpty()) {
+      throw new SketchesStateException("The sketch is empty.");
+    }
+    if ((fraction < 0.0) || (fraction > 1.0)) {
+      throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+    }
+    if      (fraction == 0.0) { return minValue_; }
+    else if (fraction == 1.0) { return maxValue_; }
+    return valueAtPosition(ItemsAuxiliary.posOfPhi(fraction, n_));
+  }
+
+  /**
+   * This is a multiple-query version of getQuantile(). See
+   * {@link LongsSketch#getQuantiles(double[])}.
+   *
+   * @param fractions given array of fractional positions in the hypothetical sorted stream.
+   * These fractions must be monotonic, in increasing order and in the interval
+   * [0.0, 1.0] inclusive.
+   *
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array. Returns null if sketch is empty
+   */
+  public long[] getQuantiles(final double[] fractions) {
+    if (isEmpty()) { return null; }
+    Util.validateFractions(fractions);
+    final long[] answers = new long[fractions.length];
+    for (int i = 0; i < fractions.length; i++) {
+      answers[i] = getQuantile(fractions[i]);
+    }
+    return answers;
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function (PMF) of the input stream
+   * given a set of splitPoints (values). See {@link LongsSketch#getPMF(long[])}.
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing long values
+   * that divide the real number line into <i>m+1</i> consecutive disjoint intervals.
+   *
+   * @return an array of m+1 doubles each of which is an approximation
+   * to the fraction of the input stream values that fell into one of those intervals.
+   * The definition of an "interval" is inclusive of the left splitPoint and exclusive of the right
+   * splitPoint.
+   */
+  public double[] getPMF(final long[] splitPoints) {
+    return getPMFOrCDF(splitPoints, false);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function (CDF) of the input stream
+   * given a set of splitPoints (values). See {@link LongsSketch#getCDF(long[])}.
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing long values
+   * that divide the real number line into <i>m+1</i> consecutive disjoint intervals.
+   *
+   * @return an approximation to the CDF of the input stream given the splitPoints.
+   */
+  public double[] getCDF(final long[] splitPoints) {
+    return getPMFOrCDF(splitPoints, true);
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1 inclusive.
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   */
+  public double getRank(final long value) {
+    if (isEmpty()) { return Double.NaN; }
+    return weightBelow(value, false) / (double) n_;
+  }
+
+  /**
+   * Returns the configured value of K
+   * @return the configured value of K
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the min value of the stream
+   * @return the min value of the stream. Long.MAX_VALUE if the sketch is empty.
+   */
+  public long getMinValue() {
+    return minValue_;
+  }
+
+  /**
+   * Returns the max value of the stream
+   * @return the max value of the stream. Long.MIN_VALUE if the sketch is empty.
+   */
+  public long getMaxValue() {
+    return maxValue_;
+  }
+
+  /**
+   * Returns the length of the input stream so far.
+   * @return the length of the input stream so far
+   */
+  public long getN() {
+    return n_;
+  }
+
+  /**
+   * Returns true if this sketch is empty
+   * @return true if this sketch is empty
+   */
+  public boolean isEmpty() {
+    return n_ == 0;
+  }
+
+  @SuppressWarnings("static-method")
+  public boolean isDirect() {
+    return true;
+  }
+
+  public boolean isEstimationMode() {
+    return n_ >= (2L * k_);
+  }
+
+  /**
+   * Computes the number of retained items (samples) in the sketch
+   * @return the number of retained items (samples) in the sketch
+   */
+  public int getRetainedItems() {
+    return Util.computeRetainedItems(k_, n_);
+  }
+
+  /**
+   * Returns the wrapped Memory
+   * @return the wrapped Memory
+   */
+  public Memory getMemory() {
+    return mem_;
+  }
+
+  /**
+   * Returns a copy of this sketch on the Java heap, which can be updated.
+   * @return a LongsSketch on the Java heap
+   */
+  public LongsSketch toHeap() {
+    return LongsSketch.heapify(mem_);
+  }
+
+  /**
+   * Returns summary information about this sketch.
+   */
+  @Override
+  public String toString() {
+    return LongsUtil.toString(true, false, toHeap());
+  }
+
+  // Restricted
+
+  private double[] getPMFOrCDF(final long[] splitPoints, final boolean isCDF) {
+    if (isEmpty()) { return null; }
+    LongsUtil.validateValues(splitPoints);
+    final int numSplitPoints = splitPoints.length;
+    final double[] result = new double[numSplitPoints + 1];
+    final double n = n_;
+    long prevWeight = 0;
+    for (int j = 0; j < numSplitPoints; j++) {
+      final long weight = weightBelow(splitPoints[j], false);
+      result[j] = (isCDF ? weight : weight - prevWeight) / n;
+      prevWeight = weight;
+    }
+    result[numSplitPoints] = (isCDF ? n_ : n_ - prevWeight) / n;
+    return result;
+  }
+
+  /**
+   * Returns the value at the given position of the hypothetical sorted stream, which is the
+   * smallest retained item whose cumulative weight, including itself, exceeds the position.
+   * This is the same item that the auxiliary of the heap sketch would find.
+   * @param pos the position in the hypothetical sorted stream, which must be less than n.
+   * @return the value at the given position
+   */
+  private long valueAtPosition(final long pos) {
+    boolean found = false;
+    long best = 0;
+    for (int run = -1; run < Long.SIZE; run++) {
+      if ((run >= 0) && ((bitPattern_ >>> run) == 0L)) { break; }
+      final int len = runLength(run);
+      if (len == 0) { continue; }
+      int lo = 0;
+      int hi = len;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (weightBelow(runItem(run, mid), true) > pos) { hi = mid; }
+        else { lo = mid + 1; }
+      }
+      if (lo < len) {
+        final long candidate = runItem(run, lo);
+        if (!found || (candidate < best)) { best = candidate; }
+        found = true;
+      }
+    }
+    assert found;
+    return best;
+  }
+
+  /**
+   * Returns the total weight of the retained items less than the given value, or less than or
+   * equal to the given value if inclusive.
+   * @param value the given value
+   * @param inclusive if true, items equal to the value are counted
+   * @return the total weight of the retained items below the given value
+   */
+  private long weightBelow(final long value, final boolean inclusive) {
+    long total = countBelow(-1, value, inclusive);
+    long weight = 1;
+    long bits = bitPattern_;
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      weight += weight;
+      if ((bits & 1L) > 0L) {
+        total += weight * countBelow(lvl, value, inclusive);
+      }
+    }
+    return total;
+  }
+
+  private int countBelow(final int run, final long value, final boolean inclusive) {
+    int lo = 0;
+    int hi = runLength(run);
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      final long item = runItem(run, mid);
+      if ((item < value) || (inclusive && (item == value))) { lo = mid + 1; }
+      else { hi = mid; }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the number of items of the given sorted run, which is either the base buffer, -1,
+   * or a level. Levels that are not valid have no items.
+   */
+  private int runLength(final int run) {
+    if (run < 0) { return baseBufferCount_; }
+    return (((bitPattern_ >>> run) & 1L) > 0L) ? k_ : 0;
+  }
+
+  private long runItem(final int run, final int index) {
+    if (run < 0) {
+      return (sortedBaseBuffer_ != null)
+          ? sortedBaseBuffer_[index]
+          : mem_.getLong(COMBINED_BUFFER + ((long) index << 3));
+    }
+    //the valid levels follow the base buffer in increasing order
+    final long levelsBelow = Long.bitCount(bitPattern_ & ((1L << run) - 1));
+    final long itemIndex = baseBufferCount_ + (levelsBelow * k_) + index;
+    return mem_.getLong(COMBINED_BUFFER + (itemIndex << 3));
+  }
+
+}
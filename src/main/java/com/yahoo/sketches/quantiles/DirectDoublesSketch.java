@@ -0,0 +1,550 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.Util.checkIfPowerOf2;
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMBINED_BUFFER;
+import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractMaxDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractMinDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertMaxDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertMinDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
+import static com.yahoo.sketches.quantiles.Util.computeBaseBufferItems;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * A DoublesSketch that lives in, and is updated in place within, a caller-supplied
+ * WritableMemory instead of the Java heap. This allows very large numbers of sketches to be kept
+ * out of the reach of the garbage collector.
+ *
+ * <p>The Memory always holds the updatable (non-compact) image of a DoublesSketch, so it can be
+ * given to {@link DoublesSketch#heapify(com.yahoo.memory.Memory)} or to sketches-core at any
+ * time. The base buffer is written item by item. When a new level is needed the sketch asks
+ * the MemoryRequestServer for a larger WritableMemory, copies itself there and then offers the
+ * old Memory to {@link MemoryRequestServer#requestClose(WritableMemory, WritableMemory)}.
+ * Callers that keep a handle to the Memory must therefore obtain it from {@link #getMemory()}
+ * after updates.</p>
+ *
+ * <p>The compactions of the base buffer and the merges into this sketch sort and merge on the Java
+ * heap, in scratch buffers of 4k doubles in total that are allocated by the first compaction and
+ * then kept by this instance.</p>
+ *
+ * <p>The queries, getQuantile(), getQuantiles(), getPMF(), getCDF() and toString(), heapify the
+ * sketch first. Each call copies all retained items onto the Java heap and builds the sorted
+ * auxiliary structure of the heap sketch, which takes time and garbage linear in the number of
+ * retained items, so they are not meant for the hot path. To ask several queries, obtain a heap
+ * copy once with {@link #toHeap()}, or wrap the compact image given by
+ * {@link #toByteArray(boolean) toByteArray(true)} with {@link DirectCompactDoublesSketch}.</p>
+ */
+public final class DirectDoublesSketch {
+  private int k_;
+  private WritableMemory mem_;
+  private final MemoryRequestServer memReqSvr_; //null means ask the Memory for its server
+  private final SplittableRandom rand_; //null means use ThreadLocalRandom
+  private double[] baseBuf_;  //2k scratch, null until the first compaction
+  private double[] carryBuf_; //k scratch
+  private double[] levelBuf_; //k scratch
+
+  private DirectDoublesSketch(final int k, final WritableMemory mem,
+      final MemoryRequestServer memReqSvr, final SplittableRandom rand) {
+    k_ = k;
+    mem_ = mem;
+    memReqSvr_ = memReqSvr;
+    rand_ = rand;
+    if (rand != null) {
+      rand.nextLong(); //reserved for derived sketches, as in DoublesSketch, so both draw alike
+    }
+  }
+
+  /**
+   * Obtains a new empty DirectDoublesSketch in the given WritableMemory, which is overwritten.
+   * The Memory grows through its own MemoryRequestServer.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 1 and less than 65536 and a power of 2.
+   * @param dstMem the destination WritableMemory, which must have a capacity of at least 8 bytes.
+   * @return a new empty DirectDoublesSketch
+   */
+  public static DirectDoublesSketch newInstance(final int k, final WritableMemory dstMem) {
+    return newInstance(k, dstMem, null);
+  }
+
+  /**
+   * Obtains a new empty DirectDoublesSketch in the given WritableMemory, which is overwritten.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 1 and less than 65536 and a power of 2.
+   * @param dstMem the destination WritableMemory, which must have a capacity of at least 8 bytes.
+   * @param memReqSvr the MemoryRequestServer asked for a larger Memory when the sketch grows.
+   * If null, the server of the given Memory is used.
+   * @return a new empty DirectDoublesSketch
+   */
+  public static DirectDoublesSketch newInstance(final int k, final WritableMemory dstMem,
+      final MemoryRequestServer memReqSvr) {
+    return newInstance(k, dstMem, memReqSvr, null);
+  }
+
+  /**
+   * Obtains a new empty DirectDoublesSketch with the given source of randomness.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * @param dstMem the destination WritableMemory
+   * @param memReqSvr the MemoryRequestServer, or null
+   * @param rand the source of randomness of the sketch, or null to use ThreadLocalRandom
+   * @return a new empty DirectDoublesSketch
+   */
+  static DirectDoublesSketch newInstance(final int k, final WritableMemory dstMem,
+      final MemoryRequestServer memReqSvr, final SplittableRandom rand) {
+    Util.checkK(k);
+    checkWritable(dstMem);
+    final long memCapBytes = dstMem.getCapacity();
+    if (memCapBytes < Long.BYTES) {
+      throw new SketchesArgumentException("Memory too small: " + memCapBytes);
+    }
+    insertEmpty(dstMem, k);
+    return new DirectDoublesSketch(k, dstMem, memReqSvr, rand);
+  }
+
+  /**
+   * Wraps the given WritableMemory, which must hold an updatable (non-compact) image of a
+   * DoublesSketch, such as one written by this class or by
+   * {@link DoublesSketch#toByteArray(boolean) toByteArray(false)}.
+   * The Memory grows through its own MemoryRequestServer.
+   * @param srcMem an updatable image of a DoublesSketch
+   * @return a DirectDoublesSketch that operates on the given Memory
+   */
+  public static DirectDoublesSketch wrap(final WritableMemory srcMem) {
+    return wrap(srcMem, null);
+  }
+
+  /**
+   * Wraps the given WritableMemory, which must hold an updatable (non-compact) image of a
+   * DoublesSketch.
+   * @param srcMem an updatable image of a DoublesSketch
+   * @param memReqSvr the MemoryRequestServer asked for a larger Memory when the sketch grows.
+   * If null, the server of the given Memory is used.
+   * @return a DirectDoublesSketch that operates on the given Memory
+   */
+  public static DirectDoublesSketch wrap(final WritableMemory srcMem,
+      final MemoryRequestServer memReqSvr) {
+    checkWritable(srcMem);
+    final long memCapBytes = srcMem.getCapacity();
+    if (memCapBytes < Long.BYTES) {
+      throw new SketchesArgumentException("Memory too small: " + memCapBytes);
+    }
+    final int preambleLongs = extractPreLongs(srcMem);
+    final int serVer = extractSerVer(srcMem);
+    final int familyID = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final int k = extractK(srcMem);
+
+    if (serVer != DoublesSketch.DOUBLES_SER_VER) {
+      throw new SketchesArgumentException(
+          "Possible corruption: Invalid serialization version: " + serVer);
+    }
+    final boolean empty = Util.checkPreLongsFlagsCap(preambleLongs, flags, memCapBytes);
+    Util.checkFamilyID(familyID);
+    Util.checkK(k);
+    if (!empty) {
+      if (Util.checkIsCompactMemory(srcMem)) {
+        throw new SketchesArgumentException("A compact image cannot be wrapped for update.");
+      }
+      final long memBytesNeeded = DoublesSketch.getUpdatableStorageBytes(k, extractN(srcMem));
+      if (memCapBytes < memBytesNeeded) {
+        throw new SketchesArgumentException(
+            "Possible corruption: Memory capacity too small: " + memCapBytes + " < " + memBytesNeeded);
+      }
+    }
+    return new DirectDoublesSketch(k, srcMem, memReqSvr, null);
+  }
+
+  /**
+   * Updates this sketch with the given double data item
+   * @param dataItem an item from a stream of items. NaNs are ignored.
+   */
+  public void update(final double dataItem) {
+    if (Double.isNaN(dataItem)) { return; }
+    final int k = k_;
+    final long n = getN();
+    final int bbCount = computeBaseBufferItems(k, n);
+    final long itemOffset = COMBINED_BUFFER + ((long) bbCount << 3);
+    if ((itemOffset + Double.BYTES) > mem_.getCapacity()) {
+      growMemory(COMBINED_BUFFER + ((long) 2 * k << 3)); //the whole base buffer at once
+    }
+
+    if (n == 0) {
+      insertPreLongs(mem_, 2);
+      insertFlags(mem_, 0);
+      insertMinDouble(mem_, dataItem);
+      insertMaxDouble(mem_, dataItem);
+    } else {
+      if (dataItem > extractMaxDouble(mem_)) { insertMaxDouble(mem_, dataItem); }
+      if (dataItem < extractMinDouble(mem_)) { insertMinDouble(mem_, dataItem); }
+    }
+
+    mem_.putDouble(itemOffset, dataItem);
+    final long newN = n + 1;
+    if ((bbCount + 1) == (2 * k)) {
+      processFullBaseBuffer(newN);
+    }
+    insertN(mem_, newN);
+  }
+
+  /**
+   * This is a stochastic, approximate quantile of the sketch. See
+   * {@link DoublesSketch#getQuantile(double)}.
+   * @param fraction the given normalized rank as a fraction
+   * @return the approximation to the value at the above fraction
+   */
+  public double getQuantile(final double fraction) {
+    return toHeap().getQuantile(fraction);
+  }
+
+  /**
+   * See {@link DoublesSketch#getQuantiles(double[])}.
+   * @param fractions given array of normalized ranks
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array.
+   */
+  public double[] getQuantiles(final double[] fractions) {
+    return toHeap().getQuantiles(fractions);
+  }
+
+  /**
+   * See {@link DoublesSketch#getPMF(double[])}.
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing doubles
+   * @return an array of m+1 doubles each of which is an approximation
+   * to the fraction of the input stream values that fell into one of those intervals.
+   */
+  public double[] getPMF(final double[] splitPoints) {
+    return toHeap().getPMF(splitPoints);
+  }
+
+  /**
+   * See {@link DoublesSketch#getCDF(double[])}.
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing doubles
+   * @return an approximation to the m+1 values of the cumulative distribution function
+   */
+  public double[] getCDF(final double[] splitPoints) {
+    return toHeap().getCDF(splitPoints);
+  }
+
+  /**
+   * Returns the configured value of K
+   * @return the configured value of K
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the length of the input stream so far.
+   * @return the length of the input stream so far
+   */
+  public long getN() {
+    return (extractPreLongs(mem_) == 1) ? 0 : extractN(mem_);
+  }
+
+  /**
+   * Returns the min value of the stream
+   * @return the min value of the stream, NaN if the sketch is empty
+   */
+  public double getMinValue() {
+    return isEmpty() ? Double.NaN : extractMinDouble(mem_);
+  }
+
+  /**
+   * Returns the max value of the stream
+   * @return the max value of the stream, NaN if the sketch is empty
+   */
+  public double getMaxValue() {
+    return isEmpty() ? Double.NaN : extractMaxDouble(mem_);
+  }
+
+  /**
+   * Returns true if this sketch is empty
+   * @return true if this sketch is empty
+   */
+  public boolean isEmpty() {
+    return getN() == 0;
+  }
+
+  /**
+   * Returns true if this sketch accesses its internal data using the Memory package
+   * @return true, as this sketch always lives in Memory
+   */
+  @SuppressWarnings("static-method")
+  public boolean isDirect() {
+    return true;
+  }
+
+  /**
+   * Returns true if this sketch is in estimation mode, which is when it has compacted its
+   * base buffer at least once.
+   * @return true if this sketch is in estimation mode
+   */
+  public boolean isEstimationMode() {
+    return getN() >= (2L * k_);
+  }
+
+  /**
+   * Computes the number of retained items (samples) in the sketch
+   * @return the number of retained items (samples) in the sketch
+   */
+  public int getRetainedItems() {
+    return Util.computeRetainedItems(k_, getN());
+  }
+
+  /**
+   * Returns the WritableMemory that currently holds this sketch. This changes when the sketch
+   * has grown into a new Memory.
+   * @return the WritableMemory that currently holds this sketch
+   */
+  public WritableMemory getMemory() {
+    return mem_;
+  }
+
+  /**
+   * Resets this sketch to a virgin state, but retains the original value of k and the current
+   * Memory.
+   */
+  public void reset() {
+    insertEmpty(mem_, k_);
+  }
+
+  /**
+   * Returns a copy of this sketch on the Java heap.
+   * @return a DoublesSketch on the Java heap
+   */
+  public DoublesSketch toHeap() {
+    return DoublesSketch.heapify(mem_);
+  }
+
+  /**
+   * Serialize this sketch to a byte array.
+   * @param compact if true the sketch will be serialized in compact form, otherwise in the
+   * updatable form held by the Memory.
+   * @return byte array of this sketch
+   */
+  public byte[] toByteArray(final boolean compact) {
+    if (compact) { return toHeap().toByteArray(true); }
+    final long n = getN();
+    final int bytes = (n == 0) ? Long.BYTES : DoublesSketch.getUpdatableStorageBytes(k_, n);
+    final byte[] outArr = new byte[bytes];
+    mem_.getByteArray(0, outArr, 0, bytes);
+    return outArr;
+  }
+
+  /**
+   * Returns summary information about this sketch.
+   */
+  @Override
+  public String toString() {
+    return toString(true, false);
+  }
+
+  /**
+   * Returns summary information about this sketch. Used for debugging.
+   * @param sketchSummary if true includes sketch summary
+   * @param dataDetail if true includes data detail
+   * @return summary information about the sketch.
+   */
+  public String toString(final boolean sketchSummary, final boolean dataDetail) {
+    return DoublesUtil.toString(sketchSummary, dataDetail, toHeap());
+  }
+
+  // Restricted
+
+  /**
+   * Merges the given heap sketch, whose <i>k</i> must be a power of 2 multiple of the <i>k</i>
+   * of this sketch, into this sketch in place. The levels of the source are carried into the
+   * Memory directly, down-sampled if the values of <i>k</i> differ.
+   * @param src the source sketch, which is not modified
+   */
+  void mergeFrom(final DoublesSketch src) {
+    if ((src == null) || src.isEmpty()) { return; }
+    final int tgtK = k_;
+    final int srcK = src.getK();
+    if ((srcK % tgtK) != 0) {
+      throw new SketchesArgumentException(
+          "source.getK() must equal target.getK() * 2^(nonnegative integer).");
+    }
+    final int downFactor = srcK / tgtK;
+    checkIfPowerOf2(downFactor, "source.getK()/target.getK() ratio");
+    final int lgDownFactor = Integer.numberOfTrailingZeros(downFactor);
+
+    final double[] srcCombBuf = src.getCombinedBuffer();
+    final long nFinal = getN() + src.getN();
+
+    for (int i = 0; i < src.getBaseBufferCount(); i++) {
+      update(srcCombBuf[i]);
+    }
+    ensureLevels(nFinal);
+    if (getN() == 0) { //the source has only levels
+      insertPreLongs(mem_, 2);
+      insertFlags(mem_, 0);
+      insertMinDouble(mem_, src.getMinValue());
+      insertMaxDouble(mem_, src.getMaxValue());
+    }
+
+    ensureScratch();
+    final double[] scratchBuf = baseBuf_;
+    final double[] carryBuf = carryBuf_;
+    long tgtBitPattern = Util.computeBitPattern(tgtK, getN());
+    long srcBitPattern = src.getBitPattern();
+    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+      if ((srcBitPattern & 1L) > 0L) {
+        DoublesMergeImpl.justZipWithStride(
+            srcCombBuf, (2 + srcLvl) * srcK,
+            carryBuf, 0,
+            tgtK,
+            downFactor, (downFactor == 1) ? 0 : nextRandomInt(downFactor));
+        propagateCarry(srcLvl + lgDownFactor, carryBuf, scratchBuf, tgtBitPattern);
+        tgtBitPattern += 1L << (srcLvl + lgDownFactor);
+      }
+    }
+    insertN(mem_, nFinal);
+    assert (nFinal / (2L * tgtK)) == tgtBitPattern;
+
+    //the base buffer items were already seen by update, the levels were not
+    final double srcMin = src.getMinValue();
+    final double srcMax = src.getMaxValue();
+    if (srcMin < extractMinDouble(mem_)) { insertMinDouble(mem_, srcMin); }
+    if (srcMax > extractMaxDouble(mem_)) { insertMaxDouble(mem_, srcMax); }
+  }
+
+  /**
+   * Replaces the contents of the Memory with the updatable image of the given heap sketch,
+   * whose value of <i>k</i> this sketch takes on.
+   * @param sketch the given heap sketch
+   */
+  void rewrite(final DoublesSketch sketch) {
+    final int k = sketch.getK();
+    if (sketch.isEmpty()) {
+      insertEmpty(mem_, k);
+    } else {
+      growMemory(sketch.getUpdatableStorageBytes());
+      sketch.putMemory(mem_, false);
+    }
+    k_ = k;
+  }
+
+  private void processFullBaseBuffer(final long newN) {
+    final int k = k_;
+    ensureLevels(newN);
+    ensureScratch();
+    final double[] baseBuffer = baseBuf_;
+    mem_.getDoubleArray(COMBINED_BUFFER, baseBuffer, 0, 2 * k);
+    Arrays.sort(baseBuffer);
+    final double[] carryBuf = carryBuf_;
+    DoublesUpdateImpl.zipSize2KBuffer(baseBuffer, 0, carryBuf, 0, k, nextRandomBoolean());
+    //the sorted base buffer is no longer needed and serves as scratch
+    propagateCarry(0, carryBuf, baseBuffer, Util.computeBitPattern(k, newN - 1));
+  }
+
+  /**
+   * Carries the given size k buffer, which has the weight of the given starting level, up
+   * through the valid levels of the given bit pattern and writes it into the first invalid one.
+   * @param startingLevel the level of the carry
+   * @param carryBuf the sorted size k carry, which is overwritten
+   * @param scratchBuf a scratch buffer of size 2k
+   * @param bitPattern the bit pattern of the levels before the carry
+   */
+  private void propagateCarry(final int startingLevel, final double[] carryBuf,
+      final double[] scratchBuf, final long bitPattern) {
+    final int k = k_;
+    final int endingLevel = Util.lowestZeroBitStartingAt(bitPattern, startingLevel);
+    final double[] levelBuf = levelBuf_;
+    for (int lvl = startingLevel; lvl < endingLevel; lvl++) {
+      assert (bitPattern & (1L << lvl)) > 0; // internal consistency check
+      mem_.getDoubleArray(levelOffsetBytes(lvl), levelBuf, 0, k);
+      DoublesUpdateImpl.mergeTwoSizeKBuffers(levelBuf, 0, carryBuf, 0, scratchBuf, 0, k);
+      DoublesUpdateImpl.zipSize2KBuffer(scratchBuf, 0, carryBuf, 0, k, nextRandomBoolean());
+    }
+    mem_.putDoubleArray(levelOffsetBytes(endingLevel), carryBuf, 0, k);
+  }
+
+  // The scratch buffers follow k, which rewrite() can change.
+  private void ensureScratch() {
+    final int k = k_;
+    if ((carryBuf_ == null) || (carryBuf_.length != k)) {
+      baseBuf_ = new double[2 * k];
+      carryBuf_ = new double[k];
+      levelBuf_ = new double[k];
+    }
+  }
+
+  private long levelOffsetBytes(final int level) {
+    return COMBINED_BUFFER + ((long) (2 + level) * k_ << 3);
+  }
+
+  // This only increases the size of the Memory and does not touch the data.
+  private void ensureLevels(final long newN) {
+    final int numLevelsNeeded = Util.computeNumLevelsNeeded(k_, newN);
+    if (numLevelsNeeded == 0) { return; }
+    growMemory(COMBINED_BUFFER + ((long) (2 + numLevelsNeeded) * k_ << 3));
+  }
+
+  private void growMemory(final long bytesNeeded) {
+    final long oldCapBytes = mem_.getCapacity();
+    if (bytesNeeded <= oldCapBytes) { return; }
+    final MemoryRequestServer memReqSvr =
+        (memReqSvr_ != null) ? memReqSvr_ : mem_.getMemoryRequestServer();
+    if (memReqSvr == null) {
+      throw new SketchesArgumentException(
+          "Memory too small and no MemoryRequestServer: " + oldCapBytes + " < " + bytesNeeded);
+    }
+    final WritableMemory newMem = memReqSvr.request(bytesNeeded);
+    if ((newMem == null) || (newMem.getCapacity() < bytesNeeded)) {
+      throw new SketchesArgumentException(
+          "MemoryRequestServer did not supply the requested capacity: " + bytesNeeded);
+    }
+    mem_.copyTo(0, newMem, 0, oldCapBytes);
+    memReqSvr.requestClose(mem_, newMem);
+    mem_ = newMem;
+  }
+
+  private static void insertEmpty(final WritableMemory wmem, final int k) {
+    insertPreLongs(wmem, 1);
+    insertSerVer(wmem, DoublesSketch.DOUBLES_SER_VER);
+    insertFamilyID(wmem, Family.QUANTILES.getID());
+    insertFlags(wmem, EMPTY_FLAG_MASK);
+    insertK(wmem, k);
+  }
+
+  private static void checkWritable(final WritableMemory wmem) {
+    if (wmem.isResourceReadOnly()) {
+      throw new SketchesArgumentException("The given Memory is read-only.");
+    }
+  }
+
+  int nextRandomInt(final int bound) {
+    return (rand_ == null) ? ThreadLocalRandom.current().nextInt(bound) : rand_.nextInt(bound);
+  }
+
+  boolean nextRandomBoolean() {
+    return (rand_ == null) ? ThreadLocalRandom.current().nextBoolean() : rand_.nextBoolean();
+  }
+
+}
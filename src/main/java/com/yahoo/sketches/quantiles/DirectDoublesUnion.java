@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.Util.LS;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+
+/**
+ * The API for Union operations for DoublesSketches where the state of the union is kept in, and
+ * updated in place within, a caller-supplied WritableMemory. The Memory holds the updatable image
+ * of the result sketch and grows as described in {@link DirectDoublesSketch}.
+ */
+public final class DirectDoublesUnion {
+
+  private final int maxK_;
+  private final DirectDoublesSketch gadget_;
+
+  private DirectDoublesUnion(final int maxK, final DirectDoublesSketch gadget) {
+    maxK_ = maxK;
+    gadget_ = gadget;
+  }
+
+  /**
+   * Create an instance of DirectDoublesUnion in the given WritableMemory, which is overwritten.
+   * @param maxK determines the accuracy and size of the union and is a maximum value.
+   * The effective <i>k</i> can be smaller due to unions with smaller <i>k</i> sketches.
+   * It is recommended that <i>maxK</i> be a power of 2 to enable unioning of sketches with
+   * different values of <i>k</i>.
+   * @param dstMem the destination WritableMemory, which must have a capacity of at least 8 bytes.
+   * @return an instance of DirectDoublesUnion
+   */
+  public static DirectDoublesUnion newInstance(final int maxK, final WritableMemory dstMem) {
+    return newInstance(maxK, dstMem, null);
+  }
+
+  /**
+   * Create an instance of DirectDoublesUnion in the given WritableMemory, which is overwritten.
+   * @param maxK determines the accuracy and size of the union and is a maximum value.
+   * @param dstMem the destination WritableMemory, which must have a capacity of at least 8 bytes.
+   * @param memReqSvr the MemoryRequestServer asked for a larger Memory when the union grows.
+   * If null, the server of the given Memory is used.
+   * @return an instance of DirectDoublesUnion
+   */
+  public static DirectDoublesUnion newInstance(final int maxK, final WritableMemory dstMem,
+      final MemoryRequestServer memReqSvr) {
+    return new DirectDoublesUnion(maxK, DirectDoublesSketch.newInstance(maxK, dstMem, memReqSvr));
+  }
+
+  /**
+   * Wrap the given WritableMemory, which must hold an updatable image of a DoublesSketch, as a
+   * union. The <i>k</i> of that sketch becomes the <i>maxK</i> of the union.
+   * @param srcMem an updatable image of a DoublesSketch
+   * @param memReqSvr the MemoryRequestServer asked for a larger Memory when the union grows.
+   * If null, the server of the given Memory is used.
+   * @return an instance of DirectDoublesUnion
+   */
+  public static DirectDoublesUnion wrap(final WritableMemory srcMem,
+      final MemoryRequestServer memReqSvr) {
+    final DirectDoublesSketch gadget = DirectDoublesSketch.wrap(srcMem, memReqSvr);
+    return new DirectDoublesUnion(gadget.getK(), gadget);
+  }
+
+  /**
+   * Iterative union operation, which means this method can be repeatedly called.
+   * Merges the given sketch into this union object in place.
+   * The given sketch is not modified.
+   * It is required that the ratio of the two K values be a power of 2.
+   * If the given sketch is null or empty it is ignored.
+   *
+   * @param sketchIn the sketch to be merged into this one.
+   */
+  public void update(final DoublesSketch sketchIn) {
+    if ((sketchIn == null) || sketchIn.isEmpty()) { return; }
+    if (sketchIn.getK() >= gadget_.getK()) {
+      gadget_.mergeFrom(sketchIn);
+      return;
+    }
+    //the effective k must shrink, which rewrites the whole image
+    final DoublesSketch result = DoublesUnion.updateLogic(maxK_, gadget_.toHeap(), sketchIn);
+    gadget_.rewrite(result);
+  }
+
+  /**
+   * Iterative union operation, which means this method can be repeatedly called.
+   * Merges the given Memory image of a DoublesSketch into this union object.
+   * The given Memory object is not modified and a link to it is not retained.
+   * If the given sketch is null or empty it is ignored.
+   * @param srcMem Memory image of sketch to be merged
+   */
+  public void update(final Memory srcMem) {
+    if (srcMem == null) { return; }
+    update(DoublesSketch.heapify(srcMem));
+  }
+
+  /**
+   * Update this union with the given double (or float) data Item.
+   *
+   * @param dataItem The given double datum. NaNs are ignored.
+   */
+  public void update(final double dataItem) {
+    gadget_.update(dataItem);
+  }
+
+  /**
+   * Gets the result of this Union operation as a sketch on the Java heap.
+   * @return the result of this Union operation
+   */
+  public DoublesSketch getResult() {
+    return gadget_.toHeap();
+  }
+
+  /**
+   * Gets the result of this Union operation as a sketch on the Java heap and resets this Union
+   * to the virgin state.
+   *
+   * @return the result of this Union operation and reset.
+   */
+  public DoublesSketch getResultAndReset() {
+    final DoublesSketch result = gadget_.toHeap();
+    reset();
+    return result;
+  }
+
+  /**
+   * Resets this Union to a virgin state with the configured <i>maxK</i>.
+   */
+  public void reset() {
+    gadget_.rewrite(DoublesSketch.newInstance(maxK_));
+  }
+
+  /**
+   * Returns true if this union is empty
+   * @return true if this union is empty
+   */
+  public boolean isEmpty() {
+    return gadget_.isEmpty();
+  }
+
+  /**
+   * Returns true if this union is direct
+   * @return true if this union is direct
+   */
+  @SuppressWarnings("static-method")
+  public boolean isDirect() {
+    return true;
+  }
+
+  /**
+   * Returns the configured <i>maxK</i> of this Union.
+   * @return the configured <i>maxK</i> of this Union.
+   */
+  public int getMaxK() {
+    return maxK_;
+  }
+
+  /**
+   * Returns the effective <i>k</i> of this Union.
+   * @return the effective <i>k</i> of this Union.
+   */
+  public int getEffectiveK() {
+    return gadget_.getK();
+  }
+
+  /**
+   * Returns the WritableMemory that currently holds this union. This changes when the union has
+   * grown into a new Memory.
+   * @return the WritableMemory that currently holds this union
+   */
+  public WritableMemory getMemory() {
+    return gadget_.getMemory();
+  }
+
+  /**
+   * Serialize this union to a byte array in the updatable form of the result sketch.
+   * @return byte array of this union
+   */
+  public byte[] toByteArray() {
+    return gadget_.toByteArray(false);
+  }
+
+  /**
+   * Returns summary information about the backing sketch.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = this.getClass().getSimpleName();
+    sb.append(Util.LS).append("### Quantiles ").append(thisSimpleName).append(LS);
+    sb.append("   maxK                         : ").append(String.format("%,d", maxK_));
+    sb.append(gadget_.toString(true, false));
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018, Yahoo! Inc. Licensed under the terms of the
+ * Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMBINED_BUFFER;
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMPACT_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.ORDERED_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.READ_ONLY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertMaxDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertMinDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
+
+import java.util.Arrays;
+
+import com.yahoo.memory.WritableMemory;
+
+import com.yahoo.sketches.Family;
+
+/**
+ * The doubles to byte array algorithms.
+ *
+ * @author Lee Rhodes
+ * @author Jon Malkin
+ */
+final class DoublesByteArrayImpl {
+
+  private DoublesByteArrayImpl() {}
+
+  static byte[] toByteArray(final DoublesSketch sketch, final boolean ordered,
+      final boolean compact) {
+    final boolean empty = sketch.isEmpty();
+
+    final int flags = (empty ? EMPTY_FLAG_MASK : 0)
+        | (ordered ? ORDERED_FLAG_MASK : 0)
+        | (compact ? (COMPACT_FLAG_MASK | READ_ONLY_FLAG_MASK) : 0);
+
+    if (empty) {
+      final byte[] outByteArr = new byte[Long.BYTES];
+      final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+      final int preLongs = 1;
+      insertPre0(memOut, preLongs, flags, sketch.getK());
+      return outByteArr;
+    }
+
+    //not empty
+    final int preLongs = 2;
+    final int numOutBytes = compact
+        ? sketch.getCompactStorageBytes()
+        : sketch.getUpdatableStorageBytes();
+    final byte[] outByteArr = new byte[numOutBytes];
+    final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+
+    //insert preamble, min, max
+    insertPre0(memOut, preLongs, flags, sketch.getK());
+    insertN(memOut, sketch.getN());
+    insertMinDouble(memOut, sketch.getMinValue());
+    insertMaxDouble(memOut, sketch.getMaxValue());
+
+    //insert data
+    if (compact) {
+      final double[] dataArr = combinedBufferToCompactArray(sketch, ordered);
+      memOut.putDoubleArray(COMBINED_BUFFER, dataArr, 0, dataArr.length);
+    } else {
+      putUpdatableCombinedBuffer(sketch, memOut);
+    }
+    return outByteArr;
+  }
+
+  /**
+   * Returns an array of the retained items in compact form extracted from the Combined Buffer.
+   * The base buffer comes first, followed by the valid levels in increasing order.
+   * @param ordered true if the desired form of the resulting array has the base buffer sorted.
+   * @return an array of the retained items in compact form.
+   */
+  private static double[] combinedBufferToCompactArray(final DoublesSketch sketch,
+      final boolean ordered) {
+    final int outArrCap = sketch.getRetainedItems();
+    final double[] outArr = new double[outArrCap];
+    final int baseBufferCount = sketch.getBaseBufferCount();
+    final double[] combinedBuffer = sketch.getCombinedBuffer();
+
+    //Load base buffer
+    System.arraycopy(combinedBuffer, 0, outArr, 0, baseBufferCount);
+
+    //Load levels
+    long bitPattern = sketch.getBitPattern();
+    if (bitPattern > 0) {
+      final int k = sketch.getK();
+      int index = baseBufferCount;
+      for (int level = 0; bitPattern != 0L; level++, bitPattern >>>= 1) {
+        if ((bitPattern & 1L) > 0L) {
+          System.arraycopy(combinedBuffer, (2 + level) * k, outArr, index, k);
+          index += k;
+        }
+      }
+    }
+    if (ordered) {
+      Arrays.sort(outArr, 0, baseBufferCount);
+    }
+    return outArr;
+  }
+
+  /**
+   * Writes the Combined Buffer in updatable form, which has the same layout as the Combined
+   * Buffer: the base buffer region followed by all levels, some of which may not be valid.
+   * Invalid levels are left zeroed.
+   * @param sketch the given sketch
+   * @param memOut the destination, which must have the updatable storage capacity.
+   */
+  private static void putUpdatableCombinedBuffer(final DoublesSketch sketch,
+      final WritableMemory memOut) {
+    final double[] combinedBuffer = sketch.getCombinedBuffer();
+    final int k = sketch.getK();
+
+    //Load base buffer
+    memOut.putDoubleArray(COMBINED_BUFFER, combinedBuffer, 0, sketch.getBaseBufferCount());
+
+    //Load valid levels
+    long bitPattern = sketch.getBitPattern();
+    for (int level = 0; bitPattern != 0L; level++, bitPattern >>>= 1) {
+      if ((bitPattern & 1L) > 0L) {
+        final int offset = (2 + level) * k;
+        memOut.putDoubleArray(COMBINED_BUFFER + ((long) offset << 3), combinedBuffer, offset, k);
+      }
+    }
+  }
+
+  private static void insertPre0(final WritableMemory wmem, final int preLongs, final int flags,
+      final int k) {
+    insertPreLongs(wmem, preLongs);
+    insertSerVer(wmem, DoublesSketch.DOUBLES_SER_VER);
+    insertFamilyID(wmem, Family.QUANTILES.getID());
+    insertFlags(wmem, flags);
+    insertK(wmem, k);
+  }
+
+}
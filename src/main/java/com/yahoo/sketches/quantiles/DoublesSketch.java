@@ -0,0 +1,760 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMBINED_BUFFER;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractMaxDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractMinDouble;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
+import static com.yahoo.sketches.quantiles.Util.computeBaseBufferItems;
+import static com.yahoo.sketches.quantiles.Util.computeBitPattern;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+
+import com.yahoo.sketches.Family;
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * This is a stochastic streaming sketch that enables near-real time analysis of the
+ * approximate distribution of real (double) values from a very large stream in a single pass.
+ * The analysis is obtained using a getQuantiles(*) function or its inverse functions the
+ * Probability Mass Function from getPMF(*) and the Cumulative Distribution Function from getCDF(*).
+ *
+ * <p>This sketch holds the same data structure as the ItemsSketch, but the values are kept in a
+ * primitive double array, are sorted with a primitive sort and are compared without a
+ * Comparator. The serialized images are byte-compatible with the DoublesSketch of sketches-core,
+ * both the compact and the updatable (non-compact) forms.</p>
+ *
+ * <p>There is more documentation available on
+ * <a href="https://datasketches.github.io">DataSketches.GitHub.io</a>.</p>
+ *
+ * @author Kevin Lang
+ * @author Lee Rhodes
+ * @author Jon Malkin
+ */
+public final class DoublesSketch {
+
+  static final int DOUBLES_SER_VER = 3;
+  static final int MIN_K = 2;
+
+  /**
+   * Parameter that controls space usage of sketch and accuracy of estimates.
+   */
+  final int k_;
+
+  /**
+   * Total number of data items in the stream so far. (Uniqueness plays no role in these sketches).
+   */
+  long n_;
+
+  /**
+   * The smallest value ever seen in the stream. NaN if the sketch is empty.
+   */
+  double minValue_;
+
+  /**
+   * The largest value ever seen in the stream. NaN if the sketch is empty.
+   */
+  double maxValue_;
+
+  /**
+   * In the on-heap version, equals combinedBuffer_.length.
+   */
+  int combinedBufferItemCapacity_;
+
+  /**
+   * Number of samples currently in base buffer.
+   *
+   * <p>Count = N % (2*K)
+   */
+  int baseBufferCount_;
+
+  /**
+   * Active levels expressed as a bit pattern.
+   *
+   * <p>Pattern = N / (2 * K)
+   */
+  long bitPattern_;
+
+  /**
+   * This single array contains the base buffer plus all levels some of which may not be used.
+   * A level is of size K and is either full and sorted, or not used. A "not used" buffer may have
+   * garbage. Whether a level buffer used or not is indicated by the bitPattern_.
+   * The base buffer has length 2*K but might not be full and isn't necessarily sorted.
+   * The base buffer precedes the level buffers.
+   */
+  double[] combinedBuffer_;
+
+  /**
+   * The source of randomness of this sketch. If null, ThreadLocalRandom.current() is used, which
+   * is the default and does not contend between threads.
+   */
+  private final SplittableRandom rand_;
+
+  /**
+   * The seed of the source of randomness of the sketches derived from this one, such as copies,
+   * down-sampled sketches and union results. It is drawn once at construction, so that deriving
+   * a sketch neither changes this sketch nor races with other threads that read it.
+   */
+  private final long derivedSeed_;
+
+  private DoublesSketch(final int k, final SplittableRandom rand) {
+    Util.checkK(k);
+    k_ = k;
+    rand_ = rand;
+    derivedSeed_ = (rand == null) ? 0L : rand.nextLong();
+  }
+
+  /**
+   * Obtains a new instance of a DoublesSketch using the DEFAULT_K.
+   * @return a DoublesSketch
+   */
+  public static DoublesSketch newInstance() {
+    return newInstance(PreambleUtil.DEFAULT_K);
+  }
+
+  /**
+   * Obtains a new instance of a DoublesSketch.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @return a DoublesSketch
+   */
+  public static DoublesSketch newInstance(final int k) {
+    return newInstance(k, null);
+  }
+
+  /**
+   * Obtains a new instance of a DoublesSketch with its own seeded source of randomness.
+   * Setting the seed makes the results of the sketch deterministic if the input values are
+   * received in exactly the same order. This is only useful when performing test comparisons,
+   * otherwise is not recommended.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * Must be greater than 2 and less than 65536 and a power of 2.
+   * @param seed the seed of the source of randomness
+   * @return a DoublesSketch
+   */
+  public static DoublesSketch newInstance(final int k, final long seed) {
+    return newInstance(k, new SplittableRandom(seed));
+  }
+
+  /**
+   * Obtains a new instance of a DoublesSketch with the given source of randomness.
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * @param rand the source of randomness. If null, ThreadLocalRandom.current() is used.
+   * @return a DoublesSketch
+   */
+  static DoublesSketch newInstance(final int k, final SplittableRandom rand) {
+    final DoublesSketch qs = new DoublesSketch(k, rand);
+    final int bufAlloc = 2 * Math.min(MIN_K, k); //the min is important
+    qs.n_ = 0;
+    qs.combinedBufferItemCapacity_ = bufAlloc;
+    qs.combinedBuffer_ = new double[bufAlloc];
+    qs.baseBufferCount_ = 0;
+    qs.bitPattern_ = 0;
+    qs.minValue_ = Double.NaN;
+    qs.maxValue_ = Double.NaN;
+    return qs;
+  }
+
+  /**
+   * Heapifies the given srcMem, which must be a Memory image of a DoublesSketch. Both the compact
+   * and the updatable (non-compact) images of sketches-core are accepted.
+   * @param srcMem a Memory image of a sketch.
+   * <a href="{@docRoot}/resources/dictionary.html#mem">See Memory</a>
+   * @return a DoublesSketch on the Java heap.
+   */
+  public static DoublesSketch heapify(final Memory srcMem) {
+    final long memCapBytes = srcMem.getCapacity();
+    if (memCapBytes < 8) {
+      throw new SketchesArgumentException("Memory too small: " + memCapBytes);
+    }
+
+    final int preambleLongs = extractPreLongs(srcMem);
+    final int serVer = extractSerVer(srcMem);
+    final int familyID = extractFamilyID(srcMem);
+    final int flags = extractFlags(srcMem);
+    final int k = extractK(srcMem);
+
+    if (serVer != DOUBLES_SER_VER) {
+      throw new SketchesArgumentException("Possible corruption: Invalid serialization version: " + serVer);
+    }
+
+    final boolean empty = Util.checkPreLongsFlagsCap(preambleLongs, flags, memCapBytes);
+    Util.checkFamilyID(familyID);
+
+    final DoublesSketch qs = newInstance(k); //checks k
+    if (empty) { return qs; }
+
+    //Not empty, must have valid preamble + min, max
+    final long n = extractN(srcMem);
+    final boolean srcIsCompact = Util.checkIsCompactMemory(srcMem);
+    final long memBytesNeeded = srcIsCompact
+        ? getCompactStorageBytes(k, n)
+        : getUpdatableStorageBytes(k, n);
+    if (memCapBytes < memBytesNeeded) {
+      throw new SketchesArgumentException(
+          "Possible corruption: Memory capacity too small: " + memCapBytes + " < " + memBytesNeeded);
+    }
+
+    //set class members
+    qs.n_ = n;
+    qs.combinedBufferItemCapacity_ = Util.computeCombinedBufferItemCapacity(k, n);
+    qs.baseBufferCount_ = computeBaseBufferItems(k, n);
+    qs.bitPattern_ = computeBitPattern(k, n);
+    qs.combinedBuffer_ = new double[qs.combinedBufferItemCapacity_];
+    qs.minValue_ = extractMinDouble(srcMem);
+    qs.maxValue_ = extractMaxDouble(srcMem);
+    qs.srcMemoryToCombinedBuffer(srcMem, srcIsCompact);
+    return qs;
+  }
+
+  /**
+   * Returns a copy of the given sketch
+   * @param sketch the given sketch
+   * @return a copy of the given sketch
+   */
+  static DoublesSketch copy(final DoublesSketch sketch) {
+    final DoublesSketch qsCopy = DoublesSketch.newInstance(sketch.k_, sketch.derivedRandom());
+    qsCopy.n_ = sketch.n_;
+    qsCopy.minValue_ = sketch.getMinValue();
+    qsCopy.maxValue_ = sketch.getMaxValue();
+    qsCopy.combinedBufferItemCapacity_ = sketch.getCombinedBufferAllocatedCount();
+    qsCopy.baseBufferCount_ = sketch.getBaseBufferCount();
+    qsCopy.bitPattern_ = sketch.getBitPattern();
+    final double[] combBuf = sketch.getCombinedBuffer();
+    qsCopy.combinedBuffer_ = Arrays.copyOf(combBuf, combBuf.length);
+    return qsCopy;
+  }
+
+  /**
+   * Updates this sketch with the given double data item
+   * @param dataItem an item from a stream of items. NaNs are ignored.
+   */
+  public void update(final double dataItem) {
+    // this method only uses the base buffer part of the combined buffer
+
+    if (Double.isNaN(dataItem)) { return; }
+    if (n_ == 0) {
+      maxValue_ = dataItem;
+      minValue_ = dataItem;
+    } else {
+      if (dataItem > maxValue_) { maxValue_ = dataItem; }
+      if (dataItem < minValue_) { minValue_ = dataItem; }
+    }
+
+    if (baseBufferCount_ + 1 > combinedBufferItemCapacity_) {
+      DoublesSketch.growBaseBuffer(this);
+    }
+    combinedBuffer_[baseBufferCount_++] = dataItem;
+    n_++;
+    if (baseBufferCount_ == 2 * k_) {
+      DoublesUtil.processFullBaseBuffer(this);
+    }
+  }
+
+  /**
+   * This returns an approximation to the value of the data item
+   * that would be preceded by the given fraction of a hypothetical sorted
+   * version of the input stream so far.
+   *
+   * <p>We note that this method has a fairly large overhead (microseconds instead of nanoseconds)
+   * so it should not be called multiple times to get different quantiles from the same
+   * sketch. Instead use getQuantiles(). which pays the overhead only once.
+   *
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * These are also called normalized ranks or fractional ranks.
+   * If fraction = 0.0, the true minimum value of the stream is returned.
+   * If fraction = 1.0, the true maximum value of the stream is returned.
+   *
+   * @return the approximation to the value at the above fraction.
+   * Returns NaN if the sketch is empty.
+   */
+  public double getQuantile(final double fraction) {
+    if ((fraction < 0.0) || (fraction > 1.0)) {
+      throw new SketchesArgumentException("Fraction cannot be less than zero or greater than 1.0");
+    }
+    if      (fraction == 0.0) { return minValue_; }
+    else if (fraction == 1.0) { return maxValue_; }
+    else {
+      final DoublesAuxiliary aux = constructAuxiliary();
+      return aux.getQuantile(fraction);
+    }
+  }
+
+  /**
+   * This is a more efficient multiple-query version of getQuantile().
+   *
+   * <p>This returns an array that could have been generated by using getQuantile() with many different
+   * fractional ranks, but would be very inefficient.
+   * This method incurs the internal set-up overhead once and obtains multiple quantile values in
+   * a single query. It is strongly recommend that this method be used instead of multiple calls
+   * to getQuantile().
+   *
+   * @param fractions given array of fractional positions in the hypothetical sorted stream.
+   * These are also called normalized ranks or fractional ranks.
+   * These fractions must be monotonic, in increasing order and in the interval
+   * [0.0, 1.0] inclusive.
+   *
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array. Returns null if sketch is empty
+   */
+  public double[] getQuantiles(final double[] fractions) {
+    if (isEmpty()) { return null; }
+    final double[] answers = new double[fractions.length];
+    getQuantiles(fractions, answers);
+    return answers;
+  }
+
+  /**
+   * This is the allocation-free version of {@link #getQuantiles(double[])}, which writes the
+   * answers into the given array. Because the fractions are sorted, all of them are answered in a
+   * single forward sweep over the sorted view of the sketch.
+   *
+   * @param fractions given array of fractional positions in the hypothetical sorted stream.
+   * These fractions must be monotonic, in increasing order and in the interval
+   * [0.0, 1.0] inclusive.
+   * @param out the array that receives the answers in the same order as the given fractions.
+   * It must be at least as long as the fractions array.
+   * If the sketch is empty it receives NaNs.
+   */
+  public void getQuantiles(final double[] fractions, final double[] out) {
+    Util.validateFractions(fractions);
+    Util.checkOutLength(out.length, fractions.length);
+    if (isEmpty()) {
+      Arrays.fill(out, 0, fractions.length, Double.NaN);
+      return;
+    }
+    DoublesAuxiliary aux = null;
+    int index = 0;
+    for (int i = 0; i < fractions.length; i++) {
+      final double fraction = fractions[i];
+      if      (fraction == 0.0) { out[i] = minValue_; }
+      else if (fraction == 1.0) { out[i] = maxValue_; }
+      else {
+        if (aux == null) {
+          aux = this.constructAuxiliary();
+        }
+        index = aux.quantileIndexFrom(fraction, index);
+        out[i] = aux.auxSamplesArr_[index];
+      }
+    }
+  }
+
+  /**
+   * This is also a more efficient multiple-query version of getQuantile() and allows the caller to
+   * specify the number of evenly spaced fractional ranks.
+   *
+   * @param evenlySpaced an integer that specifies the number of evenly spaced fractional ranks.
+   * This must be a positive integer greater than 0. A value of 1 will return the min value.
+   * A value of 2 will return the min and the max value. A value of 3 will return the min,
+   * the median and the max value, etc.
+   *
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array.
+   */
+  public double[] getQuantiles(final int evenlySpaced) {
+    if (isEmpty()) { return null; }
+    return getQuantiles(getEvenlySpaced(evenlySpaced));
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function (PMF) of the input stream
+   * given a set of splitPoints (values).
+   *
+   * <p>The resulting approximations have a probabilistic guarantee that be obtained from the
+   * getNormalizedRankError() function.
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing double values
+   * that divide the real number line into <i>m+1</i> consecutive disjoint intervals.
+   *
+   * @return an array of m+1 doubles each of which is an approximation
+   * to the fraction of the input stream values that fell into one of those intervals.
+   * The definition of an "interval" is inclusive of the left splitPoint and exclusive of the right
+   * splitPoint.
+   */
+  public double[] getPMF(final double[] splitPoints) {
+    if (isEmpty()) { return null; }
+    return DoublesPmfCdfImpl.getPMFOrCDF(this, splitPoints, false);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function (CDF), which is the
+   * cumulative analog of the PMF, of the input stream given a set of splitPoints (values).
+   *
+   * <p>More specifically, the value at array position j of the CDF is the
+   * sum of the values in positions 0 through j of the PMF.
+   *
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing double values
+   * that divide the real number line into <i>m+1</i> consecutive disjoint intervals.
+   *
+   * @return an approximation to the CDF of the input stream given the splitPoints.
+   */
+  public double[] getCDF(final double[] splitPoints) {
+    if (isEmpty()) { return null; }
+    return DoublesPmfCdfImpl.getPMFOrCDF(this, splitPoints, true);
+  }
+
+  /**
+   * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1 inclusive.
+   * @param value to be ranked
+   * @return an approximate rank of the given value
+   */
+  public double getRank(final double value) {
+    if (isEmpty()) { return Double.NaN; }
+    return getCDF(new double[] {value})[0];
+  }
+
+  /**
+   * Returns the configured value of K
+   * @return the configured value of K
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the min value of the stream
+   * @return the min value of the stream. NaN if the sketch is empty.
+   */
+  public double getMinValue() {
+    return minValue_;
+  }
+
+  /**
+   * Returns the max value of the stream
+   * @return the max value of the stream. NaN if the sketch is empty.
+   */
+  public double getMaxValue() {
+    return maxValue_;
+  }
+
+  /**
+   * Returns the length of the input stream so far.
+   * @return the length of the input stream so far
+   */
+  public long getN() {
+    return n_;
+  }
+
+  /**
+   * Get the rank error normalized as a fraction between zero and one.
+   * The error of this sketch is specified as a fraction of the normalized rank of the hypothetical
+   * sorted stream of items presented to the sketch.
+   *
+   * <p>See {@link ItemsSketch#getNormalizedRankError()}, which has the same meaning for this
+   * sketch.</p>
+   *
+   * @return the rank error normalized as a fraction between zero and one.
+   */
+  public double getNormalizedRankError() {
+    return getNormalizedRankError(getK());
+  }
+
+  /**
+   * Static method version of {@link #getNormalizedRankError()}
+   * @param k the configuration parameter of a DoublesSketch
+   * @return the rank error normalized as a fraction between zero and one.
+   */
+  public static double getNormalizedRankError(final int k) {
+    return Util.EpsilonFromK.getAdjustedEpsilon(k);
+  }
+
+  /**
+   * Returns true if this sketch is empty
+   * @return true if this sketch is empty
+   */
+  public boolean isEmpty() {
+   return getN() == 0;
+  }
+
+  @SuppressWarnings("static-method")
+  public boolean isDirect() {
+    return false;
+  }
+
+  public boolean isEstimationMode() {
+    return getN() >= 2L * k_;
+  }
+
+  /**
+   * Resets this sketch to a virgin state, but retains the original value of k.
+   */
+  public void reset() {
+    n_ = 0;
+    combinedBufferItemCapacity_ = 2 * Math.min(MIN_K, k_); //the min is important
+    combinedBuffer_ = new double[combinedBufferItemCapacity_];
+    baseBufferCount_ = 0;
+    bitPattern_ = 0;
+    minValue_ = Double.NaN;
+    maxValue_ = Double.NaN;
+  }
+
+  /**
+   * Serialize this sketch to a byte array in the compact, ordered form.
+   * @return byte array of this sketch
+   */
+  public byte[] toByteArray() {
+    return toByteArray(true);
+  }
+
+  /**
+   * Serialize this sketch to a byte array form.
+   * @param compact if true the sketch will be serialized in the compact, ordered form.
+   * Otherwise it will be serialized in the updatable form with all levels present.
+   * @return this sketch in a byte array form.
+   */
+  public byte[] toByteArray(final boolean compact) {
+    return DoublesByteArrayImpl.toByteArray(this, compact, compact);
+  }
+
+  /**
+   * Returns summary information about this sketch.
+   */
+  @Override
+  public String toString() {
+    return toString(true, false);
+  }
+
+  /**
+   * Returns summary information about this sketch. Used for debugging.
+   * @param sketchSummary if true includes sketch summary
+   * @param dataDetail if true includes data detail
+   * @return summary information about the sketch.
+   */
+  public String toString(final boolean sketchSummary, final boolean dataDetail) {
+    return DoublesUtil.toString(sketchSummary, dataDetail, this);
+  }
+
+  /**
+   * From an existing sketch, this creates a new sketch that can have a smaller value of K.
+   * The original sketch is not modified.
+   *
+   * @param newK the new value of K that must be smaller than current value of K.
+   * It is required that this.getK() = newK * 2^(nonnegative integer).
+   * @return the new sketch.
+   */
+  public DoublesSketch downSample(final int newK) {
+    final DoublesSketch newSketch = DoublesSketch.newInstance(newK, derivedRandom());
+    DoublesMergeImpl.downSamplingMergeInto(this, newSketch);
+    return newSketch;
+  }
+
+  /**
+   * Computes the number of retained entries (samples) in the sketch
+   * @return the number of retained entries (samples) in the sketch
+   */
+  public int getRetainedItems() {
+    return Util.computeRetainedItems(getK(), getN());
+  }
+
+  /**
+   * Returns the number of bytes required to store this sketch in compact form.
+   * @return the number of bytes required to store this sketch in compact form.
+   */
+  public int getCompactStorageBytes() {
+    return getCompactStorageBytes(getK(), getN());
+  }
+
+  /**
+   * Returns the number of bytes required to store a sketch with the given <i>k</i> and <i>n</i>
+   * in compact form.
+   * @param k the size configuration parameter for the sketch
+   * @param n the number of items input into the sketch
+   * @return the number of bytes required to store this sketch in compact form.
+   */
+  public static int getCompactStorageBytes(final int k, final long n) {
+    if (n == 0) { return 8; }
+    final int metaPreLongs = Family.QUANTILES.getMaxPreLongs() + 2; //plus min, max
+    return (metaPreLongs + Util.computeRetainedItems(k, n)) << 3;
+  }
+
+  /**
+   * Returns the number of bytes required to store this sketch in updatable form.
+   * @return the number of bytes required to store this sketch in updatable form.
+   */
+  public int getUpdatableStorageBytes() {
+    return getUpdatableStorageBytes(getK(), getN());
+  }
+
+  /**
+   * Returns the number of bytes required to store a sketch with the given <i>k</i> and <i>n</i>
+   * in updatable form.
+   * @param k the size configuration parameter for the sketch
+   * @param n the number of items input into the sketch
+   * @return the number of bytes required to store this sketch in updatable form.
+   */
+  public static int getUpdatableStorageBytes(final int k, final long n) {
+    if (n == 0) { return 8; }
+    final int metaPreLongs = Family.QUANTILES.getMaxPreLongs() + 2; //plus min, max
+    return (metaPreLongs + Util.computeCombinedBufferItemCapacity(k, n)) << 3;
+  }
+
+  /**
+   * Puts the current sketch into the given Memory in compact form if there is sufficient space.
+   * Otherwise, throws an error.
+   *
+   * @param dstMem the given memory.
+   */
+  public void putMemory(final WritableMemory dstMem) {
+    putMemory(dstMem, true);
+  }
+
+  /**
+   * Puts the current sketch into the given Memory if there is sufficient space.
+   * Otherwise, throws an error.
+   *
+   * @param dstMem the given memory.
+   * @param compact if true, compacts and sorts the base buffer, which optimizes merge
+   * performance at the cost of slightly increased serialization time.
+   */
+  public void putMemory(final WritableMemory dstMem, final boolean compact) {
+    final byte[] byteArr = toByteArray(compact);
+    final long memCap = dstMem.getCapacity();
+    if (memCap < byteArr.length) {
+      throw new SketchesArgumentException(
+          "Destination Memory not large enough: " + memCap + " < " + byteArr.length);
+    }
+    dstMem.putByteArray(0, byteArr, 0, byteArr.length);
+  }
+
+  // Restricted
+
+  /**
+   * Returns the base buffer count
+   * @return the base buffer count
+   */
+  int getBaseBufferCount() {
+    return baseBufferCount_;
+  }
+
+  /**
+   * Returns the allocated count for the combined base buffer
+   * @return the allocated count for the combined base buffer
+   */
+  int getCombinedBufferAllocatedCount() {
+    return combinedBufferItemCapacity_;
+  }
+
+  /**
+   * Returns the bit pattern for valid log levels
+   * @return the bit pattern for valid log levels
+   */
+  long getBitPattern() {
+    return bitPattern_;
+  }
+
+  /**
+   * Returns the combined buffer reference
+   * @return the combined buffer reference
+   */
+  double[] getCombinedBuffer() {
+    return combinedBuffer_;
+  }
+
+  /**
+   * Returns the source of randomness of a sketch derived from this one. This sketch is not changed.
+   * @return null if this sketch uses ThreadLocalRandom, otherwise a new source with the seed that
+   * was drawn for derived sketches when this sketch was constructed.
+   */
+  SplittableRandom derivedRandom() {
+    return (rand_ == null) ? null : new SplittableRandom(derivedSeed_);
+  }
+
+  /**
+   * Returns a pseudorandom int between zero (inclusive) and the given bound (exclusive) from the
+   * source of randomness of this sketch.
+   * @param bound the upper bound (exclusive). Must be positive.
+   * @return a pseudorandom int
+   */
+  int nextRandomInt(final int bound) {
+    return (rand_ == null) ? ThreadLocalRandom.current().nextInt(bound) : rand_.nextInt(bound);
+  }
+
+  /**
+   * Returns a pseudorandom boolean from the source of randomness of this sketch.
+   * @return a pseudorandom boolean
+   */
+  boolean nextRandomBoolean() {
+    return (rand_ == null) ? ThreadLocalRandom.current().nextBoolean() : rand_.nextBoolean();
+  }
+
+  /**
+   * Loads the Combined Buffer from the given source Memory.
+   * The Combined Buffer is always in non-compact form and must be pre-allocated.
+   * @param srcMem the given source Memory
+   * @param srcIsCompact true if the given source Memory is in compact form
+   */
+  private void srcMemoryToCombinedBuffer(final Memory srcMem, final boolean srcIsCompact) {
+    final int bbCnt = baseBufferCount_;
+    final int k = k_;
+
+    if (srcIsCompact) {
+      //Load base buffer
+      srcMem.getDoubleArray(COMBINED_BUFFER, combinedBuffer_, 0, bbCnt);
+
+      //Load levels from compact srcMem
+      long bits = bitPattern_;
+      if (bits > 0) {
+        long memOffsetBytes = COMBINED_BUFFER + (bbCnt << 3);
+        for (int level = 0; bits != 0L; level++, bits >>>= 1) {
+          if ((bits & 1L) > 0L) {
+            srcMem.getDoubleArray(memOffsetBytes, combinedBuffer_, (2 + level) * k, k);
+            memOffsetBytes += k << 3;
+          }
+        }
+      }
+    } else { //srcMem is in updatable form, which has the same layout as the combined buffer
+      final int levels = Util.computeNumLevelsNeeded(k, n_);
+      final int totItems = (levels == 0) ? bbCnt : (2 + levels) * k;
+      srcMem.getDoubleArray(COMBINED_BUFFER, combinedBuffer_, 0, totItems);
+    }
+  }
+
+  /**
+   * Returns the Auxiliary data structure which is only used for getQuantile() and getQuantiles()
+   * queries.
+   * @return the Auxiliary data structure
+   */
+  private DoublesAuxiliary constructAuxiliary() {
+    return new DoublesAuxiliary(this);
+  }
+
+  private static double[] getEvenlySpaced(final int n) {
+    if (n <= 0) {
+      throw new SketchesArgumentException("n must be > zero.");
+    }
+    final double[] fractions = new double[n];
+    fractions[0] = 0.0;
+    for (int i = 1; i < n; i++) {
+      fractions[i] = (double) i / (n - 1);
+    }
+    if (n > 1) {
+      fractions[n - 1] = 1.0;
+    }
+    return fractions;
+  }
+
+  private static void growBaseBuffer(final DoublesSketch sketch) {
+    final double[] baseBuffer = sketch.getCombinedBuffer();
+    final int oldSize = sketch.getCombinedBufferAllocatedCount();
+    final int k = sketch.getK();
+    assert oldSize < 2 * k;
+    final int newSize = Math.max(Math.min(2 * k, 2 * oldSize), 1);
+    sketch.combinedBufferItemCapacity_ = newSize;
+    sketch.combinedBuffer_ = Arrays.copyOf(baseBuffer, newSize);
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+
+/**
+ * Utility class for the double quantiles sketch.
+ *
+ * @author Lee Rhodes
+ * @author Jon Malkin
+ */
+final class DoublesUtil {
+
+  private DoublesUtil() {}
+
+  /**
+   * Called when the base buffer has just acquired 2*k elements.
+   * @param sketch the given quantiles sketch
+   */
+  static void processFullBaseBuffer(final DoublesSketch sketch) {
+    final int bbCount = sketch.getBaseBufferCount();
+    final long n = sketch.getN();
+    assert bbCount == 2 * sketch.getK(); // internal consistency check
+
+    // make sure there will be enough levels for the propagation
+    DoublesUpdateImpl.maybeGrowLevels(sketch, n); // important: n_ was incremented by update before we got here
+
+    // this aliasing is a bit dangerous; notice that we did it after the possible resizing
+    final double[] baseBuffer = sketch.getCombinedBuffer();
+
+    Arrays.sort(baseBuffer, 0, bbCount);
+    DoublesUpdateImpl.inPlacePropagateCarry(
+        0,
+        null, 0,  // this null is okay
+        baseBuffer, 0,
+        true, sketch);
+    sketch.baseBufferCount_ = 0;
+    assert n / (2 * sketch.getK()) == sketch.getBitPattern();  // internal consistency check
+  }
+
+  static String toString(final boolean sketchSummary, final boolean dataDetail,
+      final DoublesSketch sketch) {
+    final StringBuilder sb = new StringBuilder();
+    final String thisSimpleName = sketch.getClass().getSimpleName();
+    final int bbCount = sketch.getBaseBufferCount();
+    final int combAllocCount = sketch.getCombinedBufferAllocatedCount();
+    final int k = sketch.getK();
+    final long bitPattern = sketch.getBitPattern();
+
+    if (dataDetail) {
+      sb.append(Util.LS).append("### ").append(thisSimpleName).append(" DATA DETAIL: ").append(Util.LS);
+      final double[] items  = sketch.getCombinedBuffer();
+
+      //output the base buffer
+      sb.append("   BaseBuffer   :");
+      if (bbCount > 0) {
+        for (int i = 0; i < bbCount; i++) {
+          sb.append(' ').append(items[i]);
+        }
+      }
+      sb.append(Util.LS);
+      //output all the levels
+      final int numItems = combAllocCount;
+      if (numItems > 2 * k) {
+        sb.append("   Valid | Level");
+        for (int j = 2 * k; j < numItems; j++) { //output level data starting at 2K
+          if (j % k == 0) { //start output of new level
+            final int levelNum = j > 2 * k ? (j - 2 * k) / k : 0;
+            final String validLvl = ((1L << levelNum) & bitPattern) > 0 ? "    T  " : "    F  ";
+            final String lvl = String.format("%5d", levelNum);
+            sb.append(Util.LS).append("   ").append(validLvl).append(" ").append(lvl).append(":");
+          }
+          sb.append(' ').append(items[j]);
+        }
+        sb.append(Util.LS);
+      }
+      sb.append("### END DATA DETAIL").append(Util.LS);
+    }
+
+    if (sketchSummary) {
+      final long n = sketch.getN();
+      final String nStr = String.format("%,d", n);
+      final int numLevels = Util.computeNumLevelsNeeded(k, n);
+      final String bufCntStr = String.format("%,d", combAllocCount);
+      final int preBytes = sketch.isEmpty() ? Long.BYTES : 2 * Long.BYTES;
+      final double eps = Util.EpsilonFromK.getAdjustedEpsilon(k);
+      final String epsPct = String.format("%.3f%%", eps * 100.0);
+      final int numSamples = sketch.getRetainedItems();
+      final String numSampStr = String.format("%,d", numSamples);
+      sb.append(Util.LS).append("### ").append(thisSimpleName).append(" SUMMARY: ").append(Util.LS);
+      sb.append("   K                            : ").append(k).append(Util.LS);
+      sb.append("   N                            : ").append(nStr).append(Util.LS);
+      sb.append("   BaseBufferCount              : ").append(bbCount).append(Util.LS);
+      sb.append("   CombinedBufferAllocatedCount : ").append(bufCntStr).append(Util.LS);
+      sb.append("   Total Levels                 : ").append(numLevels).append(Util.LS);
+      sb.append("   Valid Levels                 : ").append(Util.computeValidLevels(bitPattern))
+        .append(Util.LS);
+      sb.append("   Level Bit Pattern            : ").append(Long.toBinaryString(bitPattern))
+        .append(Util.LS);
+      sb.append("   Valid Samples                : ").append(numSampStr).append(Util.LS);
+      sb.append("   Preamble Bytes               : ").append(preBytes).append(Util.LS);
+      sb.append("   Normalized Rank Error        : ").append(epsPct).append(Util.LS);
+      sb.append("   Min Value                    : ").append(sketch.getMinValue()).append(Util.LS);
+      sb.append("   Max Value                    : ").append(sketch.getMaxValue()).append(Util.LS);
+      sb.append("### END SKETCH SUMMARY").append(Util.LS);
+    }
+    return sb.toString();
+  }
+
+}
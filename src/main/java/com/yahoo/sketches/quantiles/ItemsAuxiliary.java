@@ -5,8 +5,8 @@
 
 package com.yahoo.sketches.quantiles;
 
-import java.util.Arrays;
 import java.util.Comparator;
+import java.util.function.ToLongFunction;
 
 /**
  * Auxiliary data structure for answering generic quantile queries
@@ -18,6 +18,7 @@ final class ItemsAuxiliary<T> {
   final long auxN_;
   final Object[] auxSamplesArr_; //array of size samples
   final long[] auxCumWtsArr_;
+  final long[] auxKeysArr_; //keys of the samples of a keyed sketch, otherwise null
 
   /**
    * Constructs the Auxiliary structure from the ItemsSketch
@@ -34,15 +35,22 @@ final class ItemsAuxiliary<T> {
 
     final Object[] itemsArr = new Object[numSamples];
     final long[] cumWtsArr = new long[numSamples + 1]; /* the extra slot is very important */
+    final long[] keysArr = qs.isKeyed() ? new long[numSamples] : null;
 
     // Populate from ItemsSketch:
     // copy over the "levels" and then the base buffer, all with appropriate weights
     populateFromItemsSketch(k, n, bitPattern, (T[]) combinedBuffer, baseBufferCount,
-        numSamples, (T[]) itemsArr, cumWtsArr, qs.getComparator());
+        numSamples, (T[]) itemsArr, cumWtsArr, keysArr, qs);
 
-    // Sort the first "numSamples" slots of the two arrays in tandem,
+    // Sort the first "numSamples" slots of the arrays in tandem,
     // taking advantage of the already sorted blocks of length k
-    ItemsMergeImpl.blockyTandemMergeSort((T[]) itemsArr, cumWtsArr, numSamples, k, qs.getComparator());
+    if (keysArr != null) {
+      ItemsKeyedImpl.blockyTandemMergeSort(keysArr, itemsArr, cumWtsArr, numSamples, k,
+          qs.forkJoinPool_, Util.MIN_PARALLEL_ITEMS);
+    } else {
+      ItemsMergeImpl.blockyTandemMergeSort((T[]) itemsArr, cumWtsArr, numSamples, k,
+          qs.getComparator(), qs.forkJoinPool_, Util.MIN_PARALLEL_ITEMS);
+    }
 
     // convert the item weights into totals of the weights preceding each item
     long subtot = 0;
@@ -57,6 +65,7 @@ final class ItemsAuxiliary<T> {
     auxN_ = n;
     auxSamplesArr_ = itemsArr;
     auxCumWtsArr_ = cumWtsArr;
+    auxKeysArr_ = keysArr;
   }
 
   /**
@@ -104,6 +113,37 @@ final class ItemsAuxiliary<T> {
     return (T) this.auxSamplesArr_[index];
   }
 
+  /**
+   * Returns the total weight of the samples less than the given value, which is the unnormalized
+   * rank of the value, with a single binary search. This equals the count that the histogram of
+   * getCDF() finds for the value.
+   * @param value the given value, which must not be null
+   * @param comparator the comparator of the sketch
+   * @param keyFunction the key function of a keyed sketch, otherwise null
+   * @return the total weight of the samples less than the given value
+   */
+  @SuppressWarnings("unchecked")
+  long weightBelow(final T value, final Comparator<? super T> comparator,
+      final ToLongFunction<? super T> keyFunction) {
+    final int numSamples = auxSamplesArr_.length;
+    final int index = (auxKeysArr_ != null)
+        ? ItemsPmfCdfImpl.countBelow(auxKeysArr_, 0, numSamples, keyFunction.applyAsLong(value))
+        : ItemsPmfCdfImpl.countBelow((T[]) auxSamplesArr_, 0, numSamples, value, comparator);
+    return auxCumWtsArr_[index];
+  }
+
+  /**
+   * Returns the index of the sample that answers the given phi, searching forward from the given
+   * index. See {@link #chunkContainingPosFrom(long[], long, int)}.
+   * @param phi the fractional position where: 0 &le; &#966; &le; 1.0.
+   * @param fromIndex the answer to a smaller phi, or zero
+   * @return the index into auxSamplesArr_ of the estimated value given phi
+   */
+  int quantileIndexFrom(final double phi, final int fromIndex) {
+    assert auxN_ > 0;
+    return chunkContainingPosFrom(auxCumWtsArr_, posOfPhi(phi, auxN_), fromIndex);
+  }
+
   /**
    * Populate the arrays and registers from an ItemsSketch
    * @param k K value of sketch
@@ -114,11 +154,14 @@ final class ItemsAuxiliary<T> {
    * @param numSamples Total samples in the sketch
    * @param itemsArr the consolidated array of all items from the sketch populated here
    * @param cumWtsArr the cumulative weights for each item from the sketch populated here
+   * @param keysArr the keys of each item from a keyed sketch populated here, otherwise null
+   * @param qs the sketch, which provides the sort for the items from the base buffer
    */
   private final static <T> void populateFromItemsSketch(
       final int k, final long n, final long bitPattern, final T[] combinedBuffer,
       final int baseBufferCount, final int numSamples, final T[] itemsArr, final long[] cumWtsArr,
-      final Comparator<? super T> comparator) {
+      final long[] keysArr, final ItemsSketch<T> qs) {
+    final long[] combinedKeys = qs.combinedKeys_;
     long weight = 1;
     int nxt = 0;
     long bits = bitPattern;
@@ -127,6 +170,9 @@ final class ItemsAuxiliary<T> {
       weight *= 2;
       if ((bits & 1L) > 0L) {
         final int offset = (2 + lvl) * k;
+        if (keysArr != null) {
+          System.arraycopy(combinedKeys, offset, keysArr, nxt, k);
+        }
         for (int i = 0; i < k; i++) {
           itemsArr[nxt] = combinedBuffer[i + offset];
           cumWtsArr[nxt] = weight;
@@ -139,6 +185,9 @@ final class ItemsAuxiliary<T> {
     final int startOfBaseBufferBlock = nxt;
 
     // Copy BaseBuffer over, along with weight = 1
+    if (keysArr != null) {
+      System.arraycopy(combinedKeys, 0, keysArr, nxt, baseBufferCount);
+    }
     for (int i = 0; i < baseBufferCount; i++) {
       itemsArr[nxt] = combinedBuffer[i];
       cumWtsArr[nxt] = weight;
@@ -148,7 +197,12 @@ final class ItemsAuxiliary<T> {
 
     // Must sort the items that came from the base buffer.
     // Don't need to sort the corresponding weights because they are all the same.
-    Arrays.sort(itemsArr, startOfBaseBufferBlock, numSamples, comparator);
+    if (keysArr != null) {
+      RadixBaseBufferSorter.sortByKeys(keysArr, startOfBaseBufferBlock, itemsArr,
+          startOfBaseBufferBlock, numSamples - startOfBaseBufferBlock);
+    } else {
+      qs.sortBaseBuffer(itemsArr, startOfBaseBufferBlock, numSamples);
+    }
     cumWtsArr[numSamples] = 0;
   }
 
@@ -175,6 +229,41 @@ final class ItemsAuxiliary<T> {
     return searchForChunkContainingPos(arr, pos, l, r);
   }
 
+  /**
+   * Returns the index of the chunk containing the given position, searching forward from the
+   * given index. This answers a sorted sequence of positional queries in a single forward sweep:
+   * each search gallops from the previous answer with steps of 1, 2, 4, ... and then narrows down
+   * with a binary search, so the cost is logarithmic in the distance from the previous answer.
+   * Also used by DoublesAuxiliary and LongsAuxiliary.
+   * @param arr the cumulative weights, with the extra position
+   * @param pos the position
+   * @param fromIndex an index whose chunk starts at or before the position, such as the previous
+   * answer or zero.
+   * @return the index of the chunk containing the position
+   */
+  static int chunkContainingPosFrom(final long[] arr, final long pos, final int fromIndex) {
+    final int nominalLength = arr.length - 1; /* remember, arr contains an "extra" position */
+    assert 0 <= pos;
+    assert pos < arr[nominalLength];
+    assert arr[fromIndex] <= pos;
+    int l = fromIndex;
+    int step = 1;
+    int r = l + step;
+    while ((r < nominalLength) && (arr[r] <= pos)) {
+      l = r;
+      step <<= 1;
+      r = l + step;
+    }
+    if (r > nominalLength) { r = nominalLength; }
+    // same invariants as searchForChunkContainingPos: arr[l] <= pos < arr[r]
+    while ((l + 1) < r) {
+      final int m = (l + r) >>> 1;
+      if (arr[m] <= pos) { l = m; }
+      else { r = m; }
+    }
+    return l;
+  }
+
   // Let m_i denote the minimum position of the length=n "full" sorted sequence
   //   that is represented in slot i of the length = n "chunked" sorted sequence.
   //
@@ -15,6 +15,9 @@ import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
 import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
 import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Array;
 import java.util.Arrays;
 
@@ -22,6 +25,7 @@ import com.yahoo.memory.WritableMemory;
 
 import com.yahoo.sketches.ArrayOfItemsSerDe;
 import com.yahoo.sketches.Family;
+import com.yahoo.sketches.SketchesArgumentException;
 
 /**
  * The items to byte array algorithms.
@@ -67,6 +71,156 @@ final class ItemsByteArrayImpl {
     return outByteArr;
   }
 
+  /**
+   * Returns the number of bytes of the compact image of the given sketch. Unless the serDe
+   * serializes its items independently, this serializes the sketch with toByteArray().
+   * @param sketch the given sketch
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @return the number of bytes of the compact image of the given sketch
+   */
+  static <T> int getSerializedSizeBytes(final ItemsSketch<T> sketch,
+      final ArrayOfItemsSerDe<T> serDe) {
+    if (sketch.isEmpty()) { return Long.BYTES; }
+    if (!serDe.serializesItemsIndependently()) {
+      return toByteArray(sketch, false, serDe).length;
+    }
+    final int[] sizeBytes = {2 * Long.BYTES};
+    forEachSegment(sketch, false, (items, offset, length) ->
+        sizeBytes[0] += serDe.getSerializedSizeBytes(items, offset, length));
+    return sizeBytes[0];
+  }
+
+  /**
+   * Writes the compact image of the given sketch, which is the same as that of toByteArray(),
+   * into the given WritableMemory from offset zero, if there is sufficient space.
+   * Otherwise, throws an error.
+   *
+   * <p>If the serDe serializes its items independently, the items are serialized straight from
+   * the buffer of the sketch, without copying them into an items array or a byte array first.
+   * Otherwise the result of toByteArray() is copied into the WritableMemory.</p>
+   * @param sketch the given sketch
+   * @param ordered true if the base buffer is to be written in sorted order
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @param dstMem the destination WritableMemory
+   * @return the number of bytes written
+   */
+  static <T> int putMemory(final ItemsSketch<T> sketch, final boolean ordered,
+      final ArrayOfItemsSerDe<T> serDe, final WritableMemory dstMem) {
+    if (!sketch.isEmpty() && !serDe.serializesItemsIndependently()) {
+      final byte[] byteArr = toByteArray(sketch, ordered, serDe);
+      checkCapacity(dstMem.getCapacity(), byteArr.length);
+      dstMem.putByteArray(0, byteArr, 0, byteArr.length);
+      return byteArr.length;
+    }
+    final int numBytes = getSerializedSizeBytes(sketch, serDe);
+    checkCapacity(dstMem.getCapacity(), numBytes);
+    final int preLongs = sketch.isEmpty() ? 1 : 2;
+    dstMem.clear(0, preLongs << 3);
+    insertPreamble(sketch, ordered, preLongs, dstMem);
+    if (preLongs == 1) { return numBytes; }
+    final long[] offsetBytes = {preLongs << 3};
+    forEachSegment(sketch, ordered, (items, offset, length) ->
+        offsetBytes[0] += serDe.serializeToMemory(items, offset, length, dstMem, offsetBytes[0]));
+    return numBytes;
+  }
+
+  private static void checkCapacity(final long memCap, final int numBytes) {
+    if (memCap < numBytes) {
+      throw new SketchesArgumentException(
+          "Destination Memory not large enough: " + memCap + " < " + numBytes);
+    }
+  }
+
+  /**
+   * Writes the compact image of the given sketch, which is the same as that of toByteArray(),
+   * to the given OutputStream. If the serDe serializes its items independently, each range of
+   * items is serialized into a staging array that is reused for all ranges, so it is no larger
+   * than the serialized form of the largest range. Otherwise the result of toByteArray() is
+   * written.
+   * @param sketch the given sketch
+   * @param ordered true if the base buffer is to be written in sorted order
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @param out the destination OutputStream
+   * @throws IOException if the OutputStream throws it
+   */
+  static <T> void writeTo(final ItemsSketch<T> sketch, final boolean ordered,
+      final ArrayOfItemsSerDe<T> serDe, final OutputStream out) throws IOException {
+    if (!sketch.isEmpty() && !serDe.serializesItemsIndependently()) {
+      out.write(toByteArray(sketch, ordered, serDe));
+      return;
+    }
+    final int preLongs = sketch.isEmpty() ? 1 : 2;
+    final byte[][] staging = {new byte[preLongs << 3]};
+    insertPreamble(sketch, ordered, preLongs, WritableMemory.wrap(staging[0]));
+    out.write(staging[0]);
+    if (preLongs == 1) { return; }
+    try {
+      forEachSegment(sketch, ordered, (items, offset, length) -> {
+        final int numBytes = serDe.getSerializedSizeBytes(items, offset, length);
+        if (staging[0].length < numBytes) {
+          staging[0] = new byte[numBytes];
+        }
+        serDe.serializeToMemory(items, offset, length, WritableMemory.wrap(staging[0]), 0);
+        try {
+          out.write(staging[0], 0, numBytes);
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Receives the ranges of items of a compact image in the order of the image.
+   */
+  private interface SegmentWriter {
+    void write(Object[] items, int offset, int length);
+  }
+
+  /**
+   * Passes the items of the compact image of the given non-empty sketch to the given writer:
+   * min and max, the base buffer, then each valid level in ascending order. Only the min and max
+   * and, if ordered, the base buffer are copied, the levels are passed in place.
+   * @param sketch the given sketch
+   * @param ordered true if the base buffer is to be passed in sorted order
+   * @param writer the receiver of the ranges of items
+   */
+  private static <T> void forEachSegment(final ItemsSketch<T> sketch, final boolean ordered,
+      final SegmentWriter writer) {
+    writer.write(new Object[] {sketch.getMinValue(), sketch.getMaxValue()}, 0, 2);
+    final int baseBufferCount = sketch.getBaseBufferCount();
+    final Object[] combinedBuffer = sketch.getCombinedBuffer();
+    if (baseBufferCount > 0) {
+      if (ordered) {
+        final Object[] baseBuffer = Arrays.copyOf(combinedBuffer, baseBufferCount);
+        sketch.sortBaseBuffer(baseBuffer, 0, baseBufferCount);
+        writer.write(baseBuffer, 0, baseBufferCount);
+      } else {
+        writer.write(combinedBuffer, 0, baseBufferCount);
+      }
+    }
+    long bitPattern = sketch.getBitPattern();
+    final int k = sketch.getK();
+    for (int level = 0; bitPattern != 0L; level++, bitPattern >>>= 1) {
+      if ((bitPattern & 1L) > 0L) {
+        writer.write(combinedBuffer, (2 + level) * k, k);
+      }
+    }
+  }
+
+  private static <T> void insertPreamble(final ItemsSketch<T> sketch, final boolean ordered,
+      final int preLongs, final WritableMemory wmem) {
+    final int flags = (sketch.isEmpty() ? EMPTY_FLAG_MASK : 0)
+        | (ordered ? ORDERED_FLAG_MASK : 0)
+        | COMPACT_FLAG_MASK; //always compact
+    insertPre0(wmem, preLongs, flags, sketch.getK());
+    if (preLongs > 1) {
+      insertN(wmem, sketch.getN());
+    }
+  }
+
   /**
    * Returns an array of items in compact form, including min and max extracted from the
    * Combined Buffer.
@@ -103,7 +257,7 @@ final class ItemsByteArrayImpl {
       }
     }
     if (ordered) {
-      Arrays.sort(outArr, extra, baseBufferCount + extra, sketch.getComparator());
+      sketch.sortBaseBuffer(outArr, extra, baseBufferCount + extra);
     }
     return outArr;
   }
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static java.lang.System.arraycopy;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToLongFunction;
+
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * The update, merge and sort algorithms of a keyed ItemsSketch.
+ *
+ * <p>A keyed sketch keeps the <i>long</i> key of every item in combinedKeys_, at the same position
+ * as the item in combinedBuffer_. These algorithms are the same as those of ItemsUpdateImpl and
+ * ItemsMergeImpl, except that they compare the primitive keys instead of calling the comparator
+ * and that every movement of an item is mirrored by the same movement of its key.</p>
+ */
+final class ItemsKeyedImpl {
+
+  private ItemsKeyedImpl() {}
+
+  /**
+   * Returns a <i>long</i> key of the given double value such that the signed order of the keys
+   * is the order of {@link Double#compare(double, double)}: -0.0 is less than 0.0 and NaN is
+   * greater than all other values.
+   * @param value the given double value
+   * @return the order-preserving key of the value
+   */
+  static long doubleKey(final double value) {
+    final long bits = Double.doubleToLongBits(value);
+    return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+  }
+
+  /**
+   * Called when the base buffer of a keyed sketch has just acquired 2*k elements.
+   * @param sketch the given keyed sketch
+   */
+  static <T> void processFullBaseBuffer(final ItemsSketch<T> sketch) {
+    final int bbCount = sketch.getBaseBufferCount();
+    final long n = sketch.getN();
+    assert bbCount == 2 * sketch.getK(); // internal consistency check
+
+    ItemsUpdateImpl.maybeGrowLevels(sketch, n);
+
+    // aliasing after the possible resizing
+    final Object[] baseBuffer = sketch.getCombinedBuffer();
+    final long[] baseKeys = sketch.combinedKeys_;
+
+    RadixBaseBufferSorter.sortByKeys(baseKeys, 0, baseBuffer, 0, bbCount);
+    inPlacePropagateCarry(
+        0,
+        null, null, 0, // this null is okay
+        baseKeys, baseBuffer, 0,
+        true, sketch);
+    sketch.baseBufferCount_ = 0;
+    Arrays.fill(baseBuffer, 0, 2 * sketch.getK(), null); // to release the discarded objects
+    assert n / (2 * sketch.getK()) == sketch.getBitPattern(); // internal consistency check
+  }
+
+  /**
+   * Merges the levels of the source sketch into the keyed target sketch with the same value of
+   * <i>k</i>. The caller has already updated the target with the base buffer of the source and
+   * grown the levels of the target.
+   * @param src The source sketch, which may or may not be keyed
+   * @param tgt The keyed target sketch
+   * @param ctx the context that provides the scratch space of the merge
+   */
+  static <T> void mergeLevelsInto(final ItemsSketch<T> src, final ItemsSketch<T> tgt,
+      final ItemsMergeContext ctx) {
+    final int k = tgt.getK();
+    final Object[] srcCombBuf = src.getCombinedBuffer();
+    final long[] srcCombKeys = keysOf(src, tgt.getKeyFunction(), ctx);
+    final Object[] scratchBuf = ctx.scratchBuf(2 * k);
+    final long[] scratchKeys = ctx.scratchKeys(2 * k);
+
+    long srcBitPattern = src.getBitPattern();
+    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+      if ((srcBitPattern & 1L) > 0L) {
+        inPlacePropagateCarry(
+            srcLvl,
+            srcCombKeys, srcCombBuf, (2 + srcLvl) * k,
+            scratchKeys, scratchBuf, 0,
+            false, tgt);
+      }
+    }
+  }
+
+  /**
+   * Down-samples the levels of the source sketch and merges them into the keyed target sketch.
+   * The caller has already updated the target with the base buffer of the source and grown the
+   * levels of the target.
+   * @param src The source sketch, which may or may not be keyed
+   * @param tgt The keyed target sketch
+   * @param downFactor source.getK() / target.getK(), a power of 2
+   * @param ctx the context that provides the scratch space of the merge
+   */
+  static <T> void downSamplingMergeLevelsInto(final ItemsSketch<T> src, final ItemsSketch<T> tgt,
+      final int downFactor, final ItemsMergeContext ctx) {
+    final int targetK = tgt.getK();
+    final int sourceK = src.getK();
+    final int lgDownFactor = Integer.numberOfTrailingZeros(downFactor);
+    final Object[] sourceLevels = src.getCombinedBuffer();
+    final long[] sourceKeys = keysOf(src, tgt.getKeyFunction(), ctx);
+
+    final Object[] scratchBuf = ctx.scratchBuf(2 * targetK);
+    final long[] scratchKeys = ctx.scratchKeys(2 * targetK);
+    final Object[] downBuf = ctx.downBuf(targetK);
+    final long[] downKeys = ctx.downKeys(targetK);
+
+    long srcBitPattern = src.getBitPattern();
+    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+      if ((srcBitPattern & 1L) > 0L) {
+        final int randomOffset = tgt.nextRandomInt(downFactor);
+        final int startSrc = (2 + srcLvl) * sourceK + randomOffset;
+        for (int a = startSrc, c = 0; c < targetK; a += downFactor, c++) {
+          downKeys[c] = sourceKeys[a];
+          downBuf[c] = sourceLevels[a];
+        }
+        inPlacePropagateCarry(
+            srcLvl + lgDownFactor,
+            downKeys, downBuf, 0,
+            scratchKeys, scratchBuf, 0,
+            false, tgt);
+      }
+    }
+  }
+
+  /**
+   * Returns the keys of the levels of the given sketch for the given key function.
+   * If the sketch is keyed with the same function its own keys are returned, otherwise the keys
+   * of the valid levels are computed. The keys of the base buffer are not computed.
+   * @param sketch the given sketch
+   * @param keyFunction the key function of the target of a merge
+   * @param ctx the context that provides the array for the computed keys
+   * @return an array of keys parallel to the combined buffer of the sketch
+   */
+  @SuppressWarnings("unchecked")
+  static <T> long[] keysOf(final ItemsSketch<T> sketch, final ToLongFunction<? super T> keyFunction,
+      final ItemsMergeContext ctx) {
+    if (sketch.getKeyFunction() == keyFunction) { return sketch.combinedKeys_; }
+    final int k = sketch.getK();
+    final Object[] combBuf = sketch.getCombinedBuffer();
+    final long[] keys = ctx.sourceKeys(combBuf.length);
+    long bits = sketch.getBitPattern();
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        final int start = (2 + lvl) * k;
+        for (int i = start; i < start + k; i++) {
+          keys[i] = keyFunction.applyAsLong((T) combBuf[i]);
+        }
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Checks the sequential validity of the given array of keys of split points.
+   * They must be unique and monotonically increasing.
+   * @param keys the given keys
+   */
+  static void validateKeys(final long[] keys) {
+    for (int j = 0; j < keys.length - 1; j++) {
+      if (keys[j] < keys[j + 1]) { continue; }
+      throw new SketchesArgumentException(
+          "Values must be unique, monotonically increasing and not null.");
+    }
+  }
+
+  static <T> void inPlacePropagateCarry(
+      final int startingLevel,
+      final long[] sizeKKeys, final Object[] sizeKBuf, final int sizeKStart,
+      final long[] size2KKeys, final Object[] size2KBuf, final int size2KStart,
+      final boolean doUpdateVersion,
+      final ItemsSketch<T> sketch) { // else doMergeIntoVersion
+    final Object[] levelsArr = sketch.getCombinedBuffer();
+    final long[] levelsKeys = sketch.combinedKeys_;
+    final long bitPattern = sketch.getBitPattern();
+    final int k = sketch.getK();
+
+    final int endingLevel = Util.lowestZeroBitStartingAt(bitPattern, startingLevel);
+    final int endingStart = (2 + endingLevel) * k;
+
+    if (doUpdateVersion) { // update version of computation
+      // its is okay for sizeKbuf to be null in this case
+      zipSize2KBuffer(
+          size2KKeys, size2KBuf, size2KStart,
+          levelsKeys, levelsArr, endingStart,
+          k, sketch.nextRandomBoolean());
+    } else { // mergeInto version of computation
+      arraycopy(sizeKKeys, sizeKStart, levelsKeys, endingStart, k);
+      arraycopy(sizeKBuf, sizeKStart, levelsArr, endingStart, k);
+    }
+
+    for (int lvl = startingLevel; lvl < endingLevel; lvl++) {
+      assert (bitPattern & (1L << lvl)) > 0; // internal consistency check
+      mergeTwoSizeKBuffers(
+          levelsKeys, levelsArr, (2 + lvl) * k,
+          levelsKeys, levelsArr, endingStart,
+          size2KKeys, size2KBuf, size2KStart,
+          k);
+      zipSize2KBuffer(
+          size2KKeys, size2KBuf, size2KStart,
+          levelsKeys, levelsArr, endingStart,
+          k, sketch.nextRandomBoolean());
+      // to release the discarded objects
+      Arrays.fill(levelsArr, (2 + lvl) * k, (2 + lvl + 1) * k, null);
+    } // end of loop over lower levels
+
+    // update bit pattern with binary-arithmetic ripple carry
+    sketch.bitPattern_ = bitPattern + (1L << startingLevel);
+  }
+
+  private static void zipSize2KBuffer(
+      final long[] keysA, final Object[] bufA, final int startA, // input
+      final long[] keysC, final Object[] bufC, final int startC, // output
+      final int k, final boolean oddItems) {
+    final int randomOffset = oddItems ? 1 : 0;
+    final int limC = startC + k;
+    for (int a = startA + randomOffset, c = startC; c < limC; a += 2, c++) {
+      keysC[c] = keysA[a];
+      bufC[c] = bufA[a];
+    }
+  }
+
+  private static void mergeTwoSizeKBuffers(
+      final long[] keys1, final Object[] buf1, final int arrStart1,
+      final long[] keys2, final Object[] buf2, final int arrStart2,
+      final long[] keysDst, final Object[] bufDst, final int arrStart3,
+      final int k) {
+    final int arrStop1 = arrStart1 + k;
+    final int arrStop2 = arrStart2 + k;
+
+    int i1 = arrStart1;
+    int i2 = arrStart2;
+    int i3 = arrStart3;
+    while (i1 < arrStop1 && i2 < arrStop2) {
+      if (keys2[i2] < keys1[i1]) {
+        keysDst[i3] = keys2[i2];
+        bufDst[i3++] = buf2[i2++];
+      } else {
+        keysDst[i3] = keys1[i1];
+        bufDst[i3++] = buf1[i1++];
+      }
+    }
+
+    if (i1 < arrStop1) {
+      arraycopy(keys1, i1, keysDst, i3, arrStop1 - i1);
+      arraycopy(buf1, i1, bufDst, i3, arrStop1 - i1);
+    } else {
+      assert i2 < arrStop2;
+      arraycopy(keys2, i2, keysDst, i3, arrStop2 - i2);
+      arraycopy(buf2, i2, bufDst, i3, arrStop2 - i2);
+    }
+  }
+
+  /**
+   * The keyed version of ItemsMergeImpl.blockyTandemMergeSort(). The keys are sorted and both the
+   * items and the values undergo the same data motion.
+   * @param keyArr array of keys
+   * @param itemArr array of items
+   * @param valArr array of values
+   * @param arrLen length of keyArr, itemArr and valArr
+   * @param blkSize size of internal sorted blocks
+   */
+  static void blockyTandemMergeSort(final long[] keyArr, final Object[] itemArr,
+      final long[] valArr, final int arrLen, final int blkSize) {
+    blockyTandemMergeSort(keyArr, itemArr, valArr, arrLen, blkSize, null, 0);
+  }
+
+  /**
+   * The keyed version of the parallel ItemsMergeImpl.blockyTandemMergeSort().
+   * @param keyArr array of keys
+   * @param itemArr array of items
+   * @param valArr array of values
+   * @param arrLen length of keyArr, itemArr and valArr
+   * @param blkSize size of internal sorted blocks
+   * @param pool the pool for the tasks. If null, the sort runs on the calling thread.
+   * @param minParallelItems the size of the smallest group that is split into tasks
+   */
+  static void blockyTandemMergeSort(final long[] keyArr, final Object[] itemArr,
+      final long[] valArr, final int arrLen, final int blkSize, final ForkJoinPool pool,
+      final int minParallelItems) {
+    assert blkSize >= 1;
+    if (arrLen <= blkSize) { return; }
+    int numblks = arrLen / blkSize;
+    if (numblks * blkSize < arrLen) { numblks += 1; }
+    assert (numblks * blkSize >= arrLen);
+
+    // duplicate the input is preparation for the "ping-pong" copy reduction strategy.
+    final long[] keyTmp = Arrays.copyOf(keyArr, arrLen);
+    final Object[] itemTmp = Arrays.copyOf(itemArr, arrLen);
+    final long[] valTmp = Arrays.copyOf(valArr, arrLen);
+
+    if ((pool != null) && (arrLen >= minParallelItems)) {
+      pool.invoke(new BlockyTandemMergeSortTask(keyTmp, itemTmp, valTmp, keyArr, itemArr, valArr,
+          0, numblks, blkSize, arrLen, minParallelItems));
+      return;
+    }
+    blockyTandemMergeSortRecursion(keyTmp, itemTmp, valTmp,
+                                   keyArr, itemArr, valArr,
+                                   0, numblks,
+                                   blkSize, arrLen);
+  }
+
+  /**
+   * The keyed version of ItemsMergeImpl.BlockyTandemMergeSortTask.
+   */
+  private static final class BlockyTandemMergeSortTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final long[] keySrc;
+    private final Object[] itemSrc;
+    private final long[] valSrc;
+    private final long[] keyDst;
+    private final Object[] itemDst;
+    private final long[] valDst;
+    private final int grpStart;
+    private final int grpLen;
+    private final int blkSize;
+    private final int arrLim;
+    private final int minParallelItems;
+
+    BlockyTandemMergeSortTask(final long[] keySrc, final Object[] itemSrc, final long[] valSrc,
+        final long[] keyDst, final Object[] itemDst, final long[] valDst, final int grpStart,
+        final int grpLen, final int blkSize, final int arrLim, final int minParallelItems) {
+      this.keySrc = keySrc;
+      this.itemSrc = itemSrc;
+      this.valSrc = valSrc;
+      this.keyDst = keyDst;
+      this.itemDst = itemDst;
+      this.valDst = valDst;
+      this.grpStart = grpStart;
+      this.grpLen = grpLen;
+      this.blkSize = blkSize;
+      this.arrLim = arrLim;
+      this.minParallelItems = minParallelItems;
+    }
+
+    @Override
+    protected void compute() {
+      if ((grpLen == 1) || (((long) grpLen * blkSize) < minParallelItems)) {
+        blockyTandemMergeSortRecursion(keySrc, itemSrc, valSrc, keyDst, itemDst, valDst,
+            grpStart, grpLen, blkSize, arrLim);
+        return;
+      }
+      final int grpLen1 = grpLen / 2;
+      final int grpLen2 = grpLen - grpLen1;
+      final int grpStart1 = grpStart;
+      final int grpStart2 = grpStart + grpLen1;
+
+      //swap roles of src and dst
+      invokeAll(
+          new BlockyTandemMergeSortTask(keyDst, itemDst, valDst, keySrc, itemSrc, valSrc,
+              grpStart1, grpLen1, blkSize, arrLim, minParallelItems),
+          new BlockyTandemMergeSortTask(keyDst, itemDst, valDst, keySrc, itemSrc, valSrc,
+              grpStart2, grpLen2, blkSize, arrLim, minParallelItems));
+
+      final int arrStart1 = grpStart1 * blkSize;
+      final int arrStart2 = grpStart2 * blkSize;
+      final int arrLen1 = grpLen1 * blkSize;
+      final int arrLen2 = Math.min(grpLen2 * blkSize, arrLim - arrStart2);
+      tandemMerge(keySrc, itemSrc, valSrc, arrStart1, arrLen1, arrStart2, arrLen2,
+          keyDst, itemDst, valDst, arrStart1);
+    }
+  }
+
+  private static void blockyTandemMergeSortRecursion(
+      final long[] keySrc, final Object[] itemSrc, final long[] valSrc,
+      final long[] keyDst, final Object[] itemDst, final long[] valDst,
+      final int grpStart, final int grpLen, // block indices
+      final int blkSize, final int arrLim) {
+    assert (grpLen > 0);
+    if (grpLen == 1) { return; }
+    final int grpLen1 = grpLen / 2;
+    final int grpLen2 = grpLen - grpLen1;
+    assert (grpLen1 >= 1);
+    assert (grpLen2 >= grpLen1);
+
+    final int grpStart1 = grpStart;
+    final int grpStart2 = grpStart + grpLen1;
+
+    //swap roles of src and dst
+    blockyTandemMergeSortRecursion(keyDst, itemDst, valDst,
+                           keySrc, itemSrc, valSrc,
+                           grpStart1, grpLen1, blkSize, arrLim);
+
+    //swap roles of src and dst
+    blockyTandemMergeSortRecursion(keyDst, itemDst, valDst,
+                           keySrc, itemSrc, valSrc,
+                           grpStart2, grpLen2, blkSize, arrLim);
+
+    // here we convert indices of blocks into positions in the underlying array.
+    final int arrStart1 = grpStart1 * blkSize;
+    final int arrStart2 = grpStart2 * blkSize;
+    final int arrLen1   = grpLen1   * blkSize;
+    int arrLen2   = grpLen2   * blkSize;
+
+    // special case for the final block which might be shorter than blkSize.
+    if (arrStart2 + arrLen2 > arrLim) {
+      arrLen2 = arrLim - arrStart2;
+    }
+
+    tandemMerge(keySrc, itemSrc, valSrc,
+                arrStart1, arrLen1,
+                arrStart2, arrLen2,
+                keyDst, itemDst, valDst,
+                arrStart1); // which will be arrStart3
+  }
+
+  private static void tandemMerge(final long[] keySrc, final Object[] itemSrc,
+      final long[] valSrc,
+      final int arrStart1, final int arrLen1,
+      final int arrStart2, final int arrLen2,
+      final long[] keyDst, final Object[] itemDst, final long[] valDst,
+      final int arrStart3) {
+    final int arrStop1 = arrStart1 + arrLen1;
+    final int arrStop2 = arrStart2 + arrLen2;
+
+    int i1 = arrStart1;
+    int i2 = arrStart2;
+    int i3 = arrStart3;
+    while (i1 < arrStop1 && i2 < arrStop2) {
+      if (keySrc[i2] < keySrc[i1]) {
+        keyDst[i3] = keySrc[i2];
+        itemDst[i3] = itemSrc[i2];
+        valDst[i3] = valSrc[i2];
+        i3++; i2++;
+      } else {
+        keyDst[i3] = keySrc[i1];
+        itemDst[i3] = itemSrc[i1];
+        valDst[i3] = valSrc[i1];
+        i3++; i1++;
+      }
+    }
+
+    if (i1 < arrStop1) {
+      arraycopy(keySrc, i1, keyDst, i3, arrStop1 - i1);
+      arraycopy(itemSrc, i1, itemDst, i3, arrStop1 - i1);
+      arraycopy(valSrc, i1, valDst, i3, arrStop1 - i1);
+    } else {
+      assert i2 < arrStop2;
+      arraycopy(keySrc, i2, keyDst, i3, arrStop2 - i2);
+      arraycopy(itemSrc, i2, itemDst, i3, arrStop2 - i2);
+      arraycopy(valSrc, i2, valDst, i3, arrStop2 - i2);
+    }
+  }
+
+}
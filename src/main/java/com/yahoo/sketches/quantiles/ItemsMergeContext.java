@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+/**
+ * The scratch space of the merges of ItemsSketches, which is kept from one merge to the next so
+ * that a long series of merges into the same target, such as by an ItemsUnion, does not allocate
+ * the same buffers for every merge. The levels inserted by a weighted update are merged with the
+ * same buffers. Each buffer is allocated on first use and only grows.
+ *
+ * <p>The buffers are not cleared after a merge, so they may keep up to a few <i>k</i> items of
+ * earlier merges reachable until they are overwritten or the context is dropped.
+ * A context must not be used by more than one thread at a time.</p>
+ */
+final class ItemsMergeContext {
+  private Object[] scratchBuf_;
+  private long[] scratchKeys_;
+  private Object[] downBuf_;
+  private long[] downKeys_;
+  private long[] sourceKeys_;
+
+  /**
+   * Returns the buffer that receives the merge of two levels
+   * @param minLength the minimum length, 2k of the target
+   * @return a buffer with at least the given length
+   */
+  Object[] scratchBuf(final int minLength) {
+    if ((scratchBuf_ == null) || (scratchBuf_.length < minLength)) {
+      scratchBuf_ = new Object[minLength];
+    }
+    return scratchBuf_;
+  }
+
+  /**
+   * Returns the buffer that receives the keys of the merge of two levels of a keyed sketch
+   * @param minLength the minimum length, 2k of the target
+   * @return a buffer with at least the given length
+   */
+  long[] scratchKeys(final int minLength) {
+    if ((scratchKeys_ == null) || (scratchKeys_.length < minLength)) {
+      scratchKeys_ = new long[minLength];
+    }
+    return scratchKeys_;
+  }
+
+  /**
+   * Returns the buffer that receives a down-sampled level of the source
+   * @param minLength the minimum length, k of the target
+   * @return a buffer with at least the given length
+   */
+  Object[] downBuf(final int minLength) {
+    if ((downBuf_ == null) || (downBuf_.length < minLength)) {
+      downBuf_ = new Object[minLength];
+    }
+    return downBuf_;
+  }
+
+  /**
+   * Returns the buffer that receives the keys of a down-sampled level of the source
+   * @param minLength the minimum length, k of the target
+   * @return a buffer with at least the given length
+   */
+  long[] downKeys(final int minLength) {
+    if ((downKeys_ == null) || (downKeys_.length < minLength)) {
+      downKeys_ = new long[minLength];
+    }
+    return downKeys_;
+  }
+
+  /**
+   * Returns the buffer that receives the keys of the levels of a source that is not keyed with
+   * the key function of the keyed target
+   * @param minLength the minimum length, the length of the combined buffer of the source
+   * @return a buffer with at least the given length
+   */
+  long[] sourceKeys(final int minLength) {
+    if ((sourceKeys_ == null) || (sourceKeys_.length < minLength)) {
+      sourceKeys_ = new long[minLength];
+    }
+    return sourceKeys_;
+  }
+
+}
@@ -6,11 +6,20 @@
 package com.yahoo.sketches.quantiles;
 
 import static com.yahoo.sketches.Util.checkIfPowerOf2;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractPreLongs;
 import static java.lang.System.arraycopy;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToLongFunction;
 
+import com.yahoo.memory.Memory;
+
+import com.yahoo.sketches.ArrayOfItemsSerDe;
 import com.yahoo.sketches.SketchesArgumentException;
 
 /**
@@ -47,15 +56,28 @@ final class ItemsMergeImpl {
      * @param src The source sketch
      * @param tgt The target sketch
      */
-  @SuppressWarnings("unchecked")
   static <T> void mergeInto(final ItemsSketch<T> src, final ItemsSketch<T> tgt) {
+    mergeInto(src, tgt, new ItemsMergeContext());
+  }
+
+  /**
+   * Merges the source sketch into the target sketch as mergeInto(src, tgt), with the scratch
+   * space of the given context.
+   * @param src The source sketch
+   * @param tgt The target sketch
+   * @param ctx the context that provides the scratch space of the merge
+   */
+  @SuppressWarnings("unchecked")
+  static <T> void mergeInto(final ItemsSketch<T> src, final ItemsSketch<T> tgt,
+      final ItemsMergeContext ctx) {
+    tgt.unshareBuffers();
     final int srcK = src.getK();
     final int tgtK = tgt.getK();
     final long srcN = src.getN();
     final long tgtN = tgt.getN();
 
     if (srcK != tgtK) {
-      downSamplingMergeInto(src, tgt);
+      downSamplingMergeInto(src, tgt, ctx);
       return;
     }
     //The remainder of this code is for the case where the k's are equal
@@ -63,29 +85,31 @@ final class ItemsMergeImpl {
     final Object[] srcCombBuf     = src.getCombinedBuffer();
     final long nFinal = tgtN + srcN;
 
-    for (int i = 0; i < src.getBaseBufferCount(); i++) { //update only the base buffer
-      tgt.update((T) srcCombBuf[i]);
-    }
+    tgt.updateFromBaseBuffer(src); //update only the base buffer
 
     ItemsUpdateImpl.maybeGrowLevels(tgt, nFinal);
 
-    final Object[] scratchBuf = new Object[2 * tgtK];
-
     long srcBitPattern = src.getBitPattern();
     assert srcBitPattern == (srcN / (2L * srcK));
 
-    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
-      if ((srcBitPattern & 1L) > 0L) { //only one level above base buffer
-        ItemsUpdateImpl.inPlacePropagateCarry(
-            srcLvl,
-            (T[]) srcCombBuf, (2 + srcLvl) * tgtK,
-            (T[]) scratchBuf, 0,
-            false,
-            tgt);
-      // won't update tgt.n_ until the very end
+    if (tgt.isKeyed()) {
+      ItemsKeyedImpl.mergeLevelsInto(src, tgt, ctx);
+    } else {
+      final Object[] scratchBuf = ctx.scratchBuf(2 * tgtK);
+      for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+        if ((srcBitPattern & 1L) > 0L) { //only one level above base buffer
+          ItemsUpdateImpl.inPlacePropagateCarry(
+              srcLvl,
+              (T[]) srcCombBuf, (2 + srcLvl) * tgtK,
+              (T[]) scratchBuf, 0,
+              false,
+              tgt);
+        // won't update tgt.n_ until the very end
+        }
       }
     }
     tgt.n_ = nFinal;
+    tgt.aux_ = null;
 
     assert tgt.getN() / (2 * tgtK) == tgt.getBitPattern(); // internal consistency check
 
@@ -118,8 +142,22 @@ final class ItemsMergeImpl {
    * @param src The source sketch
    * @param tgt The target sketch
    */
-  @SuppressWarnings("unchecked") //also used by ItemsSketch and ItemsUnion
+  //also used by ItemsSketch and ItemsUnion
   static <T> void downSamplingMergeInto(final ItemsSketch<T> src, final ItemsSketch<T> tgt) {
+    downSamplingMergeInto(src, tgt, new ItemsMergeContext());
+  }
+
+  /**
+   * Merges the source sketch into the target sketch as downSamplingMergeInto(src, tgt), with the
+   * scratch space of the given context.
+   * @param src The source sketch
+   * @param tgt The target sketch
+   * @param ctx the context that provides the scratch space of the merge
+   */
+  @SuppressWarnings("unchecked")
+  static <T> void downSamplingMergeInto(final ItemsSketch<T> src, final ItemsSketch<T> tgt,
+      final ItemsMergeContext ctx) {
+    tgt.unshareBuffers();
     final int targetK = tgt.getK();
     final int sourceK = src.getK();
 
@@ -133,36 +171,38 @@ final class ItemsMergeImpl {
     final int lgDownFactor = Integer.numberOfTrailingZeros(downFactor);
 
     final Object[] sourceLevels     = src.getCombinedBuffer(); // aliasing is a bit dangerous
-    final Object[] sourceBaseBuffer = src.getCombinedBuffer(); // aliasing is a bit dangerous
 
     final long nFinal = tgt.getN() + src.getN();
 
-    for (int i = 0; i < src.getBaseBufferCount(); i++) {
-      tgt.update((T) sourceBaseBuffer[i]);
-    }
+    tgt.updateFromBaseBuffer(src);
 
     ItemsUpdateImpl.maybeGrowLevels(tgt, nFinal);
 
-    final Object[] scratchBuf = new Object[2 * targetK];
-    final Object[] downBuf    = new Object[targetK];
-
-    long srcBitPattern = src.getBitPattern();
-    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
-      if ((srcBitPattern & 1L) > 0L) {
-        ItemsMergeImpl.justZipWithStride(
-            sourceLevels, (2 + srcLvl) * sourceK,
-            downBuf, 0,
-            targetK,
-            downFactor);
-        ItemsUpdateImpl.inPlacePropagateCarry(
-            srcLvl + lgDownFactor,
-            (T[]) downBuf, 0,
-            (T[]) scratchBuf, 0,
-            false, tgt);
-        // won't update target.n_ until the very end
+    if (tgt.isKeyed()) {
+      ItemsKeyedImpl.downSamplingMergeLevelsInto(src, tgt, downFactor, ctx);
+    } else {
+      final Object[] scratchBuf = ctx.scratchBuf(2 * targetK);
+      final Object[] downBuf    = ctx.downBuf(targetK);
+
+      long srcBitPattern = src.getBitPattern();
+      for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+        if ((srcBitPattern & 1L) > 0L) {
+          ItemsMergeImpl.justZipWithStride(
+              sourceLevels, (2 + srcLvl) * sourceK,
+              downBuf, 0,
+              targetK,
+              downFactor, tgt.nextRandomInt(downFactor));
+          ItemsUpdateImpl.inPlacePropagateCarry(
+              srcLvl + lgDownFactor,
+              (T[]) downBuf, 0,
+              (T[]) scratchBuf, 0,
+              false, tgt);
+          // won't update target.n_ until the very end
+        }
       }
     }
     tgt.n_ = nFinal;
+    tgt.aux_ = null;
 
     assert tgt.getN() / (2 * targetK) == tgt.getBitPattern(); // internal consistency check
 
@@ -186,12 +226,234 @@ final class ItemsMergeImpl {
     }
   }
 
+  /**
+   * Merges a source sketch, given as its checked compact Memory image, into the target sketch
+   * without building the source sketch. The target is updated with the base buffer of the source
+   * and each valid level is fed, down-sampled if required, straight from the image into the carry
+   * propagation of the target. The result is the same as that of heapifying the image and calling
+   * mergeInto(src, tgt, ctx).
+   * If the source has valid levels, it is required that
+   * srcK = tgt.getK() * 2^(nonnegative integer), which is checked before the target is changed.
+   *
+   * <p>If the serDe serializes its items independently, the image is the concatenation of the
+   * serialized min and max values, base buffer and levels, so it is deserialized one level at a
+   * time. Otherwise the byte length of a part of the image is unknown and all of its items are
+   * deserialized at once.</p>
+   *
+   * @param srcMem the compact Memory image of a non-empty ItemsSketch
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @param tgt The target sketch
+   * @param ctx the context that provides the scratch space of the merge
+   */
+  @SuppressWarnings("unchecked")
+  static <T> void mergeCompactInto(final Memory srcMem, final ArrayOfItemsSerDe<T> serDe,
+      final ItemsSketch<T> tgt, final ItemsMergeContext ctx) {
+    final int srcK = extractK(srcMem);
+    final long srcN = extractN(srcMem);
+    final int tgtK = tgt.getK();
+    final int extra = 2; // min and max values
+    final int srcBBCount = Util.computeBaseBufferItems(srcK, srcN);
+    long srcBitPattern = Util.computeBitPattern(srcK, srcN);
+    final int downFactor = srcK / tgtK;
+    if (srcBitPattern != 0) {
+      if ((srcK % tgtK) != 0) {
+        throw new SketchesArgumentException(
+            "source.getK() must equal target.getK() * 2^(nonnegative integer).");
+      }
+      checkIfPowerOf2(downFactor, "source.getK()/target.getK() ratio");
+    }
+
+    final boolean byLevel = serDe.serializesItemsIndependently();
+    long offsetBytes = extractPreLongs(srcMem) * Long.BYTES;
+    final T[] items;
+    if (byLevel) {
+      items = serDe.deserializeFromMemory(itemsRegion(srcMem, offsetBytes), extra + srcBBCount);
+      offsetBytes += serDe.getSerializedSizeBytes(items, 0, items.length);
+    } else {
+      items = ItemsSketch.deserializeCompactItems(srcMem, serDe);
+    }
+
+    tgt.unshareBuffers();
+    tgt.updateFromBaseBuffer(items, null, extra, srcBBCount, items[0], items[1]);
+    if (srcBitPattern == 0) { return; } //exact mode, the source had only a base buffer
+
+    final int lgDownFactor = Integer.numberOfTrailingZeros(downFactor);
+    final long nFinal = tgt.getN() + (srcN - srcBBCount); //the base buffer is already counted
+
+    ItemsUpdateImpl.maybeGrowLevels(tgt, nFinal);
+
+    final boolean keyed = tgt.isKeyed();
+    final ToLongFunction<? super T> keyFunction = tgt.getKeyFunction();
+    final Object[] scratchBuf = ctx.scratchBuf(2 * tgtK);
+    final long[] scratchKeys = keyed ? ctx.scratchKeys(2 * tgtK) : null;
+    final Object[] downBuf = ((downFactor > 1) || keyed) ? ctx.downBuf(tgtK) : null;
+    final long[] downKeys = keyed ? ctx.downKeys(tgtK) : null;
+
+    int srcLevelStart = extra + srcBBCount;
+    for (int srcLvl = 0; srcBitPattern != 0L; srcLvl++, srcBitPattern >>>= 1) {
+      if ((srcBitPattern & 1L) > 0L) {
+        final Object[] srcItems;
+        final int srcStart;
+        if (byLevel) {
+          srcItems = serDe.deserializeFromMemory(itemsRegion(srcMem, offsetBytes), srcK);
+          offsetBytes += serDe.getSerializedSizeBytes(srcItems, 0, srcK);
+          srcStart = 0;
+        } else {
+          srcItems = items;
+          srcStart = srcLevelStart;
+        }
+        final Object[] levelBuf;
+        final int levelStart;
+        if (downBuf != null) {
+          final int randomOffset = (downFactor > 1) ? tgt.nextRandomInt(downFactor) : 0;
+          justZipWithStride(srcItems, srcStart, downBuf, 0, tgtK, downFactor, randomOffset);
+          levelBuf = downBuf;
+          levelStart = 0;
+        } else {
+          levelBuf = srcItems;
+          levelStart = srcStart;
+        }
+        if (keyed) {
+          for (int i = 0; i < tgtK; i++) {
+            downKeys[i] = keyFunction.applyAsLong((T) levelBuf[i]);
+          }
+          ItemsKeyedImpl.inPlacePropagateCarry(
+              srcLvl + lgDownFactor,
+              downKeys, levelBuf, 0,
+              scratchKeys, scratchBuf, 0,
+              false, tgt);
+        } else {
+          ItemsUpdateImpl.inPlacePropagateCarry(
+              srcLvl + lgDownFactor,
+              (T[]) levelBuf, levelStart,
+              (T[]) scratchBuf, 0,
+              false, tgt);
+        }
+        srcLevelStart += srcK;
+      }
+    }
+    tgt.n_ = nFinal;
+    tgt.aux_ = null;
+
+    assert tgt.getN() / (2 * tgtK) == tgt.getBitPattern(); // internal consistency check
+  }
+
+  private static Memory itemsRegion(final Memory srcMem, final long offsetBytes) {
+    return srcMem.region(offsetBytes, srcMem.getCapacity() - offsetBytes);
+  }
+
+  /**
+   * Down-samples the given sketch in place to the given smaller value of K, as described by
+   * ItemsSketch.downSampleInPlace().
+   *
+   * <p>Every level <i>j</i> of the sketch becomes level <i>j + lg(downFactor)</i> by taking every
+   * downFactor-th item. That level starts at or below the start of level <i>j</i>, so the levels are
+   * zipped downward in ascending order without overwriting any item that is still to be read.
+   * The base buffer holds fewer than downFactor * 2 newK items. Its items beyond a remainder of
+   * fewer than 2 newK items are split into one block of 2<sup>i+1</sup> newK items for every set
+   * bit <i>i</i> of baseBufferCount / (2 newK), which is sorted and zipped into level <i>i</i>,
+   * below the levels of the sketch. The base buffer is first moved to the end of the first 2 oldK
+   * slots, which leaves every block in place until it has been zipped.</p>
+   *
+   * @param sketch the sketch to be down-sampled
+   * @param newK the new value of K, with sketch.getK() = newK * 2^(nonnegative integer)
+   */
+  @SuppressWarnings("unchecked")
+  static <T> void downSampleInPlace(final ItemsSketch<T> sketch, final int newK) {
+    final int oldK = sketch.getK();
+    if ((oldK % newK) != 0) {
+      throw new SketchesArgumentException(
+          "sketch.getK() must equal newK * 2^(nonnegative integer).");
+    }
+    final int downFactor = oldK / newK;
+    checkIfPowerOf2(downFactor, "sketch.getK()/newK ratio");
+    if (downFactor == 1) { return; }
+    final int lgDownFactor = Integer.numberOfTrailingZeros(downFactor);
+    sketch.unshareBuffers();
+
+    final long n = sketch.getN();
+    final long bitPattern = sketch.getBitPattern();
+    final int bbCount = sketch.getBaseBufferCount();
+    final long bbBitPattern = bbCount / (2 * newK); // less than downFactor
+    final int remainder = bbCount % (2 * newK);
+    final int newCapacity = Util.computeCombinedBufferItemCapacity(newK, n);
+    final T[] srcBuf = (T[]) sketch.getCombinedBuffer();
+    final T[] dstBuf;
+    final int bbStart;
+    if (sketch.getCombinedBufferAllocatedCount() >= (2 * oldK)) {
+      dstBuf = srcBuf;
+      bbStart = (2 * oldK) - bbCount;
+      arraycopy(srcBuf, 0, srcBuf, bbStart, bbCount);
+    } else { //a partially grown base buffer and no levels, no larger than the new buffer
+      dstBuf = (T[]) new Object[newCapacity];
+      bbStart = 0;
+    }
+
+    arraycopy(srcBuf, bbStart, dstBuf, 0, remainder);
+    int blockStart = bbStart + remainder;
+    for (int lvl = 0; lvl < lgDownFactor; lvl++) {
+      if (((bbBitPattern >>> lvl) & 1L) != 0L) {
+        final int stride = 2 << lvl;
+        final int blockLen = stride * newK;
+        sketch.sortBaseBuffer(srcBuf, blockStart, blockStart + blockLen);
+        justZipWithStride(srcBuf, blockStart, dstBuf, (2 + lvl) * newK, newK, stride,
+            sketch.nextRandomInt(stride));
+        blockStart += blockLen;
+      }
+    }
+
+    long bits = bitPattern;
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      if ((bits & 1L) != 0L) {
+        justZipWithStride(srcBuf, (2 + lvl) * oldK, dstBuf, (2 + lvl + lgDownFactor) * newK, newK,
+            downFactor, sketch.nextRandomInt(downFactor));
+      }
+    }
+
+    final long newBitPattern = (bitPattern << lgDownFactor) | bbBitPattern;
+    final T[] newBuf = (dstBuf.length == newCapacity) ? dstBuf : Arrays.copyOf(dstBuf, newCapacity);
+    // to release the discarded objects that an in-place down-sample leaves behind
+    Arrays.fill(newBuf, remainder, Math.min(2 * newK, newCapacity), null);
+    bits = newBitPattern;
+    for (int lvl = 0; ((2 + lvl) * newK) < newCapacity; lvl++, bits >>>= 1) {
+      if ((bits & 1L) == 0L) {
+        final int levelStart = (2 + lvl) * newK;
+        Arrays.fill(newBuf, levelStart, levelStart + newK, null);
+      }
+    }
+    sketch.combinedBuffer_ = newBuf;
+    if (sketch.isKeyed()) { // the keys are recomputed rather than moved along with the items
+      final ToLongFunction<? super T> keyFunction = sketch.getKeyFunction();
+      final long[] keys = new long[newCapacity];
+      for (int i = 0; i < remainder; i++) {
+        keys[i] = keyFunction.applyAsLong((T) sketch.combinedBuffer_[i]);
+      }
+      bits = newBitPattern;
+      for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+        if ((bits & 1L) != 0L) {
+          final int levelStart = (2 + lvl) * newK;
+          for (int i = levelStart; i < (levelStart + newK); i++) {
+            keys[i] = keyFunction.applyAsLong((T) sketch.combinedBuffer_[i]);
+          }
+        }
+      }
+      sketch.combinedKeys_ = keys;
+    }
+    sketch.k_ = newK;
+    sketch.baseBufferCount_ = remainder;
+    sketch.bitPattern_ = newBitPattern;
+    sketch.combinedBufferItemCapacity_ = newCapacity;
+    sketch.aux_ = null;
+
+    assert sketch.getN() / (2 * newK) == sketch.getBitPattern(); // internal consistency check
+  }
+
   private static <T> void justZipWithStride(
       final T[] bufSrc, final int startSrc, // input
       final T[] bufC, final int startC, // output
       final int kC, // number of items that should be in the output
-      final int stride) {
-    final int randomOffset = ItemsSketch.rand.nextInt(stride);
+      final int stride,
+      final int randomOffset) { // in [0, stride)
     final int limC = startC + kC;
     for (int a = startSrc + randomOffset, c = startC; c < limC; a += stride, c++ ) {
       bufC[c] = bufSrc[a];
@@ -212,6 +474,24 @@ final class ItemsMergeImpl {
   //also used by ItemsAuxiliary
   static <T> void blockyTandemMergeSort(final T[] keyArr, final long[] valArr, final int arrLen,
       final int blkSize, final Comparator<? super T> comparator) {
+    blockyTandemMergeSort(keyArr, valArr, arrLen, blkSize, comparator, null, 0);
+  }
+
+  /**
+   * The version of blockyTandemMergeSort() that sorts the two halves of every group of at least
+   * minParallelItems items as separate tasks of the given pool. Both halves read and write
+   * disjoint ranges of the arrays, so the result is the same as that of the sequential sort.
+   * @param keyArr array of keys
+   * @param valArr array of values
+   * @param arrLen length of keyArr and valArr
+   * @param blkSize size of internal sorted blocks
+   * @param comparator to compare keys
+   * @param pool the pool for the tasks. If null, the sort runs on the calling thread.
+   * @param minParallelItems the size of the smallest group that is split into tasks
+   */
+  static <T> void blockyTandemMergeSort(final T[] keyArr, final long[] valArr, final int arrLen,
+      final int blkSize, final Comparator<? super T> comparator, final ForkJoinPool pool,
+      final int minParallelItems) {
     assert blkSize >= 1;
     if (arrLen <= blkSize) { return; }
     int numblks = arrLen / blkSize;
@@ -222,12 +502,77 @@ final class ItemsMergeImpl {
     final T[] keyTmp = Arrays.copyOf(keyArr, arrLen);
     final long[] valTmp = Arrays.copyOf(valArr, arrLen);
 
+    if ((pool != null) && (arrLen >= minParallelItems)) {
+      pool.invoke(new BlockyTandemMergeSortTask<>(keyTmp, valTmp, keyArr, valArr, 0, numblks,
+          blkSize, arrLen, comparator, minParallelItems));
+      return;
+    }
     blockyTandemMergeSortRecursion(keyTmp, valTmp,
                                    keyArr, valArr,
                                    0, numblks,
                                    blkSize, arrLen, comparator);
   }
 
+  /**
+   * The parallel form of blockyTandemMergeSortRecursion(). Groups smaller than minParallelItems
+   * fall back to the sequential recursion.
+   */
+  private static final class BlockyTandemMergeSortTask<T> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final T[] keySrc;
+    private final long[] valSrc;
+    private final T[] keyDst;
+    private final long[] valDst;
+    private final int grpStart;
+    private final int grpLen;
+    private final int blkSize;
+    private final int arrLim;
+    private final Comparator<? super T> comparator;
+    private final int minParallelItems;
+
+    BlockyTandemMergeSortTask(final T[] keySrc, final long[] valSrc, final T[] keyDst,
+        final long[] valDst, final int grpStart, final int grpLen, final int blkSize,
+        final int arrLim, final Comparator<? super T> comparator, final int minParallelItems) {
+      this.keySrc = keySrc;
+      this.valSrc = valSrc;
+      this.keyDst = keyDst;
+      this.valDst = valDst;
+      this.grpStart = grpStart;
+      this.grpLen = grpLen;
+      this.blkSize = blkSize;
+      this.arrLim = arrLim;
+      this.comparator = comparator;
+      this.minParallelItems = minParallelItems;
+    }
+
+    @Override
+    protected void compute() {
+      if ((grpLen == 1) || (((long) grpLen * blkSize) < minParallelItems)) {
+        blockyTandemMergeSortRecursion(keySrc, valSrc, keyDst, valDst, grpStart, grpLen,
+            blkSize, arrLim, comparator);
+        return;
+      }
+      final int grpLen1 = grpLen / 2;
+      final int grpLen2 = grpLen - grpLen1;
+      final int grpStart1 = grpStart;
+      final int grpStart2 = grpStart + grpLen1;
+
+      //swap roles of src and dst
+      invokeAll(
+          new BlockyTandemMergeSortTask<>(keyDst, valDst, keySrc, valSrc, grpStart1, grpLen1,
+              blkSize, arrLim, comparator, minParallelItems),
+          new BlockyTandemMergeSortTask<>(keyDst, valDst, keySrc, valSrc, grpStart2, grpLen2,
+              blkSize, arrLim, comparator, minParallelItems));
+
+      final int arrStart1 = grpStart1 * blkSize;
+      final int arrStart2 = grpStart2 * blkSize;
+      final int arrLen1 = grpLen1 * blkSize;
+      final int arrLen2 = Math.min(grpLen2 * blkSize, arrLim - arrStart2);
+      tandemMerge(keySrc, valSrc, arrStart1, arrLen1, arrStart2, arrLen2, keyDst, valDst,
+          arrStart1, comparator);
+    }
+  }
+
   /**
    *  blockyTandemMergeSortRecursion() is called by blockyTandemMergeSort().
    *  In addition to performing the algorithm's top down recursion,
@@ -308,32 +653,156 @@ final class ItemsMergeImpl {
                                   final int arrStart2, final int arrLen2,
                                   final T[] keyDst, final long[] valDst,
                                   final int arrStart3, final Comparator<? super T> comparator) {
+    gallopingMerge(keySrc, arrStart1, arrLen1, keySrc, arrStart2, arrLen2, keyDst, arrStart3,
+        valSrc, valDst, comparator);
+  }
+
+  /**
+   * The number of consecutive items taken from the same run that switches a merge into
+   * galloping mode. This is the initial value, which adapts as the merge proceeds.
+   */
+  static final int MIN_GALLOP = 7;
+
+  /**
+   * Merges two sorted runs in the manner of TimSort. The merge starts by comparing one item of
+   * each run at a time. Once one run has supplied MIN_GALLOP items in a row, the merge gallops:
+   * it locates the end of the next stretch of each run with an exponential search and copies
+   * the whole stretch with System.arraycopy. Galloping continues while it pays off and otherwise
+   * falls back to single comparisons, and the threshold adapts to the data. For inputs with long
+   * stretches, such as time-ordered streams, this needs far fewer comparisons than a plain merge.
+   * The result is the same as that of a plain merge: on ties the item of run 1 comes first.
+   * @param keySrc1 source of run 1
+   * @param arrStart1 start of run 1
+   * @param arrLen1 length of run 1
+   * @param keySrc2 source of run 2
+   * @param arrStart2 start of run 2
+   * @param arrLen2 length of run 2
+   * @param keyDst destination, which must not overlap either run
+   * @param arrStart3 start of the destination
+   * @param valSrc values that undergo the same data motion as the keys, at the same positions as
+   * the keys of both runs, or null if there are none
+   * @param valDst destination of the values, or null if there are none
+   * @param comparator to compare keys
+   */
+  static <T> void gallopingMerge(final T[] keySrc1, final int arrStart1, final int arrLen1,
+      final T[] keySrc2, final int arrStart2, final int arrLen2,
+      final T[] keyDst, final int arrStart3,
+      final long[] valSrc, final long[] valDst, final Comparator<? super T> comparator) {
     final int arrStop1 = arrStart1 + arrLen1;
     final int arrStop2 = arrStart2 + arrLen2;
 
     int i1 = arrStart1;
     int i2 = arrStart2;
     int i3 = arrStart3;
+    int minGallop = MIN_GALLOP;
+    int count1 = 0; // number of items in a row taken from run 1
+    int count2 = 0; // number of items in a row taken from run 2
     while (i1 < arrStop1 && i2 < arrStop2) {
-      if (comparator.compare(keySrc[i2], keySrc[i1]) < 0) {
-        keyDst[i3] = keySrc[i2];
-        valDst[i3] = valSrc[i2];
-        i3++; i2++;
-      } else {
-        keyDst[i3] = keySrc[i1];
-        valDst[i3] = valSrc[i1];
-        i3++; i1++;
+      if ((count1 < minGallop) && (count2 < minGallop)) {
+        if (comparator.compare(keySrc2[i2], keySrc1[i1]) < 0) {
+          keyDst[i3] = keySrc2[i2];
+          if (valSrc != null) { valDst[i3] = valSrc[i2]; }
+          i3++; i2++;
+          count2++;
+          count1 = 0;
+        } else {
+          keyDst[i3] = keySrc1[i1];
+          if (valSrc != null) { valDst[i3] = valSrc[i1]; }
+          i3++; i1++;
+          count1++;
+          count2 = 0;
+        }
+        continue;
+      }
+      // galloping mode: the items of run 1 not greater than the head of run 2
+      final int len1 = gallopCountNotAbove(keySrc2[i2], keySrc1, i1, arrStop1 - i1, comparator);
+      arraycopy(keySrc1, i1, keyDst, i3, len1);
+      if (valSrc != null) { arraycopy(valSrc, i1, valDst, i3, len1); }
+      i1 += len1;
+      i3 += len1;
+      if (i1 == arrStop1) { break; }
+      // then the items of run 2 less than the head of run 1
+      final int len2 = gallopCountBelow(keySrc1[i1], keySrc2, i2, arrStop2 - i2, comparator);
+      arraycopy(keySrc2, i2, keyDst, i3, len2);
+      if (valSrc != null) { arraycopy(valSrc, i2, valDst, i3, len2); }
+      i2 += len2;
+      i3 += len2;
+      if ((len1 < MIN_GALLOP) && (len2 < MIN_GALLOP)) {
+        // galloping did not pay off; penalize it and go back to single comparisons
+        minGallop++;
+        count1 = 0;
+        count2 = 0;
+      } else if (minGallop > 1) {
+        minGallop--;
       }
     }
 
     if (i1 < arrStop1) {
-      arraycopy(keySrc, i1, keyDst, i3, arrStop1 - i1);
-      arraycopy(valSrc, i1, valDst, i3, arrStop1 - i1);
-    } else {
-      assert i2 < arrStop2;
-      arraycopy(keySrc, i2, keyDst, i3, arrStop2 - i2);
-      arraycopy(valSrc, i2, valDst, i3, arrStop2 - i2);
+      arraycopy(keySrc1, i1, keyDst, i3, arrStop1 - i1);
+      if (valSrc != null) { arraycopy(valSrc, i1, valDst, i3, arrStop1 - i1); }
+    } else if (i2 < arrStop2) {
+      arraycopy(keySrc2, i2, keyDst, i3, arrStop2 - i2);
+      if (valSrc != null) { arraycopy(valSrc, i2, valDst, i3, arrStop2 - i2); }
+    }
+  }
+
+  /**
+   * Returns the number of items at the start of the given sorted range that are not greater than
+   * the given key. The search gallops from the start with steps of 1, 2, 4, ... and then narrows
+   * down with a binary search, so its cost is logarithmic in the returned count.
+   * @param key the given key
+   * @param arr the array of the range
+   * @param start the start of the range
+   * @param len the length of the range
+   * @param comparator to compare keys
+   * @return the number of items not greater than the key
+   */
+  static <T> int gallopCountNotAbove(final T key, final T[] arr, final int start, final int len,
+      final Comparator<? super T> comparator) {
+    int lo = 0; // arr[start + lo - 1] <= key, or lo == 0
+    int hi = 1;
+    while ((hi <= len) && (comparator.compare(key, arr[(start + hi) - 1]) >= 0)) {
+      lo = hi;
+      hi <<= 1;
+    }
+    if (hi > len) { hi = len + 1; }
+    // the answer is in [lo, hi - 1]
+    hi--;
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if (comparator.compare(key, arr[(start + mid) - 1]) >= 0) { lo = mid; }
+      else { hi = mid - 1; }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the number of items at the start of the given sorted range that are less than
+   * the given key, with the same galloping search as gallopCountNotAbove().
+   * @param key the given key
+   * @param arr the array of the range
+   * @param start the start of the range
+   * @param len the length of the range
+   * @param comparator to compare keys
+   * @return the number of items less than the key
+   */
+  static <T> int gallopCountBelow(final T key, final T[] arr, final int start, final int len,
+      final Comparator<? super T> comparator) {
+    int lo = 0; // arr[start + lo - 1] < key, or lo == 0
+    int hi = 1;
+    while ((hi <= len) && (comparator.compare(arr[(start + hi) - 1], key) < 0)) {
+      lo = hi;
+      hi <<= 1;
+    }
+    if (hi > len) { hi = len + 1; }
+    // the answer is in [lo, hi - 1]
+    hi--;
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if (comparator.compare(arr[(start + mid) - 1], key) < 0) { lo = mid; }
+      else { hi = mid - 1; }
     }
+    return lo;
   }
 
 }
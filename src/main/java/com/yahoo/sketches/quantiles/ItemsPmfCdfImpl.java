@@ -5,8 +5,12 @@
 
 package com.yahoo.sketches.quantiles;
 
-import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.ToLongFunction;
+
+import com.yahoo.sketches.SketchesArgumentException;
 
 class ItemsPmfCdfImpl {
 
@@ -34,6 +38,91 @@ class ItemsPmfCdfImpl {
     return result;
   }
 
+  /**
+   * Returns the total weight of the retained items less than the given value, which is the
+   * unnormalized rank of the value. Each level is sorted and is searched with a binary search,
+   * while the base buffer, which is not sorted, is scanned. The sketch is not modified and
+   * nothing is allocated. A keyed sketch compares keys instead of items.
+   * @param sketch the given quantiles sketch
+   * @param value the given value, which must not be null
+   * @return the total weight of the retained items less than the given value
+   */
+  @SuppressWarnings("unchecked")
+  static <T> long weightBelow(final ItemsSketch<T> sketch, final T value) {
+    final int bbCount = sketch.getBaseBufferCount();
+    final int k = sketch.getK();
+    long total = 0;
+    long weight = 1;
+    long myBitPattern = sketch.getBitPattern();
+    if (sketch.isKeyed()) {
+      final long key = sketch.getKeyFunction().applyAsLong(value);
+      final long[] keysArr = sketch.combinedKeys_;
+      for (int i = 0; i < bbCount; i++) {
+        if (keysArr[i] < key) { total++; }
+      }
+      for (int lvl = 0; myBitPattern != 0L; lvl++, myBitPattern >>>= 1) {
+        weight += weight; // *= 2
+        if ((myBitPattern & 1L) > 0L) {
+          total += weight * countBelow(keysArr, (2 + lvl) * k, k, key);
+        }
+      }
+    } else {
+      final Comparator<? super T> comparator = sketch.getComparator();
+      final T[] levelsArr = (T[]) sketch.getCombinedBuffer();
+      for (int i = 0; i < bbCount; i++) {
+        if (comparator.compare(levelsArr[i], value) < 0) { total++; }
+      }
+      for (int lvl = 0; myBitPattern != 0L; lvl++, myBitPattern >>>= 1) {
+        weight += weight; // *= 2
+        if ((myBitPattern & 1L) > 0L) {
+          total += weight * countBelow(levelsArr, (2 + lvl) * k, k, value, comparator);
+        }
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the number of items of the given sorted range that are less than the given value.
+   * @param samples array of samples
+   * @param offset into samples array
+   * @param numSamples number of samples in the range, which must be sorted
+   * @param value the given value
+   * @param comparator to compare items
+   * @return the number of items less than the given value
+   */
+  static <T> int countBelow(final T[] samples, final int offset, final int numSamples,
+      final T value, final Comparator<? super T> comparator) {
+    int lo = offset;
+    int hi = offset + numSamples;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (comparator.compare(samples[mid], value) < 0) { lo = mid + 1; }
+      else { hi = mid; }
+    }
+    return lo - offset;
+  }
+
+  /**
+   * Returns the number of keys of the given sorted range that are less than the given key.
+   * @param sampleKeys array of sample keys
+   * @param offset into sampleKeys array
+   * @param numSamples number of keys in the range, which must be sorted
+   * @param key the given key
+   * @return the number of keys less than the given key
+   */
+  static int countBelow(final long[] sampleKeys, final int offset, final int numSamples,
+      final long key) {
+    int lo = offset;
+    int hi = offset + numSamples;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (sampleKeys[mid] < key) { lo = mid + 1; }
+      else { hi = mid; }
+    }
+    return lo - offset;
+  }
+
   /**
    * Shared algorithm for both PMF and CDF functions. The splitPoints must be unique, monotonically
    * increasing values.
@@ -44,42 +133,178 @@ class ItemsPmfCdfImpl {
    */
   @SuppressWarnings("unchecked")
   private static <T> long[] internalBuildHistogram(final T[] splitPoints, final ItemsSketch<T> sketch) {
+    if (sketch.isKeyed()) {
+      return internalBuildKeyedHistogram(splitPoints, sketch);
+    }
     final Object[] levelsArr  = sketch.getCombinedBuffer();
     final Object[] baseBuffer = levelsArr;
     final int bbCount = sketch.getBaseBufferCount();
     ItemsUtil.validateValues(splitPoints, sketch.getComparator());
 
     final int numSplitPoints = splitPoints.length;
-    final int numCounters = numSplitPoints + 1;
-    final long[] counters = new long[numCounters];
+    final Comparator<? super T> comparator = sketch.getComparator();
+    final int k = sketch.getK();
+    final boolean search = preferSearch(k, numSplitPoints);
+    assert sketch.getBitPattern() == sketch.getN() / (2L * k); // internal consistency check
 
-    long weight = 1;
-    if (numSplitPoints < 50) { // empirically determined crossover
-      // sort not worth it when few split points
-      ItemsPmfCdfImpl.bilinearTimeIncrementHistogramCounters(
-          (T[]) baseBuffer, 0, bbCount, weight, splitPoints, counters, sketch.getComparator());
-    } else {
-      Arrays.sort(baseBuffer, 0, bbCount);
-      // sort is worth it when many split points
-      linearTimeIncrementHistogramCounters(
-          (T[]) baseBuffer, 0, bbCount, weight, splitPoints, counters, sketch.getComparator()
-      );
-    }
+    final LevelHistogram levelHistogram = (lvl, counters) -> {
+      if (lvl < 0) {
+        // the base buffer is not sorted and must not be sorted by a query
+        unsortedIncrementHistogramCounters(
+            (T[]) baseBuffer, 0, bbCount, 1, splitPoints, counters, comparator);
+      } else if (search) {
+        searchIncrementHistogramCounters(
+            (T[]) levelsArr, (2 + lvl) * k, k, 2L << lvl, splitPoints, counters, comparator);
+      } else {
+        linearTimeIncrementHistogramCounters(
+            (T[]) levelsArr, (2 + lvl) * k, k, 2L << lvl, splitPoints, counters, comparator);
+      }
+    };
+    return buildHistogram(sketch.getBitPattern(), numSplitPoints + 1, levelHistogram,
+        (sketch.getRetainedItems() >= Util.MIN_PARALLEL_ITEMS) ? sketch.forkJoinPool_ : null);
+  }
 
-    long myBitPattern = sketch.getBitPattern();
-    final int k = sketch.getK();
-    assert myBitPattern == sketch.getN() / (2L * k); // internal consistency check
+  /**
+   * Adds the weights of the samples of one level of a sketch to the given counters.
+   */
+  interface LevelHistogram {
+
+    /**
+     * Adds the weights of the samples of the given level to the given counters.
+     * @param lvl the level, where -1 is the base buffer
+     * @param counters the counters, one more than the number of split points
+     */
+    void increment(int lvl, long[] counters);
+  }
+
+  /**
+   * Builds the histogram of the base buffer and all valid levels of a sketch. Given a pool, each
+   * level is counted by a separate task into its own counters and the counters are summed.
+   * @param bitPattern the bit pattern of the valid levels
+   * @param numCounters the number of counters, one more than the number of split points
+   * @param levelHistogram counts one level
+   * @param pool the pool for the tasks. If null, the histogram is built on the calling thread.
+   * @return the unnormalized, accumulated counts
+   */
+  static long[] buildHistogram(final long bitPattern, final int numCounters,
+      final LevelHistogram levelHistogram, final ForkJoinPool pool) {
+    final int numLevels = Long.SIZE - Long.numberOfLeadingZeros(bitPattern);
+    if ((pool != null) && (numLevels > 0)) {
+      return pool.invoke(
+          new HistogramTask(bitPattern, -1, numLevels, numCounters, levelHistogram));
+    }
+    final long[] counters = new long[numCounters];
+    levelHistogram.increment(-1, counters);
+    long myBitPattern = bitPattern;
     for (int lvl = 0; myBitPattern != 0L; lvl++, myBitPattern >>>= 1) {
-      weight += weight; // *= 2
       if ((myBitPattern & 1L) > 0L) { //valid level exists
-        // the levels are already sorted so we can use the fast version
-        linearTimeIncrementHistogramCounters(
-            (T[]) levelsArr, (2 + lvl) * k, k, weight, splitPoints, counters, sketch.getComparator());
+        levelHistogram.increment(lvl, counters);
       }
     }
     return counters;
   }
 
+  /**
+   * Counts the levels from fromLvl (inclusive) to toLvl (exclusive) by splitting them in halves
+   * down to single levels and summing the counters of both halves.
+   */
+  private static final class HistogramTask extends RecursiveTask<long[]> {
+    private static final long serialVersionUID = 1L;
+    private final long bitPattern;
+    private final int fromLvl;
+    private final int toLvl;
+    private final int numCounters;
+    private final LevelHistogram levelHistogram;
+
+    HistogramTask(final long bitPattern, final int fromLvl, final int toLvl,
+        final int numCounters, final LevelHistogram levelHistogram) {
+      this.bitPattern = bitPattern;
+      this.fromLvl = fromLvl;
+      this.toLvl = toLvl;
+      this.numCounters = numCounters;
+      this.levelHistogram = levelHistogram;
+    }
+
+    @Override
+    protected long[] compute() {
+      if ((toLvl - fromLvl) == 1) {
+        final long[] counters = new long[numCounters];
+        if ((fromLvl < 0) || (((bitPattern >>> fromLvl) & 1L) > 0L)) {
+          levelHistogram.increment(fromLvl, counters);
+        }
+        return counters;
+      }
+      final int midLvl = (fromLvl + toLvl) >>> 1;
+      final HistogramTask upper =
+          new HistogramTask(bitPattern, midLvl, toLvl, numCounters, levelHistogram);
+      upper.fork();
+      final long[] counters =
+          new HistogramTask(bitPattern, fromLvl, midLvl, numCounters, levelHistogram).compute();
+      final long[] upperCounters = upper.join();
+      for (int j = 0; j < numCounters; j++) {
+        counters[j] += upperCounters[j];
+      }
+      return counters;
+    }
+  }
+
+  /**
+   * Returns true if the split points should be located in a sorted range of samples by binary
+   * searches rather than by a simultaneous walk of both. The searches cost about
+   * <i>numSplitPoints * log2(numSamples)</i> comparisons and the walk about
+   * <i>numSamples + numSplitPoints</i> comparisons.
+   * @param numSamples the number of samples in the sorted range
+   * @param numSplitPoints the number of split points
+   * @return true if the binary searches are cheaper
+   */
+  static boolean preferSearch(final int numSamples, final int numSplitPoints) {
+    final long searchCost = (long) numSplitPoints * (Integer.SIZE - Integer.numberOfLeadingZeros(numSamples));
+    return searchCost < ((long) numSamples + numSplitPoints);
+  }
+
+  /**
+   * The keyed version of internalBuildHistogram(), which compares the keys of the samples with
+   * the keys of the split points.
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * @param sketch the given keyed quantiles sketch
+   * @return the unnormalized, accumulated counts of <i>m + 1</i> intervals.
+   */
+  private static <T> long[] internalBuildKeyedHistogram(final T[] splitPoints,
+      final ItemsSketch<T> sketch) {
+    final ToLongFunction<? super T> keyFunction = sketch.getKeyFunction();
+    final int numSplitPoints = splitPoints.length;
+    final long[] splitKeys = new long[numSplitPoints];
+    for (int j = 0; j < numSplitPoints; j++) {
+      if (splitPoints[j] == null) {
+        throw new SketchesArgumentException(
+            "Values must be unique, monotonically increasing and not null.");
+      }
+      splitKeys[j] = keyFunction.applyAsLong(splitPoints[j]);
+    }
+    ItemsKeyedImpl.validateKeys(splitKeys);
+
+    final long[] keysArr = sketch.combinedKeys_;
+    final int bbCount = sketch.getBaseBufferCount();
+    final int k = sketch.getK();
+    final boolean search = preferSearch(k, numSplitPoints);
+    assert sketch.getBitPattern() == sketch.getN() / (2L * k); // internal consistency check
+
+    final LevelHistogram levelHistogram = (lvl, counters) -> {
+      if (lvl < 0) {
+        // the base buffer is not sorted and must not be sorted by a query
+        unsortedIncrementHistogramCounters(keysArr, 0, bbCount, 1, splitKeys, counters);
+      } else if (search) {
+        searchIncrementHistogramCounters(
+            keysArr, (2 + lvl) * k, k, 2L << lvl, splitKeys, counters);
+      } else {
+        linearTimeIncrementHistogramCounters(
+            keysArr, (2 + lvl) * k, k, 2L << lvl, splitKeys, counters);
+      }
+    };
+    return buildHistogram(sketch.getBitPattern(), numSplitPoints + 1, levelHistogram,
+        (sketch.getRetainedItems() >= Util.MIN_PARALLEL_ITEMS) ? sketch.forkJoinPool_ : null);
+  }
+
   /**
    * Because of the nested loop, cost is O(numSamples * numSplitPoints), which is bilinear.
    * This method does NOT require the samples to be sorted.
@@ -145,4 +370,133 @@ class ItemsPmfCdfImpl {
     }
   }
 
+  /**
+   * Locates each sample among the split points with a binary search, so the cost is
+   * O(numSamples * log(numSplitPoints)). This method does NOT require the samples to be sorted
+   * and does not modify them.
+   * @param samples array of samples
+   * @param offset into samples array
+   * @param numSamples number of samples in samples array
+   * @param weight of the samples
+   * @param splitPoints must be unique and sorted. Number of splitPoints + 1 == counters.length.
+   * @param counters array of counters
+   * @param comparator to compare items
+   */
+  static <T> void unsortedIncrementHistogramCounters(final T[] samples, final int offset,
+      final int numSamples, final long weight, final T[] splitPoints, final long[] counters,
+      final Comparator<? super T> comparator) {
+    assert (splitPoints.length + 1 == counters.length);
+    for (int i = 0; i < numSamples; i++) {
+      final T sample = samples[i + offset];
+      // the bucket of the sample is the number of split points not greater than the sample
+      int lo = 0;
+      int hi = splitPoints.length;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (comparator.compare(sample, splitPoints[mid]) < 0) { hi = mid; }
+        else { lo = mid + 1; }
+      }
+      counters[lo] += weight;
+    }
+  }
+
+  /**
+   * Locates each split point in the sorted samples with a binary search, each starting where
+   * the previous one ended, so the cost is O(numSplitPoints * log(numSamples)).
+   * This is faster than linearTimeIncrementHistogramCounters() for few split points.
+   * @param samples sorted array of samples
+   * @param offset into samples array
+   * @param numSamples number of samples in samples array
+   * @param weight of the samples
+   * @param splitPoints must be unique and sorted. Number of splitPoints + 1 = counters.length.
+   * @param counters array of counters
+   * @param comparator to compare items
+   */
+  static <T> void searchIncrementHistogramCounters(final T[] samples, final int offset,
+      final int numSamples, final long weight, final T[] splitPoints, final long[] counters,
+      final Comparator<? super T> comparator) {
+    int prev = 0;
+    for (int j = 0; j < splitPoints.length; j++) {
+      final int below = prev + countBelow(samples, offset + prev, numSamples - prev,
+          splitPoints[j], comparator);
+      counters[j] += weight * (below - prev);
+      prev = below;
+    }
+    counters[splitPoints.length] += weight * (numSamples - prev);
+  }
+
+  /**
+   * The keyed version of unsortedIncrementHistogramCounters(), which does NOT require the
+   * keys of the samples to be sorted.
+   * @param sampleKeys array of keys of samples
+   * @param offset into sampleKeys array
+   * @param numSamples number of samples in sampleKeys array
+   * @param weight of the samples
+   * @param splitKeys must be unique and sorted. Number of splitKeys + 1 == counters.length.
+   * @param counters array of counters
+   */
+  static void unsortedIncrementHistogramCounters(final long[] sampleKeys, final int offset,
+      final int numSamples, final long weight, final long[] splitKeys, final long[] counters) {
+    assert (splitKeys.length + 1 == counters.length);
+    for (int i = 0; i < numSamples; i++) {
+      final long sampleKey = sampleKeys[i + offset];
+      int lo = 0;
+      int hi = splitKeys.length;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (sampleKey < splitKeys[mid]) { hi = mid; }
+        else { lo = mid + 1; }
+      }
+      counters[lo] += weight;
+    }
+  }
+
+  /**
+   * The keyed version of searchIncrementHistogramCounters(), which requires the keys of the
+   * samples to be sorted.
+   * @param sampleKeys sorted array of keys of samples
+   * @param offset into sampleKeys array
+   * @param numSamples number of samples in sampleKeys array
+   * @param weight of the samples
+   * @param splitKeys must be unique and sorted. Number of splitKeys + 1 = counters.length.
+   * @param counters array of counters
+   */
+  static void searchIncrementHistogramCounters(final long[] sampleKeys, final int offset,
+      final int numSamples, final long weight, final long[] splitKeys, final long[] counters) {
+    int prev = 0;
+    for (int j = 0; j < splitKeys.length; j++) {
+      final int below = prev + countBelow(sampleKeys, offset + prev, numSamples - prev, splitKeys[j]);
+      counters[j] += weight * (below - prev);
+      prev = below;
+    }
+    counters[splitKeys.length] += weight * (numSamples - prev);
+  }
+
+  /**
+   * The keyed version of linearTimeIncrementHistogramCounters(), which requires the keys of the
+   * samples to be sorted.
+   * @param sampleKeys sorted array of keys of samples
+   * @param offset into sampleKeys array
+   * @param numSamples number of samples in sampleKeys array
+   * @param weight of the samples
+   * @param splitKeys must be unique and sorted. Number of splitKeys + 1 = counters.length.
+   * @param counters array of counters
+   */
+  static void linearTimeIncrementHistogramCounters(final long[] sampleKeys, final int offset,
+      final int numSamples, final long weight, final long[] splitKeys, final long[] counters) {
+    int i = 0;
+    int j = 0;
+    while (i < numSamples && j < splitKeys.length) {
+      if (sampleKeys[i + offset] < splitKeys[j]) {
+        counters[j] += weight; // this sample goes into this bucket
+        i++; // move on to next sample and see whether it also goes into this bucket
+      } else {
+        j++; // no more samples for this bucket. move on the next bucket.
+      }
+    }
+    if (j == splitKeys.length) {
+      counters[j] += (weight * (numSamples - i));
+    }
+  }
+
 }
@@ -15,10 +15,17 @@ import static com.yahoo.sketches.quantiles.PreambleUtil.extractSerVer;
 import static com.yahoo.sketches.quantiles.Util.computeBaseBufferItems;
 import static com.yahoo.sketches.quantiles.Util.computeBitPattern;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToLongFunction;
 
 import com.yahoo.memory.Memory;
 import com.yahoo.memory.WritableMemory;
@@ -51,10 +58,16 @@ public final class ItemsSketch<T> {
 
   private final Comparator<? super T> comparator_;
 
+  /**
+   * The strategy used to sort the base buffer. It sorts into the same order as comparator_.
+   */
+  private final BaseBufferSorter<? super T> sorter_;
+
   /**
    * Parameter that controls space usage of sketch and accuracy of estimates.
+   * Only downSampleInPlace() changes it.
    */
-  final int k_;
+  int k_;
 
   /**
    * Total number of data items in the stream so far. (Uniqueness plays no role in these sketches).
@@ -105,16 +118,83 @@ public final class ItemsSketch<T> {
   Object[] combinedBuffer_;
 
   /**
-   * Setting the seed makes the results of the sketch deterministic if the input values are
-   * received in exactly the same order. This is only useful when performing test comparisons,
-   * otherwise is not recommended.
+   * The source of randomness of this sketch. If null, ThreadLocalRandom.current() is used, which
+   * is the default and does not contend between threads. A seeded source makes the results of
+   * the sketch deterministic if the input values are received in exactly the same order. This
+   * is only useful when performing test comparisons, otherwise is not recommended.
+   */
+  private final SplittableRandom rand_;
+
+  /**
+   * The seed of the source of randomness of the sketches derived from this one, such as copies,
+   * down-sampled sketches and union results. It is drawn once at construction, so that deriving
+   * a sketch neither changes this sketch nor races with other threads that read it.
+   */
+  private final long derivedSeed_;
+
+  /**
+   * Extracts the order-preserving <i>long</i> key of an item. Null if this sketch is not keyed.
+   * A keyed sketch sorts, merges and queries its items by these keys instead of the comparator.
+   */
+  private final ToLongFunction<? super T> keyFunction_;
+
+  /**
+   * The keys of the items in combinedBuffer_, at the same positions and with the same length.
+   * Null if this sketch is not keyed.
+   */
+  long[] combinedKeys_;
+
+  /**
+   * The scratch space of the weighted updates of this sketch, kept from one to the next.
+   * Null until the first weighted update that inserts whole levels.
+   */
+  private ItemsMergeContext weightedUpdateCtx_;
+
+  /**
+   * The sorted view of the retained items that answers getQuantile() and getQuantiles().
+   * It is built by the first such query and reused until the sketch changes, so every method that
+   * changes the retained items must set this to null. It is immutable once built and may be shared
+   * by copies of this sketch.
+   */
+  ItemsAuxiliary<T> aux_;
+
+  /**
+   * The pool that sorts the retained items for getQuantile() and builds the histograms of
+   * getPMF() and getCDF() in parallel once this sketch retains at least
+   * Util.MIN_PARALLEL_ITEMS items. Null, the default, keeps all of the work on the calling thread.
+   */
+  ForkJoinPool forkJoinPool_;
+
+  /**
+   * True if combinedBuffer_ and combinedKeys_ may be shared with another sketch, such as the
+   * gadget of an ItemsUnion and a result obtained from it. Every method that writes into the
+   * buffers must first call unshareBuffers(), which gives this sketch its own copies.
    */
-  public static final Random rand = new Random();
+  boolean sharedBuffers_;
 
-  private ItemsSketch(final int k, final Comparator<? super T> comparator) {
+  private ItemsSketch(final int k, final Comparator<? super T> comparator,
+      final BaseBufferSorter<? super T> sorter, final SplittableRandom rand,
+      final ToLongFunction<? super T> keyFunction) {
     Util.checkK(k);
     k_ = k;
     comparator_ = comparator;
+    if (keyFunction != null) {
+      sorter_ = new RadixBaseBufferSorter<>(keyFunction);
+    } else {
+      sorter_ = (sorter == null) ? BaseBufferSorter.comparatorSort(comparator) : sorter;
+    }
+    rand_ = rand;
+    derivedSeed_ = (rand == null) ? 0L : rand.nextLong();
+    keyFunction_ = keyFunction;
+  }
+
+  /**
+   * Returns a new builder, which allows the configuration of the sketch beyond <i>k</i>.
+   * @param <T> type of item
+   * @return a new ItemsSketchBuilder
+   */
+  public static <T> ItemsSketchBuilder<T> builder() {
+    return new ItemsSketchBuilder<>();
   }
 
   /**
@@ -136,11 +216,29 @@ public final class ItemsSketch<T> {
    * @return a GenericQuantileSketch
    */
   public static <T> ItemsSketch<T> newInstance(final int k, final Comparator<? super T> comparator) {
-    final ItemsSketch<T> qs = new ItemsSketch<>(k, comparator);
+    return newInstance(k, comparator, null, null, null);
+  }
+
+  /**
+   * Obtains a new instance of an ItemsSketch.
+   * @param <T> type of item
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * @param comparator to compare items
+   * @param sorter the strategy to sort the base buffer. If null, the comparator is used.
+   * @param rand the source of randomness. If null, ThreadLocalRandom.current() is used.
+   * @param keyFunction the order-preserving key of the items of a keyed sketch, which must be
+   * consistent with the comparator. If null, the sketch is not keyed and the sorter is used.
+   * @return an ItemsSketch
+   */
+  static <T> ItemsSketch<T> newInstance(final int k, final Comparator<? super T> comparator,
+      final BaseBufferSorter<? super T> sorter, final SplittableRandom rand,
+      final ToLongFunction<? super T> keyFunction) {
+    final ItemsSketch<T> qs = new ItemsSketch<>(k, comparator, sorter, rand, keyFunction);
     final int bufAlloc = 2 * Math.min(MIN_K, k); //the min is important
     qs.n_ = 0;
     qs.combinedBufferItemCapacity_ = bufAlloc;
     qs.combinedBuffer_ = new Object[bufAlloc];
+    qs.combinedKeys_ = (keyFunction == null) ? null : new long[bufAlloc];
     qs.baseBufferCount_ = 0;
     qs.bitPattern_ = 0;
     qs.minValue_ = null;
@@ -160,6 +258,32 @@ public final class ItemsSketch<T> {
   public static <T> ItemsSketch<T> heapify(final Memory srcMem,
                                            final Comparator<? super T> comparator,
                                            final ArrayOfItemsSerDe<T> serDe) {
+    final boolean empty = checkCompactImage(srcMem);
+    final int k = extractK(srcMem);
+    final ItemsSketch<T> qs = newInstance(k, comparator); //checks k
+    if (empty) { return qs; }
+
+    //Not empty, must have valid preamble + min, max
+    final long n = extractN(srcMem);
+
+    //set class members
+    qs.n_ = n;
+    qs.combinedBufferItemCapacity_ = Util.computeCombinedBufferItemCapacity(k, n);
+    qs.baseBufferCount_ = computeBaseBufferItems(k, n);
+    qs.bitPattern_ = computeBitPattern(k, n);
+    qs.combinedBuffer_ = new Object[qs.combinedBufferItemCapacity_];
+
+    final T[] itemsArray = deserializeCompactItems(srcMem, serDe);
+    qs.itemsArrayToCombinedBuffer(itemsArray);
+    return qs;
+  }
+
+  /**
+   * Checks the preamble of the given Memory image of an ItemsSketch.
+   * @param srcMem a Memory image of a sketch
+   * @return true if the image is of an empty sketch
+   */
+  static boolean checkCompactImage(final Memory srcMem) {
     final long memCapBytes = srcMem.getCapacity();
     if (memCapBytes < 8) {
       throw new SketchesArgumentException("Memory too small: " + memCapBytes);
@@ -181,30 +305,31 @@ public final class ItemsSketch<T> {
 
     final boolean empty = Util.checkPreLongsFlagsCap(preambleLongs, flags, memCapBytes);
     Util.checkFamilyID(familyID);
+    Util.checkK(k);
+    return empty;
+  }
 
-    final ItemsSketch<T> qs = newInstance(k, comparator); //checks k
-    if (empty) { return qs; }
-
-    //Not empty, must have valid preamble + min, max
+  /**
+   * Deserializes the items of the given checked Memory image of a non-empty ItemsSketch in
+   * compact form: the min and max values, the base buffer and then the valid levels in
+   * ascending order.
+   * @param srcMem a Memory image of a non-empty sketch
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @return the min and max values followed by the retained items
+   */
+  static <T> T[] deserializeCompactItems(final Memory srcMem, final ArrayOfItemsSerDe<T> serDe) {
+    final int preambleLongs = extractPreLongs(srcMem);
+    final int k = extractK(srcMem);
     final long n = extractN(srcMem);
 
     //can't check memory capacity here, not enough information
     final int extra = 2; //for min, max
     final int numMemItems = Util.computeRetainedItems(k, n) + extra;
 
-    //set class members
-    qs.n_ = n;
-    qs.combinedBufferItemCapacity_ = Util.computeCombinedBufferItemCapacity(k, n);
-    qs.baseBufferCount_ = computeBaseBufferItems(k, n);
-    qs.bitPattern_ = computeBitPattern(k, n);
-    qs.combinedBuffer_ = new Object[qs.combinedBufferItemCapacity_];
-
     final int srcMemItemsOffsetBytes = preambleLongs * Long.BYTES;
     final Memory mReg = srcMem.region(srcMemItemsOffsetBytes,
         srcMem.getCapacity() - srcMemItemsOffsetBytes);
-    final T[] itemsArray = serDe.deserializeFromMemory(mReg, numMemItems);
-    qs.itemsArrayToCombinedBuffer(itemsArray);
-    return qs;
+    return serDe.deserializeFromMemory(mReg, numMemItems);
   }
 
   /**
@@ -213,7 +338,8 @@ public final class ItemsSketch<T> {
    * @return a copy of the given sketch
    */
   static <T> ItemsSketch<T> copy(final ItemsSketch<T> sketch) {
-    final ItemsSketch<T> qsCopy = ItemsSketch.newInstance(sketch.k_, sketch.comparator_);
+    final ItemsSketch<T> qsCopy = ItemsSketch.newInstance(sketch.k_, sketch.comparator_,
+        sketch.sorter_, sketch.derivedRandom(), sketch.keyFunction_);
     qsCopy.n_ = sketch.n_;
     qsCopy.minValue_ = sketch.getMinValue();
     qsCopy.maxValue_ = sketch.getMaxValue();
@@ -222,9 +348,52 @@ public final class ItemsSketch<T> {
     qsCopy.bitPattern_ = sketch.getBitPattern();
     final Object[] combBuf = sketch.getCombinedBuffer();
     qsCopy.combinedBuffer_ = Arrays.copyOf(combBuf, combBuf.length);
+    if (sketch.isKeyed()) {
+      qsCopy.combinedKeys_ = Arrays.copyOf(sketch.combinedKeys_, combBuf.length);
+    }
+    qsCopy.aux_ = sketch.aux_; //immutable, so it can be shared
+    qsCopy.forkJoinPool_ = sketch.forkJoinPool_;
     return qsCopy;
   }
 
+  /**
+   * Returns a copy of the given sketch that shares the buffers of the given sketch until either
+   * of the two is changed, which then copies the buffers for itself. This makes the copy cost
+   * nothing unless it is followed by a change.
+   * @param sketch the given sketch
+   * @return a copy-on-write copy of the given sketch
+   */
+  static <T> ItemsSketch<T> copyOnWrite(final ItemsSketch<T> sketch) {
+    final ItemsSketch<T> qsCopy = ItemsSketch.newInstance(sketch.k_, sketch.comparator_,
+        sketch.sorter_, sketch.derivedRandom(), sketch.keyFunction_);
+    qsCopy.n_ = sketch.n_;
+    qsCopy.minValue_ = sketch.getMinValue();
+    qsCopy.maxValue_ = sketch.getMaxValue();
+    qsCopy.combinedBufferItemCapacity_ = sketch.getCombinedBufferAllocatedCount();
+    qsCopy.baseBufferCount_ = sketch.getBaseBufferCount();
+    qsCopy.bitPattern_ = sketch.getBitPattern();
+    qsCopy.combinedBuffer_ = sketch.combinedBuffer_;
+    qsCopy.combinedKeys_ = sketch.combinedKeys_;
+    qsCopy.aux_ = sketch.aux_;
+    qsCopy.forkJoinPool_ = sketch.forkJoinPool_;
+    qsCopy.sharedBuffers_ = true;
+    sketch.sharedBuffers_ = true;
+    return qsCopy;
+  }
+
+  /**
+   * Gives this sketch its own copies of its buffers if they may be shared with another sketch.
+   * Must be called before anything is written into the buffers.
+   */
+  void unshareBuffers() {
+    if (!sharedBuffers_) { return; }
+    combinedBuffer_ = combinedBuffer_.clone();
+    if (combinedKeys_ != null) {
+      combinedKeys_ = combinedKeys_.clone();
+    }
+    sharedBuffers_ = false;
+  }
+
   /**
    * Updates this sketch with the given double data item
    * @param dataItem an item from a stream of items. NaNs are ignored.
@@ -233,12 +402,17 @@ public final class ItemsSketch<T> {
     // this method only uses the base buffer part of the combined buffer
 
     if (dataItem == null) { return; }
+    aux_ = null;
+    unshareBuffers();
     if (maxValue_ == null || comparator_.compare(dataItem, maxValue_) > 0) { maxValue_ = dataItem; }
     if (minValue_ == null || comparator_.compare(dataItem, minValue_) < 0) { minValue_ = dataItem; }
 
     if (baseBufferCount_ + 1 > combinedBufferItemCapacity_) {
       ItemsSketch.growBaseBuffer(this);
     }
+    if (keyFunction_ != null) {
+      combinedKeys_[baseBufferCount_] = keyFunction_.applyAsLong(dataItem);
+    }
     combinedBuffer_[baseBufferCount_++] = dataItem;
     n_++;
     if (baseBufferCount_ == 2 * k_) {
@@ -246,14 +420,210 @@ public final class ItemsSketch<T> {
     }
   }
 
+  /**
+   * Updates this sketch with the given data item presented the given number of times.
+   * This is equivalent to, but much faster than, calling {@link #update(Object)} <i>weight</i>
+   * times. The remainder of the weight modulo 2k goes into the base buffer. Each set bit of the
+   * rest of the weight is inserted directly as a full level of copies of the item, so the cost
+   * is logarithmic in the weight.
+   * @param dataItem an item from a stream of items. Nulls are ignored.
+   * @param weight the number of times the item was presented. Must be at least 1.
+   */
+  public void update(final T dataItem, final long weight) {
+    update(dataItem, weight, null);
+  }
+
+  /**
+   * Updates this sketch with the given data item presented the given number of times as
+   * update(dataItem, weight), with the scratch space of the given context.
+   * @param dataItem an item from a stream of items. Nulls are ignored.
+   * @param weight the number of times the item was presented. Must be at least 1.
+   * @param ctx the context that provides the scratch space of the inserted levels, or null to use
+   * the context of this sketch
+   */
+  void update(final T dataItem, final long weight, final ItemsMergeContext ctx) {
+    if (weight < 1) {
+      throw new SketchesArgumentException("Weight must be at least 1: " + weight);
+    }
+    if (dataItem == null) { return; }
+    aux_ = null;
+    unshareBuffers();
+    updateMinMax(dataItem, dataItem);
+
+    final int bbLim = 2 * k_;
+    int remaining = (int) (weight % bbLim);
+    while (remaining > 0) {
+      final int chunk = Math.min(bbLim - baseBufferCount_, remaining);
+      while (baseBufferCount_ + chunk > combinedBufferItemCapacity_) {
+        ItemsSketch.growBaseBuffer(this);
+      }
+      final int bbLimChunk = baseBufferCount_ + chunk;
+      Arrays.fill(combinedBuffer_, baseBufferCount_, bbLimChunk, dataItem);
+      if (keyFunction_ != null) {
+        Arrays.fill(combinedKeys_, baseBufferCount_, bbLimChunk,
+            keyFunction_.applyAsLong(dataItem));
+      }
+      baseBufferCount_ = bbLimChunk;
+      n_ += chunk;
+      remaining -= chunk;
+      if (baseBufferCount_ == bbLim) {
+        ItemsUtil.processFullBaseBuffer(this);
+      }
+    }
+
+    final long levelBits = weight / bbLim;
+    if (levelBits > 0) {
+      if ((ctx == null) && (weightedUpdateCtx_ == null)) {
+        weightedUpdateCtx_ = new ItemsMergeContext();
+      }
+      ItemsUpdateImpl.insertWeightedLevels(this, dataItem, levelBits,
+          (ctx != null) ? ctx : weightedUpdateCtx_);
+    }
+  }
+
+  /**
+   * Updates this sketch with the given slice of an array of items.
+   * This is equivalent to, but faster than, calling {@link #update(Object)} for each item.
+   * Runs of items are copied directly into the base buffer, the min and max values are
+   * computed once per run and the base buffer is only processed when it becomes full.
+   * @param dataItems an array of items from a stream of items. Null items are ignored.
+   * @param offset the index of the first item of the slice
+   * @param length the number of items in the slice
+   */
+  public void update(final T[] dataItems, final int offset, final int length) {
+    if ((offset < 0) || (length < 0) || (offset > (dataItems.length - length))) {
+      throw new SketchesArgumentException("Invalid slice: offset: " + offset + ", length: "
+          + length + ", array length: " + dataItems.length);
+    }
+    aux_ = null;
+    unshareBuffers();
+    final int bbLim = 2 * k_;
+    int srcIdx = offset;
+    int remaining = length;
+    while (remaining > 0) {
+      final int chunk = Math.min(bbLim - baseBufferCount_, remaining);
+      while (baseBufferCount_ + chunk > combinedBufferItemCapacity_) {
+        ItemsSketch.growBaseBuffer(this);
+      }
+      final int copied = copyChunkToBaseBuffer(dataItems, srcIdx, chunk);
+      srcIdx += chunk;
+      remaining -= chunk;
+      n_ += copied;
+      if (baseBufferCount_ == bbLim) {
+        ItemsUtil.processFullBaseBuffer(this);
+      }
+    }
+  }
+
+  /**
+   * Updates this sketch with the items of the base buffer of the given sketch, as if each had
+   * been presented to {@link #update(Object)}. The items are copied in chunks up to the next
+   * boundary of 2k, so the base buffer is only processed when it becomes full, and the min and
+   * max values of the source are folded into this sketch once instead of once per item.
+   * If both sketches are keyed with the same key function the keys are copied as well.
+   * This is the bulk path of merges and unions with sources in exact mode, and also the first
+   * step of merges with sources in estimation mode, which fold in the same min and max values.
+   * @param src the source sketch, which is not modified
+   */
+  void updateFromBaseBuffer(final ItemsSketch<T> src) {
+    final long[] srcKeys = ((keyFunction_ != null) && (src.getKeyFunction() == keyFunction_))
+        ? src.combinedKeys_ : null;
+    updateFromBaseBuffer(src.getCombinedBuffer(), srcKeys, 0, src.getBaseBufferCount(),
+        src.getMinValue(), src.getMaxValue());
+  }
+
+  /**
+   * Updates this sketch with the given range of items, which must not contain nulls, as
+   * updateFromBaseBuffer(ItemsSketch) does.
+   * @param srcBuf the array of the items
+   * @param srcKeys the keys of the items for the key function of this sketch, at the same
+   * positions as the items, or null if this sketch is not keyed or the keys must be computed
+   * @param offset the index of the first item
+   * @param srcCount the number of items
+   * @param srcMin the min value of the source, which is folded into this sketch even if there
+   * are no items
+   * @param srcMax the max value of the source
+   */
+  @SuppressWarnings("unchecked")
+  void updateFromBaseBuffer(final Object[] srcBuf, final long[] srcKeys, final int offset,
+      final int srcCount, final T srcMin, final T srcMax) {
+    updateMinMax(srcMin, srcMax);
+    if (srcCount == 0) { return; }
+    aux_ = null;
+    unshareBuffers();
+    final int bbLim = 2 * k_;
+    int srcIdx = offset;
+    final int srcLim = offset + srcCount;
+    while (srcIdx < srcLim) {
+      final int chunk = Math.min(bbLim - baseBufferCount_, srcLim - srcIdx);
+      while (baseBufferCount_ + chunk > combinedBufferItemCapacity_) {
+        ItemsSketch.growBaseBuffer(this);
+      }
+      System.arraycopy(srcBuf, srcIdx, combinedBuffer_, baseBufferCount_, chunk);
+      if (srcKeys != null) {
+        System.arraycopy(srcKeys, srcIdx, combinedKeys_, baseBufferCount_, chunk);
+      } else if (keyFunction_ != null) {
+        for (int i = 0; i < chunk; i++) {
+          combinedKeys_[baseBufferCount_ + i] = keyFunction_.applyAsLong((T) srcBuf[srcIdx + i]);
+        }
+      }
+      baseBufferCount_ += chunk;
+      n_ += chunk;
+      srcIdx += chunk;
+      if (baseBufferCount_ == bbLim) {
+        ItemsUtil.processFullBaseBuffer(this);
+      }
+    }
+  }
+
+  /**
+   * Updates this sketch with all the items of the given Iterable.
+   * This is equivalent to calling {@link #update(Object)} for each item, but only updates the
+   * min and max values of this sketch once. This is not an overload of update() so that
+   * update(null) remains unambiguous.
+   * @param dataItems an Iterable of items from a stream of items. Null items are ignored.
+   */
+  public void updateAll(final Iterable<? extends T> dataItems) {
+    if (dataItems == null) { return; }
+    aux_ = null;
+    unshareBuffers();
+    final int bbLim = 2 * k_;
+    T chunkMin = null;
+    T chunkMax = null;
+    for (final T dataItem : dataItems) {
+      if (dataItem == null) { continue; }
+      if (chunkMax == null) {
+        chunkMin = dataItem;
+        chunkMax = dataItem;
+      } else if (comparator_.compare(dataItem, chunkMax) > 0) {
+        chunkMax = dataItem;
+      } else if (comparator_.compare(dataItem, chunkMin) < 0) {
+        chunkMin = dataItem;
+      }
+      if (baseBufferCount_ == combinedBufferItemCapacity_) {
+        ItemsSketch.growBaseBuffer(this);
+      }
+      if (keyFunction_ != null) {
+        combinedKeys_[baseBufferCount_] = keyFunction_.applyAsLong(dataItem);
+      }
+      combinedBuffer_[baseBufferCount_++] = dataItem;
+      n_++;
+      if (baseBufferCount_ == bbLim) {
+        ItemsUtil.processFullBaseBuffer(this);
+      }
+    }
+    updateMinMax(chunkMin, chunkMax);
+  }
+
   /**
    * This returns an approximation to the value of the data item
    * that would be preceded by the given fraction of a hypothetical sorted
    * version of the input stream so far.
    *
-   * <p>We note that this method has a fairly large overhead (microseconds instead of nanoseconds)
-   * so it should not be called multiple times to get different quantiles from the same
-   * sketch. Instead use getQuantiles(). which pays the overhead only once.
+   * <p>We note that the first query after the sketch has changed has a fairly large overhead
+   * (microseconds instead of nanoseconds), because it sorts all retained items. The sorted view
+   * is cached, so further queries cost a binary search until the sketch is updated, merged into
+   * or reset.
    *
    * @param fraction the specified fractional position in the hypothetical sorted stream.
    * These are also called normalized ranks or fractional ranks.
@@ -294,21 +664,46 @@ public final class ItemsSketch<T> {
   public T[] getQuantiles(final double[] fractions) {
     if (isEmpty()) { return null; }
     Util.validateFractions(fractions);
-    ItemsAuxiliary<T> aux = null;
     @SuppressWarnings("unchecked")
     final T[] answers = (T[]) Array.newInstance(minValue_.getClass(), fractions.length);
+    getQuantiles(fractions, answers);
+    return answers;
+  }
+
+  /**
+   * This is the allocation-free version of {@link #getQuantiles(double[])}, which writes the
+   * answers into the given array. Because the fractions are sorted, all of them are answered in a
+   * single forward sweep over the sorted view of the sketch.
+   *
+   * @param fractions given array of fractional positions in the hypothetical sorted stream.
+   * These fractions must be monotonic, in increasing order and in the interval
+   * [0.0, 1.0] inclusive.
+   * @param out the array that receives the answers in the same order as the given fractions.
+   * It must be at least as long as the fractions array. If the sketch is empty it receives nulls.
+   */
+  public void getQuantiles(final double[] fractions, final T[] out) {
+    Util.validateFractions(fractions);
+    Util.checkOutLength(out.length, fractions.length);
+    if (isEmpty()) {
+      Arrays.fill(out, 0, fractions.length, null);
+      return;
+    }
+    ItemsAuxiliary<T> aux = null;
+    int index = 0;
     for (int i = 0; i < fractions.length; i++) {
       final double fraction = fractions[i];
-      if      (fraction == 0.0) { answers[i] = minValue_; }
-      else if (fraction == 1.0) { answers[i] = maxValue_; }
+      if      (fraction == 0.0) { out[i] = minValue_; }
+      else if (fraction == 1.0) { out[i] = maxValue_; }
       else {
         if (aux == null) {
           aux = this.constructAuxiliary();
         }
-        answers[i] = aux.getQuantile(fraction);
+        index = aux.quantileIndexFrom(fraction, index);
+        @SuppressWarnings("unchecked")
+        final T item = (T) aux.auxSamplesArr_[index];
+        out[i] = item;
       }
     }
-    return answers;
   }
 
   /**
@@ -367,13 +762,41 @@ public final class ItemsSketch<T> {
 
   /**
    * Returns an approximation to the normalized (fractional) rank of the given value from 0 to 1 inclusive.
-   * @param value to be ranked
+   * This equals the first value of getCDF() for the given value. It costs a single binary search
+   * if the sorted view of getQuantile() is cached, otherwise one binary search per level and a
+   * scan of the base buffer. The sketch is not modified.
+   * @param value to be ranked, which must not be null
    * @return an approximate rank of the given value
    */
-  @SuppressWarnings("unchecked")
   public double getRank(final T value) {
     if (isEmpty()) { return Double.NaN; }
-    return getCDF((T[]) new Object[] {value})[0];
+    checkRankValue(value);
+    final ItemsAuxiliary<T> aux = aux_;
+    final long weight = (aux != null)
+        ? aux.weightBelow(value, comparator_, keyFunction_)
+        : ItemsPmfCdfImpl.weightBelow(this, value);
+    return weight / (double) n_;
+  }
+
+  /**
+   * Returns approximations to the normalized (fractional) ranks of the given values.
+   * This is the batch version of {@link #getRank(Object)}. The values need not be sorted.
+   * It builds the sorted view that getQuantile() also uses, or reuses the cached one, and then
+   * costs a single binary search per value.
+   * @param values the values to be ranked, which must not be null
+   * @return an array of the approximate ranks of the given values in the same order.
+   * Returns null if the sketch is empty.
+   */
+  public double[] getRanks(final T[] values) {
+    if (isEmpty()) { return null; }
+    final ItemsAuxiliary<T> aux = constructAuxiliary();
+    final double n = n_;
+    final double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      checkRankValue(values[i]);
+      ranks[i] = aux.weightBelow(values[i], comparator_, keyFunction_) / n;
+    }
+    return ranks;
   }
 
   /**
@@ -462,9 +885,33 @@ public final class ItemsSketch<T> {
    * Resets this sketch to a virgin state, but retains the original value of k.
    */
   public void reset() {
+    reset(false);
+  }
+
+  /**
+   * Resets this sketch to a virgin state, but retains the original value of k.
+   * @param retainBuffer if true, the allocated combined buffer is kept and only cleared of its
+   * references, so that a sketch that is reused for a similar number of items does not have to
+   * grow its buffers again. If false, the buffer is released as with {@link #reset()}.
+   */
+  public void reset(final boolean retainBuffer) {
+    aux_ = null;
     n_ = 0;
-    combinedBufferItemCapacity_ = 2 * Math.min(MIN_K, k_); //the min is important
-    combinedBuffer_ = new Object[combinedBufferItemCapacity_];
+    if (retainBuffer && sharedBuffers_) { //the other sketch still needs the contents
+      combinedBuffer_ = new Object[combinedBufferItemCapacity_];
+      if (keyFunction_ != null) {
+        combinedKeys_ = new long[combinedBufferItemCapacity_];
+      }
+    } else if (retainBuffer) {
+      Arrays.fill(combinedBuffer_, null); //unused levels may hold stale references too
+    } else {
+      combinedBufferItemCapacity_ = 2 * Math.min(MIN_K, k_); //the min is important
+      combinedBuffer_ = new Object[combinedBufferItemCapacity_];
+      if (keyFunction_ != null) {
+        combinedKeys_ = new long[combinedBufferItemCapacity_];
+      }
+    }
+    sharedBuffers_ = false;
     baseBufferCount_ = 0;
     bitPattern_ = 0;
     minValue_ = null;
@@ -517,11 +964,28 @@ public final class ItemsSketch<T> {
    * @return the new sketch.
    */
   public ItemsSketch<T> downSample(final int newK) {
-    final ItemsSketch<T> newSketch = ItemsSketch.newInstance(newK, comparator_);
+    final ItemsSketch<T> newSketch = ItemsSketch.newInstance(newK, comparator_, sorter_,
+        derivedRandom(), keyFunction_);
     ItemsMergeImpl.downSamplingMergeInto(this, newSketch);
     return newSketch;
   }
 
+  /**
+   * Reduces the value of K of this sketch in place. This has the same effect on the accuracy as
+   * {@link #downSample(int)}, but rewrites the retained items within the existing buffer instead
+   * of merging them into a new sketch, and then shrinks the buffer to the size needed for the new
+   * value of K. Apart from that smaller buffer, it allocates no space that grows with the size of
+   * the sketch, unless this sketch shares its buffers with a copy-on-write result of an
+   * ItemsUnion, which it must then copy first.
+   *
+   * @param newK the new value of K that must not be larger than the current value of K.
+   * It is required that this.getK() = newK * 2^(nonnegative integer).
+   */
+  public void downSampleInPlace(final int newK) {
+    Util.checkK(newK);
+    ItemsMergeImpl.downSampleInPlace(this, newK);
+  }
+
   /**
    * Computes the number of retained entries (samples) in the sketch
    * @return the number of retained entries (samples) in the sketch
@@ -530,21 +994,72 @@ public final class ItemsSketch<T> {
     return Util.computeRetainedItems(getK(), getN());
   }
 
+  /**
+   * Returns the number of bytes of the serialized form of this sketch, which is the length of the
+   * array returned by {@link #toByteArray(ArrayOfItemsSerDe)} and the space needed by
+   * putMemory(), putByteBuffer() and writeTo(). This costs a serialization of the sketch with
+   * toByteArray() unless {@link ArrayOfItemsSerDe#serializesItemsIndependently()} is true.
+   *
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @return the number of bytes of the serialized form of this sketch
+   */
+  public int getSerializedSizeBytes(final ArrayOfItemsSerDe<T> serDe) {
+    return ItemsByteArrayImpl.getSerializedSizeBytes(this, serDe);
+  }
+
   /**
    * Puts the current sketch into the given Memory if there is sufficient space.
    * Otherwise, throws an error.
    *
+   * <p>If {@link ArrayOfItemsSerDe#serializesItemsIndependently()} is true, the items are
+   * serialized straight into the Memory with
+   * {@link ArrayOfItemsSerDe#serializeToMemory(Object[], int, int, WritableMemory, long)},
+   * without the intermediate arrays of toByteArray().</p>
+   *
    * @param dstMem the given memory.
    * @param serDe an instance of ArrayOfItemsSerDe
    */
   public void putMemory(final WritableMemory dstMem, final ArrayOfItemsSerDe<T> serDe) {
-    final byte[] byteArr = toByteArray(serDe);
-    final long memCap = dstMem.getCapacity();
-    if (memCap < byteArr.length) {
-      throw new SketchesArgumentException(
-          "Destination Memory not large enough: " + memCap + " < " + byteArr.length);
+    ItemsByteArrayImpl.putMemory(this, false, serDe, dstMem);
+  }
+
+  /**
+   * Puts the current sketch into the given ByteBuffer at its position, and advances the position
+   * past the sketch, if there is sufficient space remaining. Otherwise, throws an error.
+   * The items are written as by putMemory().
+   *
+   * @param dstBuf the given ByteBuffer, which must not be read-only
+   * @param serDe an instance of ArrayOfItemsSerDe
+   */
+  public void putByteBuffer(final ByteBuffer dstBuf, final ArrayOfItemsSerDe<T> serDe) {
+    final ByteOrder order = dstBuf.order(); //wrapping sets the native order, which is restored
+    final int position = dstBuf.position();
+    final int numBytes;
+    try {
+      final WritableMemory dstMem =
+          WritableMemory.wrap(dstBuf).writableRegion(position, dstBuf.remaining());
+      numBytes = ItemsByteArrayImpl.putMemory(this, false, serDe, dstMem);
+    } finally {
+      dstBuf.order(order);
     }
-    dstMem.putByteArray(0, byteArr, 0, byteArr.length);
+    dstBuf.position(position + numBytes);
+  }
+
+  /**
+   * Writes the current sketch to the given OutputStream in the serialized form of
+   * {@link #toByteArray(ArrayOfItemsSerDe)}. If
+   * {@link ArrayOfItemsSerDe#serializesItemsIndependently()} is true, the items are serialized
+   * one level at a time into a staging array no larger than the base buffer or a single level,
+   * not into an array of the whole sketch.
+   * The OutputStream is neither flushed nor closed.
+   *
+   * @param out the given OutputStream
+   * @param serDe an instance of ArrayOfItemsSerDe
+   * @throws IOException if the OutputStream throws it
+   */
+  public void writeTo(final OutputStream out, final ArrayOfItemsSerDe<T> serDe)
+      throws IOException {
+    ItemsByteArrayImpl.writeTo(this, false, serDe, out);
   }
 
   // Restricted
@@ -585,6 +1100,86 @@ public final class ItemsSketch<T> {
     return comparator_;
   }
 
+  /**
+   * Returns the strategy used to sort the base buffer
+   * @return the strategy used to sort the base buffer
+   */
+  BaseBufferSorter<? super T> getBaseBufferSorter() {
+    return sorter_;
+  }
+
+  /**
+   * Returns true if this sketch orders its items by the keys in combinedKeys_.
+   * @return true if this sketch is keyed
+   */
+  boolean isKeyed() {
+    return keyFunction_ != null;
+  }
+
+  /**
+   * Returns the key function of this sketch
+   * @return the key function of this sketch, null if this sketch is not keyed.
+   */
+  ToLongFunction<? super T> getKeyFunction() {
+    return keyFunction_;
+  }
+
+  /**
+   * Allocates the combined buffer of this empty sketch for the given number of items up front,
+   * so that neither the base buffer nor the levels are reallocated until more than
+   * <i>expectedN</i> items have been presented to the sketch.
+   * @param expectedN the expected number of items
+   */
+  void preallocate(final long expectedN) {
+    assert n_ == 0;
+    final int capacity = Util.computeCombinedBufferItemCapacity(k_, expectedN);
+    if (capacity > combinedBufferItemCapacity_) {
+      combinedBufferItemCapacity_ = capacity;
+      combinedBuffer_ = new Object[capacity];
+      if (keyFunction_ != null) {
+        combinedKeys_ = new long[capacity];
+      }
+    }
+  }
+
+  /**
+   * Returns the source of randomness of a sketch derived from this one. This sketch is not changed.
+   * @return null if this sketch uses ThreadLocalRandom, otherwise a new source with the seed that
+   * was drawn for derived sketches when this sketch was constructed.
+   */
+  SplittableRandom derivedRandom() {
+    return (rand_ == null) ? null : new SplittableRandom(derivedSeed_);
+  }
+
+  /**
+   * Returns a pseudorandom int between zero (inclusive) and the given bound (exclusive) from the
+   * source of randomness of this sketch.
+   * @param bound the upper bound (exclusive). Must be positive.
+   * @return a pseudorandom int
+   */
+  int nextRandomInt(final int bound) {
+    return (rand_ == null) ? ThreadLocalRandom.current().nextInt(bound) : rand_.nextInt(bound);
+  }
+
+  /**
+   * Returns a pseudorandom boolean from the source of randomness of this sketch.
+   * @return a pseudorandom boolean
+   */
+  boolean nextRandomBoolean() {
+    return (rand_ == null) ? ThreadLocalRandom.current().nextBoolean() : rand_.nextBoolean();
+  }
+
+  /**
+   * Sorts the given range of the given array with the BaseBufferSorter of this sketch.
+   * @param items the array to be sorted
+   * @param fromIndex the index of the first element, inclusive, to be sorted
+   * @param toIndex the index of the last element, exclusive, to be sorted
+   */
+  @SuppressWarnings("unchecked")
+  void sortBaseBuffer(final Object[] items, final int fromIndex, final int toIndex) {
+    sorter_.sort((T[]) items, fromIndex, toIndex);
+  }
+
   /**
    * Loads the Combined Buffer, min and max from the given items array.
    * The Combined Buffer is always in non-compact form and must be pre-allocated.
@@ -614,12 +1209,24 @@ public final class ItemsSketch<T> {
   }
 
   /**
-   * Returns the Auxiliary data structure which is only used for getQuantile() and getQuantiles()
-   * queries.
+   * Returns the Auxiliary data structure which is only used for getQuantile(), getQuantiles()
+   * and getRanks() queries. It is built on the first query after a change of the sketch and cached until the
+   * next change.
    * @return the Auxiliary data structure
    */
   private ItemsAuxiliary<T> constructAuxiliary() {
-    return new ItemsAuxiliary<T>(this);
+    ItemsAuxiliary<T> aux = aux_;
+    if (aux == null) {
+      aux = new ItemsAuxiliary<T>(this);
+      aux_ = aux;
+    }
+    return aux;
+  }
+
+  private static void checkRankValue(final Object value) {
+    if (value == null) {
+      throw new SketchesArgumentException("A value to be ranked cannot be null.");
+    }
   }
 
   private static double[] getEvenlySpaced(final int n) {
@@ -637,6 +1244,61 @@ public final class ItemsSketch<T> {
     return fractions;
   }
 
+  /**
+   * Copies the given run of items into the base buffer, skipping nulls, and folds the min and
+   * max of the run into this sketch. The base buffer must have room for the whole run.
+   * @param src the source array
+   * @param srcIdx the index of the first item of the run
+   * @param len the length of the run
+   * @return the number of items copied, which is less than len if the run contained nulls.
+   */
+  private int copyChunkToBaseBuffer(final T[] src, final int srcIdx, final int len) {
+    T chunkMin = null;
+    T chunkMax = null;
+    boolean hasNulls = false;
+    final int srcLim = srcIdx + len;
+    for (int i = srcIdx; i < srcLim; i++) {
+      final T item = src[i];
+      if (item == null) {
+        hasNulls = true;
+      } else if (chunkMax == null) {
+        chunkMin = item;
+        chunkMax = item;
+      } else if (comparator_.compare(item, chunkMax) > 0) {
+        chunkMax = item;
+      } else if (comparator_.compare(item, chunkMin) < 0) {
+        chunkMin = item;
+      }
+    }
+    updateMinMax(chunkMin, chunkMax);
+
+    final int start = baseBufferCount_;
+    if (!hasNulls) {
+      System.arraycopy(src, srcIdx, combinedBuffer_, start, len);
+      if (keyFunction_ != null) {
+        for (int i = 0; i < len; i++) {
+          combinedKeys_[start + i] = keyFunction_.applyAsLong(src[srcIdx + i]);
+        }
+      }
+      baseBufferCount_ += len;
+    } else {
+      for (int i = srcIdx; i < srcLim; i++) {
+        if (src[i] == null) { continue; }
+        if (keyFunction_ != null) {
+          combinedKeys_[baseBufferCount_] = keyFunction_.applyAsLong(src[i]);
+        }
+        combinedBuffer_[baseBufferCount_++] = src[i];
+      }
+    }
+    return baseBufferCount_ - start;
+  }
+
+  void updateMinMax(final T min, final T max) {
+    if (max == null) { return; } //then min is also null
+    if (maxValue_ == null || comparator_.compare(max, maxValue_) > 0) { maxValue_ = max; }
+    if (minValue_ == null || comparator_.compare(min, minValue_) < 0) { minValue_ = min; }
+  }
+
   private static <T> void growBaseBuffer(final ItemsSketch<T> sketch) {
     final Object[] baseBuffer = sketch.getCombinedBuffer();
     final int oldSize = sketch.getCombinedBufferAllocatedCount();
@@ -645,6 +1307,9 @@ public final class ItemsSketch<T> {
     final int newSize = Math.max(Math.min(2 * k, 2 * oldSize), 1);
     sketch.combinedBufferItemCapacity_ = newSize;
     sketch.combinedBuffer_ = Arrays.copyOf(baseBuffer, newSize);
+    if (sketch.isKeyed()) {
+      sketch.combinedKeys_ = Arrays.copyOf(sketch.combinedKeys_, newSize);
+    }
   }
 
 }
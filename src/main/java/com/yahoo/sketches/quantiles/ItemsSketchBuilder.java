@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.Util.LS;
+import static com.yahoo.sketches.quantiles.Util.TAB;
+
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * For building a new ItemsSketch.
+ *
+ * @param <T> type of item
+ */
+public final class ItemsSketchBuilder<T> {
+  private int bK = PreambleUtil.DEFAULT_K;
+  private BaseBufferSorter<? super T> bSorter = null; //null means sort with the comparator
+  private Long bSeed = null; //null means use ThreadLocalRandom
+  private long bExpectedN = 0; //0 means grow the buffers as needed
+  private ForkJoinPool bPool = null; //null means all work is done on the calling thread
+
+  /**
+   * Constructor for a new ItemsSketchBuilder. The default configuration is
+   * <ul>
+   * <li>k: 128. This produces a normalized rank error of about 1.7%</li>
+   * <li>BaseBufferSorter: sort with the comparator of the sketch</li>
+   * <li>Seed: none, the sketch draws from ThreadLocalRandom</li>
+   * <li>Expected N: 0, the buffers of the sketch grow as items arrive</li>
+   * <li>ForkJoinPool: none, queries run on the calling thread</li>
+   * </ul>
+   */
+  public ItemsSketchBuilder() {}
+
+  /**
+   * Sets the parameter <i>k</i> that determines the accuracy and size of the sketch.
+   * @param k determines the accuracy and size of the sketch.
+   * It is recommended that <i>k</i> be a power of 2 to enable unioning of sketches with
+   * different values of <i>k</i>. It is only possible to union from
+   * larger values of <i>k</i> to smaller values.
+   * @return this builder
+   */
+  public ItemsSketchBuilder<T> setK(final int k) {
+    Util.checkK(k);
+    bK = k;
+    return this;
+  }
+
+  /**
+   * Sets the strategy used to sort the base buffer.
+   * @param sorter the given BaseBufferSorter, which must sort into the same order as the
+   * comparator given to {@link #build(Comparator)}. If null, the comparator is used.
+   * @return this builder
+   */
+  public ItemsSketchBuilder<T> setBaseBufferSorter(final BaseBufferSorter<? super T> sorter) {
+    bSorter = sorter;
+    return this;
+  }
+
+  /**
+   * Sets the seed of the source of randomness of the sketch. Setting the seed makes the results
+   * of the sketch deterministic if the input values are received in exactly the same order.
+   * This is only useful when performing test comparisons, otherwise is not recommended.
+   * Each sketch built from this builder gets its own source with the same seed.
+   * @param seed the given seed
+   * @return this builder
+   */
+  public ItemsSketchBuilder<T> setSeed(final long seed) {
+    bSeed = seed;
+    return this;
+  }
+
+  /**
+   * Sets the expected number of items to be presented to the sketch. The sketch then allocates
+   * the buffers it needs for that many items when it is built, instead of growing the base
+   * buffer and reallocating the levels as items arrive. The sketch still grows beyond this
+   * number if required. This is worthwhile for short-lived sketches of a known size.
+   * @param expectedN the expected number of items. Zero, the default, disables preallocation.
+   * @return this builder
+   */
+  public ItemsSketchBuilder<T> setExpectedN(final long expectedN) {
+    if (expectedN < 0) {
+      throw new SketchesArgumentException("expectedN must not be negative: " + expectedN);
+    }
+    bExpectedN = expectedN;
+    return this;
+  }
+
+  /**
+   * Sets the ForkJoinPool used by the queries of very large sketches. Once a sketch retains
+   * enough items, the merge sort behind getQuantile() and getQuantiles() and the per-level
+   * histograms behind getPMF() and getCDF() are split into tasks of this pool, so the latency of
+   * these queries drops with the number of cores. Smaller sketches always query on the calling
+   * thread. The results do not depend on the pool.
+   * @param pool the given ForkJoinPool, such as ForkJoinPool.commonPool(). If null, the default,
+   * all queries run on the calling thread.
+   * @return this builder
+   */
+  public ItemsSketchBuilder<T> setForkJoinPool(final ForkJoinPool pool) {
+    bPool = pool;
+    return this;
+  }
+
+  /**
+   * Gets the current configured value of <i>k</i>
+   * @return the current configured value of <i>k</i>
+   */
+  public int getK() {
+    return bK;
+  }
+
+  /**
+   * Gets the configured BaseBufferSorter
+   * @return the configured BaseBufferSorter, null if the comparator will be used.
+   */
+  public BaseBufferSorter<? super T> getBaseBufferSorter() {
+    return bSorter;
+  }
+
+  /**
+   * Gets the configured seed
+   * @return the configured seed, null if the sketch will draw from ThreadLocalRandom.
+   */
+  public Long getSeed() {
+    return bSeed;
+  }
+
+  /**
+   * Gets the configured expected number of items
+   * @return the configured expected number of items, 0 if preallocation is disabled.
+   */
+  public long getExpectedN() {
+    return bExpectedN;
+  }
+
+  /**
+   * Gets the configured ForkJoinPool
+   * @return the configured ForkJoinPool, null if all queries run on the calling thread.
+   */
+  public ForkJoinPool getForkJoinPool() {
+    return bPool;
+  }
+
+  /**
+   * Returns an ItemsSketch with the current configuration of this Builder.
+   * @param comparator to compare items
+   * @return an ItemsSketch
+   */
+  public ItemsSketch<T> build(final Comparator<? super T> comparator) {
+    return build(comparator, null);
+  }
+
+  /**
+   * Returns a keyed ItemsSketch with the current configuration of this Builder, which orders
+   * its items by the given <i>long</i> key. The key of each item is extracted once, when the
+   * item is presented to the sketch, and is kept next to the item. Sorting, merging and
+   * histograms then compare primitive keys instead of calling a comparator, while the queries
+   * still return the original items. The configured BaseBufferSorter is not used.
+   *
+   * <p>Keyed sketches are meant for unions of sketches with the same key function. A keyed
+   * sketch that is serialized and heapified again is no longer keyed.</p>
+   * @param keyFunction extracts the key of an item, which must not change while the item is
+   * held by the sketch
+   * @return a keyed ItemsSketch
+   */
+  public ItemsSketch<T> buildLongKeyed(final ToLongFunction<? super T> keyFunction) {
+    return build(Comparator.comparingLong(keyFunction), keyFunction);
+  }
+
+  /**
+   * Returns a keyed ItemsSketch with the current configuration of this Builder, which orders
+   * its items by the given <i>double</i> key in the order of
+   * {@link Double#compare(double, double)}. See {@link #buildLongKeyed(ToLongFunction)}.
+   * @param keyFunction extracts the key of an item, which must not change while the item is
+   * held by the sketch
+   * @return a keyed ItemsSketch
+   */
+  public ItemsSketch<T> buildDoubleKeyed(final ToDoubleFunction<? super T> keyFunction) {
+    final ToLongFunction<T> longKeyFunction =
+        item -> ItemsKeyedImpl.doubleKey(keyFunction.applyAsDouble(item));
+    return build(Comparator.comparingLong(longKeyFunction), longKeyFunction);
+  }
+
+  private ItemsSketch<T> build(final Comparator<? super T> comparator,
+      final ToLongFunction<? super T> keyFunction) {
+    final ItemsSketch<T> sketch = ItemsSketch.newInstance(bK, comparator, bSorter,
+        (bSeed == null) ? null : new SplittableRandom(bSeed), keyFunction);
+    if (bExpectedN > 0) {
+      sketch.preallocate(bExpectedN);
+    }
+    sketch.forkJoinPool_ = bPool;
+    return sketch;
+  }
+
+  /**
+   * Creates a human readable string that describes the current configuration of this builder.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("ItemsSketchBuilder configuration:").append(LS);
+    sb.append("K        : ").append(TAB).append(bK).append(LS);
+    sb.append("Sorter   : ").append(TAB)
+      .append((bSorter == null) ? "comparator" : bSorter.getClass().getSimpleName()).append(LS);
+    sb.append("Seed     : ").append(TAB)
+      .append((bSeed == null) ? "none" : bSeed.toString()).append(LS);
+    sb.append("ExpectedN: ").append(TAB).append(bExpectedN).append(LS);
+    sb.append("Pool     : ").append(TAB)
+      .append((bPool == null) ? "none" : "parallelism " + bPool.getParallelism()).append(LS);
+    return sb.toString();
+  }
+
+}
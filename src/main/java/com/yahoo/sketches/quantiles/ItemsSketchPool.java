@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.yahoo.sketches.SketchesArgumentException;
+
+/**
+ * A pool of ItemsSketches of a given <i>k</i> and comparator. Sketches that are released to the
+ * pool are reset, but keep their allocated buffers, so that a sketch acquired again does not
+ * have to grow its buffers again. This is useful when many short-lived sketches of a similar
+ * size are created, for example one per reporting interval.
+ *
+ * <p>This class is thread safe. The sketches themselves are not, and a sketch must not be used
+ * after it has been released to the pool.</p>
+ *
+ * <p>The pool keeps track of the sketches it has handed out and rejects the release of any other
+ * sketch, including a second release of the same sketch, which would otherwise let two later
+ * acquirers share one sketch. A sketch that is acquired but never released is not held by the
+ * pool and is left to the garbage collector.</p>
+ *
+ * @param <T> type of item
+ */
+public final class ItemsSketchPool<T> {
+
+  /**
+   * The default maximum number of idle sketches held by a pool.
+   */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  private final int k_;
+  private final Comparator<? super T> comparator_;
+  private final int maxIdle_;
+  private final ArrayDeque<ItemsSketch<T>> idle_;
+  //sketches handed out and not yet released, guarded by idle_. ItemsSketch does not override
+  //equals(), so this is an identity set, and its weak keys do not hold on to lost sketches.
+  private final Set<ItemsSketch<T>> acquired_;
+
+  private ItemsSketchPool(final int k, final Comparator<? super T> comparator,
+      final int maxIdle) {
+    Util.checkK(k);
+    if (maxIdle < 0) {
+      throw new SketchesArgumentException("maxIdle must not be negative: " + maxIdle);
+    }
+    k_ = k;
+    comparator_ = comparator;
+    maxIdle_ = maxIdle;
+    idle_ = new ArrayDeque<>(maxIdle);
+    acquired_ = Collections.newSetFromMap(new WeakHashMap<>());
+  }
+
+  /**
+   * Creates a pool of sketches of the given <i>k</i> and comparator that holds up to
+   * DEFAULT_MAX_IDLE idle sketches.
+   * @param <T> type of item
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * @param comparator to compare items
+   * @return a new ItemsSketchPool
+   */
+  public static <T> ItemsSketchPool<T> newInstance(final int k,
+      final Comparator<? super T> comparator) {
+    return new ItemsSketchPool<>(k, comparator, DEFAULT_MAX_IDLE);
+  }
+
+  /**
+   * Creates a pool of sketches of the given <i>k</i> and comparator.
+   * @param <T> type of item
+   * @param k Parameter that controls space usage of sketch and accuracy of estimates.
+   * @param comparator to compare items
+   * @param maxIdle the maximum number of idle sketches held by the pool. Sketches released to
+   * a full pool are left to the garbage collector.
+   * @return a new ItemsSketchPool
+   */
+  public static <T> ItemsSketchPool<T> newInstance(final int k,
+      final Comparator<? super T> comparator, final int maxIdle) {
+    return new ItemsSketchPool<>(k, comparator, maxIdle);
+  }
+
+  /**
+   * Returns an empty sketch, either an idle one from the pool or a new one.
+   * @return an empty sketch of the k and comparator of this pool
+   */
+  public ItemsSketch<T> acquire() {
+    ItemsSketch<T> sketch;
+    synchronized (idle_) {
+      sketch = idle_.pollFirst();
+    }
+    if (sketch == null) {
+      sketch = ItemsSketch.newInstance(k_, comparator_);
+    }
+    synchronized (idle_) {
+      acquired_.add(sketch);
+    }
+    return sketch;
+  }
+
+  /**
+   * Resets the given sketch and returns it to the pool. The caller must not use the sketch
+   * afterwards.
+   * @param sketch the sketch to be released, which must have been acquired from this pool and
+   * not released since. A null sketch is ignored.
+   * @throws SketchesArgumentException if the sketch was not acquired from this pool or has
+   * already been released
+   */
+  public void release(final ItemsSketch<T> sketch) {
+    if (sketch == null) { return; }
+    synchronized (idle_) {
+      if (!acquired_.remove(sketch)) {
+        throw new SketchesArgumentException(
+            "The sketch was not acquired from this pool or has already been released to it.");
+      }
+    }
+    sketch.reset(true);
+    synchronized (idle_) {
+      if (idle_.size() < maxIdle_) {
+        idle_.addFirst(sketch); //LIFO reuses the most recently touched buffers
+      }
+    }
+  }
+
+  /**
+   * Returns the configured value of <i>k</i>
+   * @return the configured value of <i>k</i>
+   */
+  public int getK() {
+    return k_;
+  }
+
+  /**
+   * Returns the comparator of the sketches of this pool
+   * @return the comparator of the sketches of this pool
+   */
+  public Comparator<? super T> getComparator() {
+    return comparator_;
+  }
+
+  /**
+   * Returns the number of idle sketches currently held by this pool
+   * @return the number of idle sketches currently held by this pool
+   */
+  public int getIdleCount() {
+    synchronized (idle_) {
+      return idle_.size();
+    }
+  }
+
+  /**
+   * Removes all idle sketches from this pool.
+   */
+  public void clear() {
+    synchronized (idle_) {
+      idle_.clear();
+    }
+  }
+
+}
@@ -6,8 +6,14 @@
 package com.yahoo.sketches.quantiles;
 
 import static com.yahoo.sketches.Util.LS;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.extractN;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import com.yahoo.memory.Memory;
 import com.yahoo.sketches.ArrayOfItemsSerDe;
@@ -15,6 +21,11 @@ import com.yahoo.sketches.ArrayOfItemsSerDe;
 /**
  * The API for Union operations for generic ItemsSketches
  *
+ * <p>A union is not safe for concurrent use, not even by threads that only read it. The items of
+ * small sketches are buffered by {@link #update(ItemsSketch)}, and every other method, including
+ * getResult(), the queries, toString() and toByteArray(), first inserts those buffered items into
+ * the result of this union. The queries also cache the sorted view of the result.</p>
+ *
  * @param <T> type of item
  *
  * @author Lee Rhodes
@@ -25,6 +36,17 @@ public final class ItemsUnion<T> {
   protected final int maxK_;
   protected final Comparator<? super T> comparator_;
   protected ItemsSketch<T> gadget_;
+  private final ItemsMergeContext mergeCtx_ = new ItemsMergeContext(); //reused by every merge
+
+  // the number of sources that unionAll() merges sequentially in a single task
+  static final int UNION_ALL_LEAF_SIZE = 64;
+
+  // a full ingestion batch holds 2k << INGEST_BATCH_LEVEL items and is inserted at this level
+  static final int INGEST_BATCH_LEVEL = 3;
+
+  // the items of small exact-mode sketches that are not yet in the gadget, see update()
+  private Object[] pending_;
+  private int pendingCount_;
 
   private ItemsUnion(final int maxK, final Comparator<? super T> comparator,
       final ItemsSketch<T> gadget) {
@@ -90,13 +112,65 @@ public final class ItemsUnion<T> {
    * This is easily satisfied if each of the K values is already a power of 2.
    * If the given sketch is null or empty it is ignored.
    *
+   * <p>The items of sketches in exact mode are collected in an ingestion buffer. Once the buffer
+   * holds 2k * 2<sup>INGEST_BATCH_LEVEL</sup> items, it is sorted once and compacted level by
+   * level into a single level of the result, instead of being sorted and compacted 2k items at a
+   * time. This compacts the items fewer times at each level, so the rank error is unbiased and no
+   * larger in variance than that of merging each sketch in turn, as shown in
+   * ItemsUpdateImpl.insertSortedBatch(). The results of the two differ, as their random choices
+   * do. The buffer is flushed into the result before any other operation on this union, including
+   * the queries.</p>
+   *
    * <p>It is required that the results of the union operation, which can be obtained at any time,
    * is obtained from {@link #getResult() }.</p>
    *
    * @param sketchIn the sketch to be merged into this one.
    */
   public void update(final ItemsSketch<T> sketchIn) {
-    gadget_ = updateLogic(maxK_, comparator_, gadget_, sketchIn);
+    if ((gadget_ != null) && (sketchIn != null) && !sketchIn.isEmpty()
+        && !sketchIn.isEstimationMode()) {
+      ingest(sketchIn.getCombinedBuffer(), sketchIn.getBaseBufferCount());
+      return;
+    }
+    flushPending();
+    gadget_ = updateLogic(maxK_, comparator_, gadget_, sketchIn, mergeCtx_);
+  }
+
+  /**
+   * Appends the given items to the ingestion buffer and inserts every full batch into the gadget.
+   * @param items the items, which must not contain nulls
+   * @param count the number of items
+   */
+  private void ingest(final Object[] items, final int count) {
+    final int batchSize = (2 * gadget_.getK()) << INGEST_BATCH_LEVEL;
+    if ((pending_ == null) || (pending_.length != batchSize)) {
+      flushPending();
+      pending_ = new Object[batchSize];
+    }
+    int idx = 0;
+    while (idx < count) {
+      final int chunk = Math.min(batchSize - pendingCount_, count - idx);
+      System.arraycopy(items, idx, pending_, pendingCount_, chunk);
+      pendingCount_ += chunk;
+      idx += chunk;
+      if (pendingCount_ == batchSize) {
+        gadget_.sortBaseBuffer(pending_, 0, batchSize);
+        ItemsUpdateImpl.insertSortedBatch(gadget_, pending_, INGEST_BATCH_LEVEL, mergeCtx_);
+        pendingCount_ = 0;
+      }
+    }
+  }
+
+  /**
+   * Updates the gadget with the items of a partial ingestion batch, as if they had been
+   * presented one at a time.
+   */
+  @SuppressWarnings("unchecked")
+  private void flushPending() {
+    if (pendingCount_ == 0) { return; }
+    gadget_.update((T[]) pending_, 0, pendingCount_);
+    Arrays.fill(pending_, 0, pendingCount_, null); // to release the flushed items
+    pendingCount_ = 0;
   }
 
   /**
@@ -107,14 +181,138 @@ public final class ItemsUnion<T> {
    * This is easily satisfied if each of the K values is already a power of 2.
    * If the given sketch is null or empty it is ignored.
    *
+   * <p>Unless the effective <i>k</i> of this union has to shrink, the items of the image are
+   * merged straight into this union, without building a sketch from the image first.</p>
+   *
    * <p>It is required that the results of the union operation, which can be obtained at any time,
    * is obtained from {@link #getResult() }.</p>
    * @param srcMem Memory image of sketch to be merged
    * @param serDe an instance of ArrayOfItemsSerDe
    */
   public void update(final Memory srcMem, final ArrayOfItemsSerDe<T> serDe) {
+    flushPending();
+    final boolean empty = ItemsSketch.checkCompactImage(srcMem);
+    final int srcK = extractK(srcMem);
+    final int tgtK = (gadget_ == null) ? maxK_ : gadget_.getK();
+    if (!empty) {
+      final long srcN = extractN(srcMem);
+      if ((srcN < (2L * srcK)) || (srcK >= tgtK)) { //exact, or the target of a merge
+        if (gadget_ == null) {
+          gadget_ = ItemsSketch.newInstance(maxK_, comparator_);
+        }
+        ItemsMergeImpl.mergeCompactInto(srcMem, serDe, gadget_, mergeCtx_);
+        return;
+      }
+    }
     final ItemsSketch<T> that = ItemsSketch.heapify(srcMem, comparator_, serDe);
-    gadget_ = updateLogic(maxK_, comparator_, gadget_, that);
+    gadget_ = updateLogic(maxK_, comparator_, gadget_, that, mergeCtx_);
+  }
+
+  /**
+   * Merges all of the given sketches into this union with a pairwise tree reduction in the
+   * common ForkJoinPool. See {@link #unionAll(Collection, ForkJoinPool)}.
+   * @param sketches the sketches to be merged into this one. Null and empty sketches are ignored.
+   */
+  public void unionAll(final Collection<? extends ItemsSketch<T>> sketches) {
+    unionAll(sketches, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Merges all of the given sketches into this union with a pairwise tree reduction in the given
+   * ForkJoinPool. The sketches are split into groups, each group is merged into a partial union
+   * by a separate task, and the partial unions are merged in pairs up to the final one, which is
+   * then merged into this union. Every step follows the same rules as {@link #update(ItemsSketch)},
+   * so the effective <i>k</i> of the result is the same as that of a serial loop of updates.
+   * The given sketches are not modified, but must not be updated while this method runs.
+   * @param sketches the sketches to be merged into this one. Null and empty sketches are ignored.
+   * @param pool the ForkJoinPool of the tasks
+   */
+  public void unionAll(final Collection<? extends ItemsSketch<T>> sketches,
+      final ForkJoinPool pool) {
+    flushPending();
+    if ((sketches == null) || sketches.isEmpty()) { return; }
+    final ItemsSketch<T> result = pool.invoke(
+        new UnionAllTask<>(maxK_, comparator_, sketches.toArray(), 0, sketches.size(), null));
+    gadget_ = updateLogic(maxK_, comparator_, gadget_, result, mergeCtx_);
+  }
+
+  /**
+   * Merges all of the given Memory images of ItemsSketches into this union with a pairwise tree
+   * reduction in the common ForkJoinPool. See {@link #unionAll(Collection, ForkJoinPool)}.
+   * @param srcMems the Memory images of the sketches to be merged into this one
+   * @param serDe an instance of ArrayOfItemsSerDe
+   */
+  public void unionAll(final Collection<? extends Memory> srcMems,
+      final ArrayOfItemsSerDe<T> serDe) {
+    unionAll(srcMems, serDe, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Merges all of the given Memory images of ItemsSketches into this union with a pairwise tree
+   * reduction in the given ForkJoinPool, as {@link #unionAll(Collection, ForkJoinPool)} does.
+   * Each image is merged as by {@link #update(Memory, ArrayOfItemsSerDe)}.
+   * @param srcMems the Memory images of the sketches to be merged into this one
+   * @param serDe an instance of ArrayOfItemsSerDe, which must be safe to use from several threads
+   * @param pool the ForkJoinPool of the tasks
+   */
+  public void unionAll(final Collection<? extends Memory> srcMems,
+      final ArrayOfItemsSerDe<T> serDe, final ForkJoinPool pool) {
+    flushPending();
+    if ((srcMems == null) || srcMems.isEmpty()) { return; }
+    final ItemsSketch<T> result = pool.invoke(
+        new UnionAllTask<>(maxK_, comparator_, srcMems.toArray(), 0, srcMems.size(), serDe));
+    gadget_ = updateLogic(maxK_, comparator_, gadget_, result, mergeCtx_);
+  }
+
+  /**
+   * Merges the sources from fromIndex (inclusive) to toIndex (exclusive) into a new gadget.
+   * Ranges of up to UNION_ALL_LEAF_SIZE sources are merged by a serial loop into a partial
+   * union, larger ranges are split in halves whose gadgets are merged with updateLogic().
+   */
+  private static final class UnionAllTask<T> extends RecursiveTask<ItemsSketch<T>> {
+    private static final long serialVersionUID = 1L;
+    private final int maxK;
+    private final Comparator<? super T> comparator;
+    private final Object[] sources; //sketches, or Memory images if serDe is not null
+    private final int fromIndex;
+    private final int toIndex;
+    private final ArrayOfItemsSerDe<T> serDe;
+
+    UnionAllTask(final int maxK, final Comparator<? super T> comparator, final Object[] sources,
+        final int fromIndex, final int toIndex, final ArrayOfItemsSerDe<T> serDe) {
+      this.maxK = maxK;
+      this.comparator = comparator;
+      this.sources = sources;
+      this.fromIndex = fromIndex;
+      this.toIndex = toIndex;
+      this.serDe = serDe;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected ItemsSketch<T> compute() {
+      if ((toIndex - fromIndex) <= UNION_ALL_LEAF_SIZE) {
+        final ItemsUnion<T> union = new ItemsUnion<>(maxK, comparator, null);
+        for (int i = fromIndex; i < toIndex; i++) {
+          if (serDe == null) {
+            union.update((ItemsSketch<T>) sources[i]);
+          } else if (sources[i] != null) {
+            union.update((Memory) sources[i], serDe);
+          }
+        }
+        union.flushPending();
+        return union.gadget_;
+      }
+      final int midIndex = (fromIndex + toIndex) >>> 1;
+      final UnionAllTask<T> upper =
+          new UnionAllTask<>(maxK, comparator, sources, midIndex, toIndex, serDe);
+      upper.fork();
+      final ItemsSketch<T> lowerGadget =
+          new UnionAllTask<>(maxK, comparator, sources, fromIndex, midIndex, serDe).compute();
+      final ItemsSketch<T> upperGadget = upper.join();
+      //both gadgets are owned by this task, so neither has externally owned handles
+      return updateLogic(maxK, comparator, lowerGadget, upperGadget, new ItemsMergeContext());
+    }
   }
 
   /**
@@ -130,16 +328,112 @@ public final class ItemsUnion<T> {
     gadget_.update(dataItem);
   }
 
+  /**
+   * Update this union with the given data item presented the given number of times.
+   * See {@link ItemsSketch#update(Object, long)}.
+   *
+   * @param dataItem The given datum.
+   * @param weight the number of times the item was presented. Must be at least 1.
+   */
+  public void update(final T dataItem, final long weight) {
+    if (dataItem == null) { return; }
+    if (gadget_ == null) {
+      gadget_ = ItemsSketch.newInstance(maxK_, comparator_);
+    }
+    gadget_.update(dataItem, weight, mergeCtx_);
+  }
+
   /**
    * Gets the result of this Union operation as a copy of the internal state.
    * This enables further union update operations on this state.
+   *
+   * <p>The copy is copy-on-write: it shares the buffers of this Union until either the result or
+   * this Union is changed, which then copies the buffers for itself. Reading a result of a Union
+   * that is not updated afterwards therefore costs no copy of the retained items.</p>
    * @return the result of this Union operation
    */
   public ItemsSketch<T> getResult() {
+    flushPending();
     if (gadget_ == null) {
       return ItemsSketch.newInstance(maxK_, comparator_);
     }
-    return ItemsSketch.copy(gadget_); //can't have any externally owned handles.
+    return ItemsSketch.copyOnWrite(gadget_); //no externally owned handle can change the gadget
+  }
+
+  /**
+   * Returns an approximation of the item at the given fraction of the result of this Union
+   * without copying the result. The sorted view of the result is cached until the next update of
+   * this Union, so repeated queries cost a binary search. See {@link ItemsSketch#getQuantile(double)}.
+   * @param fraction the specified fractional position in the hypothetical sorted stream.
+   * @return the approximation to the value at the above fraction. Null if this Union is empty.
+   */
+  public T getQuantile(final double fraction) {
+    flushPending();
+    if (gadget_ == null) { return null; }
+    return gadget_.getQuantile(fraction);
+  }
+
+  /**
+   * Returns approximations of the items at the given fractions of the result of this Union
+   * without copying the result. See {@link ItemsSketch#getQuantiles(double[])}.
+   * @param fractions given array of fractional positions in the hypothetical sorted stream.
+   * @return array of approximations to the given fractions in the same order as given fractions
+   * array. Null if this Union is empty.
+   */
+  public T[] getQuantiles(final double[] fractions) {
+    flushPending();
+    if (gadget_ == null) { return null; }
+    return gadget_.getQuantiles(fractions);
+  }
+
+  /**
+   * Returns an approximation to the normalized rank of the given value in the result of this
+   * Union without copying the result. See {@link ItemsSketch#getRank(Object)}.
+   * @param value to be ranked, which must not be null
+   * @return an approximate rank of the given value. NaN if this Union is empty.
+   */
+  public double getRank(final T value) {
+    flushPending();
+    if (gadget_ == null) { return Double.NaN; }
+    return gadget_.getRank(value);
+  }
+
+  /**
+   * Returns approximations to the normalized ranks of the given values in the result of this
+   * Union without copying the result. See {@link ItemsSketch#getRanks(Object[])}.
+   * @param values the values to be ranked, which must not be null
+   * @return an array of approximate ranks of the given values. Null if this Union is empty.
+   */
+  public double[] getRanks(final T[] values) {
+    flushPending();
+    if (gadget_ == null) { return null; }
+    return gadget_.getRanks(values);
+  }
+
+  /**
+   * Returns an approximation to the Cumulative Distribution Function of the result of this Union
+   * without copying the result. See {@link ItemsSketch#getCDF(Object[])}.
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * @return an array of m+1 double values, which are a consecutive approximation to the CDF.
+   * Null if this Union is empty.
+   */
+  public double[] getCDF(final T[] splitPoints) {
+    flushPending();
+    if (gadget_ == null) { return null; }
+    return gadget_.getCDF(splitPoints);
+  }
+
+  /**
+   * Returns an approximation to the Probability Mass Function of the result of this Union
+   * without copying the result. See {@link ItemsSketch#getPMF(Object[])}.
+   * @param splitPoints an array of <i>m</i> unique, monotonically increasing values
+   * @return an array of m+1 doubles each of which is an approximation to the fraction of the
+   * input stream values that fell into one of those intervals. Null if this Union is empty.
+   */
+  public double[] getPMF(final T[] splitPoints) {
+    flushPending();
+    if (gadget_ == null) { return null; }
+    return gadget_.getPMF(splitPoints);
   }
 
   /**
@@ -150,6 +444,7 @@ public final class ItemsUnion<T> {
    */
   public ItemsSketch<T> getResultAndReset() {
     if (gadget_ == null) { return null; } //Intentionally return null here for speed.
+    flushPending();
     final ItemsSketch<T> hqs = gadget_;
     gadget_ = null;
     return hqs;
@@ -160,6 +455,8 @@ public final class ItemsUnion<T> {
    */
   public void reset() {
     gadget_ = null;
+    pending_ = null;
+    pendingCount_ = 0;
   }
 
   /**
@@ -167,7 +464,7 @@ public final class ItemsUnion<T> {
    * @return true if this union is empty
    */
   public boolean isEmpty() {
-    return (gadget_ == null) || gadget_.isEmpty();
+    return (gadget_ == null) || (gadget_.isEmpty() && (pendingCount_ == 0));
   }
 
   /**
@@ -209,6 +506,7 @@ public final class ItemsUnion<T> {
    * @return summary information about the sketch.
    */
   public String toString(final boolean sketchSummary, final boolean dataDetail) {
+    flushPending();
     final StringBuilder sb = new StringBuilder();
     final String thisSimpleName = this.getClass().getSimpleName();
     final int maxK = this.getMaxK();
@@ -232,6 +530,7 @@ public final class ItemsUnion<T> {
    * @return byte array of this union
    */
   public byte[] toByteArray(final ArrayOfItemsSerDe<T> serDe) {
+    flushPending();
     if (gadget_ == null) {
       final ItemsSketch<T> sketch = ItemsSketch.newInstance(maxK_, comparator_);
       return sketch.toByteArray(serDe);
@@ -241,9 +540,9 @@ public final class ItemsUnion<T> {
   }
 
   //@formatter:off
-  @SuppressWarnings({"null", "unchecked"})
+  @SuppressWarnings("null")
   static <T> ItemsSketch<T> updateLogic(final int myMaxK, final Comparator<? super T> comparator,
-      final ItemsSketch<T> myQS, final ItemsSketch<T> other) {
+      final ItemsSketch<T> myQS, final ItemsSketch<T> other, final ItemsMergeContext ctx) {
     int sw1 = ((myQS   == null) ? 0 :   myQS.isEmpty() ? 4 : 8);
     sw1 |=    ((other  == null) ? 0 :  other.isEmpty() ? 1 : 2);
     int outCase = 0; //0=null, 1=NOOP, 2=copy, 3=merge
@@ -266,12 +565,9 @@ public final class ItemsUnion<T> {
       case 2: { //myQS = null,  other = valid; stream or downsample to myMaxK
         assert other != null;
         if (!other.isEstimationMode()) { //other is exact, stream items in
-          ret = ItemsSketch.newInstance(myMaxK, comparator);
-          final int otherCnt = other.getBaseBufferCount();
-          final Object[] combBuf = other.getCombinedBuffer();
-          for (int i = 0; i < otherCnt; i++) {
-            ret.update((T) combBuf[i]);
-          }
+          ret = ItemsSketch.newInstance(myMaxK, comparator, other.getBaseBufferSorter(),
+              other.derivedRandom(), other.getKeyFunction());
+          ret.updateFromBaseBuffer(other);
         }
         else { //myQS = null, other is est mode
           ret = (myMaxK < other.getK())
@@ -285,28 +581,25 @@ public final class ItemsUnion<T> {
         assert myQS != null;
         if (!other.isEstimationMode()) { //other is exact, stream items in
           ret = myQS;
-          final int otherCnt = other.getBaseBufferCount();
-          final Object[] combBuf = other.getCombinedBuffer();
-          for (int i = 0; i < otherCnt; i++) {
-            ret.update((T) combBuf[i]);
-          }
+          ret.updateFromBaseBuffer(other);
         }
         else { //myQS = empty/valid, other = valid and in est mode
           if (myQS.getK() <= other.getK()) { //I am smaller or equal, thus the target
-            ItemsMergeImpl.mergeInto(other, myQS);
+            ItemsMergeImpl.mergeInto(other, myQS, ctx);
             ret = myQS;
           }
           else { //Bigger: myQS.getK() > other.getK(), must reverse roles
             //must copy other as it will become mine and can't have any externally owned handles.
             ret = ItemsSketch.copy(other);
-            ItemsMergeImpl.mergeInto(myQS, ret);
+            ItemsMergeImpl.mergeInto(myQS, ret, ctx);
           }
         }
         break;
       }
       case 4: {
         assert other != null;
-        ret = ItemsSketch.newInstance(Math.min(myMaxK, other.getK()), comparator);
+        ret = ItemsSketch.newInstance(Math.min(myMaxK, other.getK()), comparator,
+            other.getBaseBufferSorter(), other.derivedRandom(), other.getKeyFunction());
         break;
       }
       //default: //This cannot happen and cannot be tested
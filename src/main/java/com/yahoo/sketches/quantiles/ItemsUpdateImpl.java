@@ -7,6 +7,7 @@ package com.yahoo.sketches.quantiles;
 
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.function.ToLongFunction;
 
 final class ItemsUpdateImpl {
 
@@ -31,9 +32,124 @@ final class ItemsUpdateImpl {
     }
     // copies base buffer plus old levels
     sketch.combinedBuffer_ = Arrays.copyOf(sketch.getCombinedBuffer(), spaceNeeded);
+    if (sketch.isKeyed()) {
+      sketch.combinedKeys_ = Arrays.copyOf(sketch.combinedKeys_, spaceNeeded);
+    }
     sketch.combinedBufferItemCapacity_ = spaceNeeded;
   }
 
+  /**
+   * Inserts levels of copies of the given item into the given sketch, one for each set bit of
+   * levelBits. A level <i>j</i> holds k items of weight 2<sup>j+1</sup>, so that this adds
+   * <i>levelBits * 2k</i> to n. This is the merge of a sketch whose levels are all the given item.
+   * @param sketch the target sketch
+   * @param item the item to be inserted
+   * @param levelBits the bit pattern of the levels to be inserted
+   * @param ctx the context that provides the scratch space
+   */
+  @SuppressWarnings("unchecked")
+  static <T> void insertWeightedLevels(final ItemsSketch<T> sketch, final T item,
+      final long levelBits, final ItemsMergeContext ctx) {
+    final int k = sketch.getK();
+    final long nFinal = sketch.getN() + (levelBits * 2L * k);
+    maybeGrowLevels(sketch, nFinal);
+
+    final Object[] sizeKBuf = ctx.downBuf(k);
+    Arrays.fill(sizeKBuf, 0, k, item);
+    final Object[] scratchBuf = ctx.scratchBuf(2 * k);
+    final long[] sizeKKeys;
+    final long[] scratchKeys;
+    if (sketch.isKeyed()) {
+      sizeKKeys = ctx.downKeys(k);
+      Arrays.fill(sizeKKeys, 0, k, sketch.getKeyFunction().applyAsLong(item));
+      scratchKeys = ctx.scratchKeys(2 * k);
+    } else {
+      sizeKKeys = null;
+      scratchKeys = null;
+    }
+
+    long bits = levelBits;
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      if ((bits & 1L) > 0L) {
+        if (sizeKKeys != null) {
+          ItemsKeyedImpl.inPlacePropagateCarry(
+              lvl,
+              sizeKKeys, sizeKBuf, 0,
+              scratchKeys, scratchBuf, 0,
+              false, sketch);
+        } else {
+          inPlacePropagateCarry(
+              lvl,
+              (T[]) sizeKBuf, 0,
+              (T[]) scratchBuf, 0,
+              false, sketch);
+        }
+      }
+    }
+    sketch.n_ = nFinal;
+    assert sketch.getN() / (2L * k) == sketch.getBitPattern(); // internal consistency check
+  }
+
+  /**
+   * Inserts a sorted batch of exactly 2k * 2<sup>level</sup> items into the given sketch as a
+   * single level of k items of weight 2<sup>level+1</sup>. The batch is compacted in place
+   * level + 1 times, each time keeping its odd or its even items with a fresh random choice, as
+   * the compaction of a full base buffer or level does.
+   *
+   * <p>The halving at level <i>i</i> is a compaction of a sorted run of items of weight
+   * 2<sup>i</sup>. It changes the weight below any value by zero, or by +2<sup>i</sup> or
+   * -2<sup>i</sup> with equal probability, independently of the other halvings. Inserting the
+   * same items 2k at a time compacts them 2<sup>level-i</sup> times at each level <i>i</i>
+   * instead of once, with the same error at each compaction. The rank error of the batch is
+   * therefore unbiased and at most 2<sup>level+1</sup> - 1, and its variance, at most the sum of
+   * 4<sup>i</sup> over the halvings, is no larger than that of the items inserted 2k at a time,
+   * so the error bounds of the sketch still hold.
+   * </p>
+   *
+   * <p>The base buffer of the sketch is not touched.</p>
+   * @param sketch the target sketch
+   * @param sortedBatch the batch, sorted in the order of the sketch, which is overwritten
+   * @param level the level of the inserted items
+   * @param ctx the context that provides the scratch space
+   */
+  @SuppressWarnings("unchecked")
+  static <T> void insertSortedBatch(final ItemsSketch<T> sketch, final Object[] sortedBatch,
+      final int level, final ItemsMergeContext ctx) {
+    sketch.unshareBuffers();
+    final int k = sketch.getK();
+    final int stride = 2 << level;
+    final long nFinal = sketch.getN() + ((long) k * stride);
+    maybeGrowLevels(sketch, nFinal);
+    sketch.updateMinMax((T) sortedBatch[0], (T) sortedBatch[(k * stride) - 1]);
+
+    for (int len = k * stride; len > k; len >>>= 1) { //the halving at each level up to level
+      zipSize2KBuffer(sortedBatch, 0, sortedBatch, 0, len >>> 1, sketch.nextRandomBoolean());
+    }
+    final Object[] sizeKBuf = sortedBatch; //the first k items
+    final Object[] scratchBuf = ctx.scratchBuf(2 * k);
+    if (sketch.isKeyed()) {
+      final long[] sizeKKeys = ctx.downKeys(k);
+      final ToLongFunction<? super T> keyFunction = sketch.getKeyFunction();
+      for (int c = 0; c < k; c++) {
+        sizeKKeys[c] = keyFunction.applyAsLong((T) sizeKBuf[c]);
+      }
+      ItemsKeyedImpl.inPlacePropagateCarry(
+          level,
+          sizeKKeys, sizeKBuf, 0,
+          ctx.scratchKeys(2 * k), scratchBuf, 0,
+          false, sketch);
+    } else {
+      inPlacePropagateCarry(
+          level,
+          (T[]) sizeKBuf, 0,
+          (T[]) scratchBuf, 0,
+          false, sketch);
+    }
+    sketch.n_ = nFinal;
+    sketch.aux_ = null;
+    assert sketch.getN() / (2L * k) == sketch.getBitPattern(); // internal consistency check
+  }
+
   @SuppressWarnings("unchecked")
   static <T> void inPlacePropagateCarry(
       final int startingLevel,
@@ -52,7 +168,7 @@ final class ItemsUpdateImpl {
       zipSize2KBuffer(
           size2KBuf, size2KStart,
           levelsArr, (2 + endingLevel) * k,
-          k);
+          k, sketch.nextRandomBoolean());
     } else { // mergeInto version of computation
       System.arraycopy(
           sizeKBuf, sizeKStart,
@@ -70,7 +186,7 @@ final class ItemsUpdateImpl {
       zipSize2KBuffer(
           size2KBuf, size2KStart,
           levelsArr, (2 + endingLevel) * k,
-          k);
+          k, sketch.nextRandomBoolean());
       // to release the discarded objects
       Arrays.fill(levelsArr, (2 + lvl) * k, (2 + lvl + 1) * k, null);
     } // end of loop over lower levels
@@ -79,44 +195,25 @@ final class ItemsUpdateImpl {
     sketch.bitPattern_ = bitPattern + (1L << startingLevel);
   }
 
-  //note: this version refers to the ItemsSketch.rand
   private static void zipSize2KBuffer(
       final Object[] bufA, final int startA, // input
       final Object[] bufC, final int startC, // output
-      final int k) {
-    final int randomOffset = ItemsSketch.rand.nextBoolean() ? 1 : 0;
+      final int k, final boolean oddItems) {
+    final int randomOffset = oddItems ? 1 : 0;
     final int limC = startC + k;
     for (int a = startA + randomOffset, c = startC; c < limC; a += 2, c++) {
       bufC[c] = bufA[a];
     }
   }
 
-  //note: this version uses a comparator
+  //note: this version uses a comparator and gallops through long runs from one side
   private static <T> void mergeTwoSizeKBuffers(
       final T[] keySrc1, final int arrStart1,
       final T[] keySrc2, final int arrStart2,
       final T[] keyDst,  final int arrStart3,
       final int k, final Comparator<? super T> comparator) {
-    final int arrStop1 = arrStart1 + k;
-    final int arrStop2 = arrStart2 + k;
-
-    int i1 = arrStart1;
-    int i2 = arrStart2;
-    int i3 = arrStart3;
-    while (i1 < arrStop1 && i2 < arrStop2) {
-      if (comparator.compare(keySrc2[i2], keySrc1[i1]) < 0) {
-        keyDst[i3++] = keySrc2[i2++];
-      } else {
-        keyDst[i3++] = keySrc1[i1++];
-      }
-    }
-
-    if (i1 < arrStop1) {
-      System.arraycopy(keySrc1, i1, keyDst, i3, arrStop1 - i1);
-    } else {
-      assert i2 < arrStop2;
-      System.arraycopy(keySrc1, i2, keyDst, i3, arrStop2 - i2);
-    }
+    ItemsMergeImpl.gallopingMerge(keySrc1, arrStart1, k, keySrc2, arrStart2, k,
+        keyDst, arrStart3, null, null, comparator);
   }
 
 }
@@ -60,6 +60,10 @@ final class ItemsUtil {
    */
   @SuppressWarnings("unchecked")
   static <T> void processFullBaseBuffer(final ItemsSketch<T> sketch) {
+    if (sketch.isKeyed()) {
+      ItemsKeyedImpl.processFullBaseBuffer(sketch);
+      return;
+    }
     final int bbCount = sketch.getBaseBufferCount();
     final long n = sketch.getN();
     assert bbCount == 2 * sketch.getK(); // internal consistency check
@@ -70,7 +74,7 @@ final class ItemsUtil {
     // this aliasing is a bit dangerous; notice that we did it after the possible resizing
     final Object[] baseBuffer = sketch.getCombinedBuffer();
 
-    Arrays.sort(baseBuffer, 0, bbCount);
+    sketch.sortBaseBuffer(baseBuffer, 0, bbCount);
     ItemsUpdateImpl.inPlacePropagateCarry(
         0,
         null, 0,  // this null is okay
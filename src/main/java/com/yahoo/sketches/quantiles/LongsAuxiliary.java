@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+
+/**
+ * Auxiliary data structure for answering long quantile queries
+ */
+final class LongsAuxiliary {
+  final long auxN_;
+  final long[] auxSamplesArr_; //array of size samples
+  final long[] auxCumWtsArr_;
+
+  /**
+   * Constructs the Auxiliary structure from the LongsSketch
+   * @param qs a LongsSketch
+   */
+  LongsAuxiliary(final LongsSketch qs) {
+    final int k = qs.getK();
+    final long n = qs.getN();
+    final long bitPattern = qs.getBitPattern();
+    final long[] combinedBuffer = qs.getCombinedBuffer();
+    final int baseBufferCount = qs.getBaseBufferCount();
+    final int numSamples = qs.getRetainedItems();
+
+    final long[] itemsArr = new long[numSamples];
+    final long[] cumWtsArr = new long[numSamples + 1]; /* the extra slot is very important */
+
+    // Populate from LongsSketch:
+    // copy over the "levels" and then the base buffer, all with appropriate weights
+    populateFromLongsSketch(k, n, bitPattern, combinedBuffer, baseBufferCount,
+        numSamples, itemsArr, cumWtsArr);
+
+    // Sort the first "numSamples" slots of the two arrays in tandem,
+    // taking advantage of the already sorted blocks of length k
+    LongsMergeImpl.blockyTandemMergeSort(itemsArr, cumWtsArr, numSamples, k);
+
+    // convert the item weights into totals of the weights preceding each item
+    long subtot = 0;
+    for (int i = 0; i < numSamples + 1; i++ ) {
+      final long newSubtot = subtot + cumWtsArr[i];
+      cumWtsArr[i] = subtot;
+      subtot = newSubtot;
+    }
+
+    assert subtot == n;
+
+    auxN_ = n;
+    auxSamplesArr_ = itemsArr;
+    auxCumWtsArr_ = cumWtsArr;
+  }
+
+  /**
+   * Get the estimated value given phi
+   * @param phi the fractional position where: 0 &le; &#966; &le; 1.0.
+   * @return the estimated value given phi
+   */
+  long getQuantile(final double phi) {
+    assert 0.0 <= phi;
+    assert phi <= 1.0;
+    final long pos = ItemsAuxiliary.posOfPhi(phi, auxN_);
+    return (approximatelyAnswerPositionalQuery(pos));
+  }
+
+  /**
+   * Returns the index of the sample that answers the given phi, searching forward from the given
+   * index. See {@link ItemsAuxiliary#chunkContainingPosFrom(long[], long, int)}.
+   * @param phi the fractional position where: 0 &le; &#966; &le; 1.0.
+   * @param fromIndex the answer to a smaller phi, or zero
+   * @return the index into auxSamplesArr_ of the estimated value given phi
+   */
+  int quantileIndexFrom(final double phi, final int fromIndex) {
+    assert auxN_ > 0;
+    return ItemsAuxiliary.chunkContainingPosFrom(
+        auxCumWtsArr_, ItemsAuxiliary.posOfPhi(phi, auxN_), fromIndex);
+  }
+
+  /**
+   * Assuming that there are n items in the true stream, this asks what
+   * item would appear in position 0 <= pos < n of a hypothetical sorted
+   * version of that stream.
+   *
+   * <p>See {@link ItemsAuxiliary} for the caveats of this positional query.</p>
+   * @param pos position
+   * @return approximate answer
+   */
+  private long approximatelyAnswerPositionalQuery(final long pos) {
+    assert 0 <= pos;
+    assert pos < auxN_;
+    final int index = ItemsAuxiliary.chunkContainingPos(auxCumWtsArr_, pos);
+    return auxSamplesArr_[index];
+  }
+
+  /**
+   * Populate the arrays and registers from a LongsSketch
+   * @param k K value of sketch
+   * @param n The current size of the stream
+   * @param bitPattern the bit pattern for valid log levels
+   * @param combinedBuffer the combined buffer reference
+   * @param baseBufferCount the count of the base buffer
+   * @param numSamples Total samples in the sketch
+   * @param itemsArr the consolidated array of all items from the sketch populated here
+   * @param cumWtsArr the cumulative weights for each item from the sketch populated here
+   */
+  private final static void populateFromLongsSketch(
+      final int k, final long n, final long bitPattern, final long[] combinedBuffer,
+      final int baseBufferCount, final int numSamples, final long[] itemsArr,
+      final long[] cumWtsArr) {
+    long weight = 1;
+    int nxt = 0;
+    long bits = bitPattern;
+    assert bits == n / (2L * k); // internal consistency check
+    for (int lvl = 0; bits != 0L; lvl++, bits >>>= 1) {
+      weight *= 2;
+      if ((bits & 1L) > 0L) {
+        final int offset = (2 + lvl) * k;
+        System.arraycopy(combinedBuffer, offset, itemsArr, nxt, k);
+        Arrays.fill(cumWtsArr, nxt, nxt + k, weight);
+        nxt += k;
+      }
+    }
+
+    weight = 1; //NOT a mistake! We just copied the highest level; now we need to copy the base buffer
+    final int startOfBaseBufferBlock = nxt;
+
+    // Copy BaseBuffer over, along with weight = 1
+    System.arraycopy(combinedBuffer, 0, itemsArr, nxt, baseBufferCount);
+    Arrays.fill(cumWtsArr, nxt, nxt + baseBufferCount, weight);
+    nxt += baseBufferCount;
+    assert nxt == numSamples;
+
+    // Must sort the items that came from the base buffer.
+    // Don't need to sort the corresponding weights because they are all the same.
+    Arrays.sort(itemsArr, startOfBaseBufferBlock, numSamples);
+    cumWtsArr[numSamples] = 0;
+  }
+
+} // end of class LongsAuxiliary
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018, Yahoo! Inc. Licensed under the terms of the
+ * Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMBINED_BUFFER;
+import static com.yahoo.sketches.quantiles.PreambleUtil.COMPACT_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.EMPTY_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.ORDERED_FLAG_MASK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFamilyID;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertFlags;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertK;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertMaxLong;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertMinLong;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertN;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertPreLongs;
+import static com.yahoo.sketches.quantiles.PreambleUtil.insertSerVer;
+
+import java.util.Arrays;
+
+import com.yahoo.memory.WritableMemory;
+
+import com.yahoo.sketches.Family;
+
+/**
+ * The longs to byte array algorithms.
+ *
+ * <p>The serialized form is always compact. Its layout is identical to the image of an
+ * ItemsSketch&lt;Long&gt; written with an 8-byte-per-item serDe: the preamble, followed by
+ * min, max, the base buffer and the valid levels.</p>
+ */
+final class LongsByteArrayImpl {
+
+  private LongsByteArrayImpl() {}
+
+  static byte[] toByteArray(final LongsSketch sketch, final boolean ordered) {
+    final boolean empty = sketch.isEmpty();
+
+    final int flags = (empty ? EMPTY_FLAG_MASK : 0)
+        | (ordered ? ORDERED_FLAG_MASK : 0)
+        | COMPACT_FLAG_MASK; //always compact
+
+    if (empty) {
+      final byte[] outByteArr = new byte[Long.BYTES];
+      final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+      final int preLongs = 1;
+      insertPre0(memOut, preLongs, flags, sketch.getK());
+      return outByteArr;
+    }
+
+    //not empty
+    final int preLongs = 2;
+    final byte[] outByteArr = new byte[sketch.getStorageBytes()];
+    final WritableMemory memOut = WritableMemory.wrap(outByteArr);
+
+    //insert preamble, min, max
+    insertPre0(memOut, preLongs, flags, sketch.getK());
+    insertN(memOut, sketch.getN());
+    insertMinLong(memOut, sketch.getMinValue());
+    insertMaxLong(memOut, sketch.getMaxValue());
+
+    //insert data
+    final long[] dataArr = combinedBufferToCompactArray(sketch, ordered);
+    memOut.putLongArray(COMBINED_BUFFER, dataArr, 0, dataArr.length);
+    return outByteArr;
+  }
+
+  /**
+   * Returns an array of the retained items in compact form extracted from the Combined Buffer.
+   * The base buffer comes first, followed by the valid levels in increasing order.
+   * @param ordered true if the desired form of the resulting array has the base buffer sorted.
+   * @return an array of the retained items in compact form.
+   */
+  private static long[] combinedBufferToCompactArray(final LongsSketch sketch,
+      final boolean ordered) {
+    final int outArrCap = sketch.getRetainedItems();
+    final long[] outArr = new long[outArrCap];
+    final int baseBufferCount = sketch.getBaseBufferCount();
+    final long[] combinedBuffer = sketch.getCombinedBuffer();
+
+    //Load base buffer
+    System.arraycopy(combinedBuffer, 0, outArr, 0, baseBufferCount);
+
+    //Load levels
+    long bitPattern = sketch.getBitPattern();
+    if (bitPattern > 0) {
+      final int k = sketch.getK();
+      int index = baseBufferCount;
+      for (int level = 0; bitPattern != 0L; level++, bitPattern >>>= 1) {
+        if ((bitPattern & 1L) > 0L) {
+          System.arraycopy(combinedBuffer, (2 + level) * k, outArr, index, k);
+          index += k;
+        }
+      }
+    }
+    if (ordered) {
+      Arrays.sort(outArr, 0, baseBufferCount);
+    }
+    return outArr;
+  }
+
+  private static void insertPre0(final WritableMemory wmem, final int preLongs, final int flags,
+      final int k) {
+    insertPreLongs(wmem, preLongs);
+    insertSerVer(wmem, LongsSketch.LONGS_SER_VER);
+    insertFamilyID(wmem, Family.QUANTILES.getID());
+    insertFlags(wmem, flags);
+    insertK(wmem, k);
+  }
+
+}
@@ -54,6 +54,9 @@ import com.yahoo.memory.WritableMemory;
  *  4   ||---------------------------START OF COMBINED BUfFER----------------------------|
  *  </pre>
  *
+ * <p>A LongsSketch uses the same layout as the DoublesSketch with MIN_LONG and MAX_LONG in
+ * place of MIN_DOUBLE and MAX_DOUBLE, and with longs in the combined buffer.</p>
+ *
  *  @author Lee Rhodes
  */
 final class PreambleUtil {
@@ -73,6 +76,8 @@ final class PreambleUtil {
   static final int MIN_DOUBLE                 = 16; //to 23 (Only for DoublesSketch)
   static final int MAX_DOUBLE                 = 24; //to 31 (Only for DoublesSketch)
   static final int COMBINED_BUFFER            = 32; //to 39 (Only for DoublesSketch)
+  static final int MIN_LONG                   = 16; //to 23 (Only for LongsSketch)
+  static final int MAX_LONG                   = 24; //to 31 (Only for LongsSketch)
 
   // flag bit masks
   static final int BIG_ENDIAN_FLAG_MASK       = 1;
@@ -204,6 +209,14 @@ final class PreambleUtil {
     return mem.getDouble(MAX_DOUBLE);
   }
 
+  static long extractMinLong(final Memory mem) {
+    return mem.getLong(MIN_LONG);
+  }
+
+  static long extractMaxLong(final Memory mem) {
+    return mem.getLong(MAX_LONG);
+  }
+
   /*
   static void insertPreLongs(final Object memObj, final long memAdd, final int value) {
     unsafe.putByte(memObj, memAdd + PREAMBLE_LONGS_BYTE, (byte) value);
@@ -270,4 +283,12 @@ final class PreambleUtil {
     wmem.putDouble(MAX_DOUBLE, value);
   }
 
+  static void insertMinLong(final WritableMemory wmem, final long value) {
+    wmem.putLong(MIN_LONG, value);
+  }
+
+  static void insertMaxLong(final WritableMemory wmem, final long value) {
+    wmem.putLong(MAX_LONG, value);
+  }
+
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+import java.util.function.ToLongFunction;
+
+/**
+ * LSD radix sort of items on a signed <i>long</i> key, 8 bits per pass.
+ * Passes in which all keys share the same digit are skipped, so keys with a small range, such as
+ * timestamps from the same day, need only a few passes.
+ *
+ * @param <T> type of item
+ */
+final class RadixBaseBufferSorter<T> implements BaseBufferSorter<T> {
+  // below this length an insertion sort on the keys is faster than the histogram passes
+  static final int INSERTION_SORT_THRESHOLD = 64;
+  private static final int RADIX_BITS = 8;
+  private static final int RADIX = 1 << RADIX_BITS;
+  private static final int MASK = RADIX - 1;
+  private static final int PASSES = Long.SIZE / RADIX_BITS;
+
+  private final ToLongFunction<? super T> keyFunction_;
+
+  RadixBaseBufferSorter(final ToLongFunction<? super T> keyFunction) {
+    keyFunction_ = keyFunction;
+  }
+
+  @Override
+  public void sort(final T[] items, final int fromIndex, final int toIndex) {
+    final int len = toIndex - fromIndex;
+    if (len < 2) { return; }
+    final long[] keys = new long[len];
+    for (int i = 0; i < len; i++) {
+      keys[i] = keyFunction_.applyAsLong(items[fromIndex + i]);
+    }
+    sortByKeys(keys, 0, items, fromIndex, len);
+  }
+
+  /**
+   * Sorts the given range of keys and, in tandem, the given range of items on those keys.
+   * Both ranges are sorted in place.
+   * @param keys the array of keys
+   * @param keysFrom the index of the first key to be sorted
+   * @param items the array of items, where the item at itemsFrom + i has the key at keysFrom + i
+   * @param itemsFrom the index of the first item to be sorted
+   * @param len the number of keys and items to be sorted
+   */
+  static void sortByKeys(final long[] keys, final int keysFrom, final Object[] items,
+      final int itemsFrom, final int len) {
+    if (len < 2) { return; }
+    if (len < INSERTION_SORT_THRESHOLD) {
+      insertionSort(keys, keysFrom, items, itemsFrom, len);
+      return;
+    }
+
+    // all digit histograms are gathered in a single pass
+    final int[] counts = new int[PASSES * RADIX];
+    final int keysLim = keysFrom + len;
+    for (int i = keysFrom; i < keysLim; i++) {
+      final long key = keys[i];
+      for (int p = 0; p < PASSES; p++) {
+        counts[(p * RADIX) + digit(key, p)]++;
+      }
+    }
+
+    long[] srcKeys = Arrays.copyOfRange(keys, keysFrom, keysLim);
+    Object[] srcItems = Arrays.copyOfRange(items, itemsFrom, itemsFrom + len, Object[].class);
+    long[] dstKeys = new long[len];
+    Object[] dstItems = new Object[len];
+    for (int p = 0; p < PASSES; p++) {
+      final int base = p * RADIX;
+      if (counts[base + digit(srcKeys[0], p)] == len) { continue; } //all the same digit
+      int sum = 0;
+      for (int d = 0; d < RADIX; d++) { //exclusive prefix sums
+        final int c = counts[base + d];
+        counts[base + d] = sum;
+        sum += c;
+      }
+      for (int i = 0; i < len; i++) {
+        final int pos = counts[base + digit(srcKeys[i], p)]++;
+        dstKeys[pos] = srcKeys[i];
+        dstItems[pos] = srcItems[i];
+      }
+      final long[] tmpKeys = srcKeys;
+      srcKeys = dstKeys;
+      dstKeys = tmpKeys;
+      final Object[] tmpItems = srcItems;
+      srcItems = dstItems;
+      dstItems = tmpItems;
+    }
+    System.arraycopy(srcKeys, 0, keys, keysFrom, len);
+    System.arraycopy(srcItems, 0, items, itemsFrom, len);
+  }
+
+  /**
+   * Returns the given digit of the key with the sign bit flipped so that the unsigned order of
+   * the digits is the signed order of the keys.
+   * @param key the given key
+   * @param pass the digit number starting with the least significant
+   * @return the digit
+   */
+  private static int digit(final long key, final int pass) {
+    return (int) (((key ^ Long.MIN_VALUE) >>> (pass * RADIX_BITS)) & MASK);
+  }
+
+  private static void insertionSort(final long[] keys, final int keysFrom, final Object[] items,
+      final int itemsFrom, final int len) {
+    for (int i = 1; i < len; i++) {
+      final long key = keys[keysFrom + i];
+      final Object item = items[itemsFrom + i];
+      int j = i - 1;
+      while ((j >= 0) && (keys[keysFrom + j] > key)) {
+        keys[keysFrom + j + 1] = keys[keysFrom + j];
+        items[itemsFrom + j + 1] = items[itemsFrom + j];
+        j--;
+      }
+      keys[keysFrom + j + 1] = key;
+      items[itemsFrom + j + 1] = item;
+    }
+  }
+
+}
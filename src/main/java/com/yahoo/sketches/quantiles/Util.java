@@ -40,6 +40,12 @@ final class Util {
    */
   static final char TAB = '\t';
 
+  /**
+   * The number of items below which the ForkJoinPool of an ItemsSketch is not used, because the
+   * cost of splitting the work would exceed the gain.
+   */
+  static final int MIN_PARALLEL_ITEMS = 1 << 16;
+
   /**
    * Checks the validity of the given value k
    * @param k must be greater than 1 and less than 65536.
@@ -136,6 +142,18 @@ final class Util {
     Util.validateValues(fractions);
   }
 
+  /**
+   * Checks that an output array can receive the given number of answers.
+   * @param outLength the length of the output array
+   * @param numAnswers the number of answers
+   */
+  static final void checkOutLength(final int outLength, final int numAnswers) {
+    if (outLength < numAnswers) {
+      throw new SketchesArgumentException(
+          "Output array too small: " + outLength + " < " + numAnswers);
+    }
+  }
+
   /**
    * Checks the sequential validity of the given array of double values.
    * They must be unique, monotonically increasing and not NaN.
@@ -27,6 +27,27 @@ public class ArrayOfLongsSerDe extends ArrayOfItemsSerDe<Long> {
     return bytes;
   }
 
+  @Override
+  public boolean serializesItemsIndependently() {
+    return true;
+  }
+
+  @Override
+  public int getSerializedSizeBytes(final Object[] items, final int offset, final int length) {
+    return Long.BYTES * length;
+  }
+
+  @Override
+  public int serializeToMemory(final Object[] items, final int offset, final int length,
+      final WritableMemory mem, final long offsetBytes) {
+    long pos = offsetBytes;
+    for (int i = offset; i < (offset + length); i++) {
+      mem.putLong(pos, (Long) items[i]);
+      pos += Long.BYTES;
+    }
+    return Long.BYTES * length;
+  }
+
   @Override
   public Long[] deserializeFromMemory(final Memory mem, final int length) {
     mem.checkBounds(0, (long)length * Long.BYTES);
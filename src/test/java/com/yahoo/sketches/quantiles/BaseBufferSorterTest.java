@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BaseBufferSorterTest {
+
+  @Test
+  public void radixMatchesComparatorSort() {
+    final Random rand = new Random(1);
+    final BaseBufferSorter<Long> radix = BaseBufferSorter.radixSort(Long::longValue);
+    final BaseBufferSorter<Long> timSort = BaseBufferSorter.comparatorSort(Comparator.naturalOrder());
+    for (int len : new int[] {0, 1, 2, 10, 63, 64, 65, 1000, 4096}) {
+      for (int range : new int[] {0, 100, Integer.MAX_VALUE, -1}) {
+        final Long[] arr1 = new Long[len + 20];
+        for (int i = 0; i < arr1.length; i++) {
+          final long v;
+          if (range == -1) { v = rand.nextLong(); }
+          else if (range == 0) { v = 42; }
+          else { v = rand.nextInt(range) - (range / 2); }
+          arr1[i] = v;
+        }
+        final Long[] arr2 = arr1.clone();
+        radix.sort(arr1, 10, 10 + len);
+        timSort.sort(arr2, 10, 10 + len);
+        Assert.assertEquals(arr1, arr2);
+      }
+    }
+  }
+
+  @Test
+  public void radixIsStable() {
+    final String[] arr = new String[200];
+    for (int i = 0; i < arr.length; i++) {
+      arr[i] = (i % 3) + ":" + i;
+    }
+    final String[] expected = arr.clone();
+    final Comparator<String> cmp = Comparator.comparing(s -> s.charAt(0));
+    Arrays.sort(expected, cmp); // stable
+    BaseBufferSorter.<String>radixSort(s -> s.charAt(0)).sort(arr, 0, arr.length);
+    Assert.assertEquals(arr, expected);
+  }
+
+  @Test
+  public void extremeKeys() {
+    final Long[] arr = {Long.MAX_VALUE, 0L, Long.MIN_VALUE, -1L, 1L};
+    final Long[] big = new Long[100];
+    for (int i = 0; i < big.length; i++) { big[i] = arr[i % arr.length]; }
+    final Long[] expected = big.clone();
+    Arrays.sort(expected);
+    BaseBufferSorter.radixSort(Long::longValue).sort(big, 0, big.length);
+    Assert.assertEquals(big, expected);
+  }
+
+}
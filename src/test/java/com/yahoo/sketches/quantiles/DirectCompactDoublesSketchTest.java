@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.SplittableRandom;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class DirectCompactDoublesSketchTest {
+
+  @Test
+  public void emptyImage() {
+    final DirectCompactDoublesSketch sketch =
+        DirectCompactDoublesSketch.wrap(Memory.wrap(DoublesSketch.newInstance(64).toByteArray()));
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertTrue(sketch.isDirect());
+    Assert.assertEquals(sketch.getK(), 64);
+    Assert.assertEquals(sketch.getN(), 0);
+    Assert.assertTrue(Double.isNaN(sketch.getMinValue()));
+    Assert.assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    Assert.assertNull(sketch.getQuantiles(new double[] {0.5}));
+    Assert.assertNull(sketch.getPMF(new double[] {0.5}));
+    Assert.assertNull(sketch.getCDF(new double[] {0.5}));
+    Assert.assertTrue(Double.isNaN(sketch.getRank(0.5)));
+  }
+
+  @Test
+  public void matchesHeapifiedSketch() {
+    final SplittableRandom rand = new SplittableRandom(11);
+    for (final int k : new int[] {2, 16, 128}) {
+      for (final int n : new int[] {1, 7, 255, 256, 1000, 12_345}) {
+        final DoublesSketch heap = DoublesSketch.newInstance(k, 3L);
+        for (int i = 0; i < n; i++) {
+          heap.update(rand.nextInt(500)); //many duplicates
+        }
+        final Memory mem = Memory.wrap(heap.toByteArray());
+        final DirectCompactDoublesSketch direct = DirectCompactDoublesSketch.wrap(mem);
+        assertSameAnswers(direct, DoublesSketch.heapify(mem));
+      }
+    }
+  }
+
+  @Test
+  public void matchesHeapifiedUnorderedImage() {
+    final DoublesSketch heap = DoublesSketch.newInstance(32, 5L);
+    for (int i = 1000; i > 0; i--) { heap.update(i); }
+    final byte[] bytes = heap.toByteArray();
+    bytes[3] &= ~PreambleUtil.ORDERED_FLAG_MASK;
+    final int bbCount = heap.getBaseBufferCount();
+    //reverse the sorted base buffer of the image
+    for (int i = 0; i < (bbCount / 2); i++) {
+      for (int b = 0; b < 8; b++) {
+        final int lo = PreambleUtil.COMBINED_BUFFER + (i * 8) + b;
+        final int hi = PreambleUtil.COMBINED_BUFFER + ((bbCount - 1 - i) * 8) + b;
+        final byte tmp = bytes[lo];
+        bytes[lo] = bytes[hi];
+        bytes[hi] = tmp;
+      }
+    }
+    final DirectCompactDoublesSketch direct = DirectCompactDoublesSketch.wrap(Memory.wrap(bytes));
+    assertSameAnswers(direct, heap);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkUpdatableImage() {
+    final DoublesSketch heap = DoublesSketch.newInstance(32);
+    heap.update(1.0);
+    DirectCompactDoublesSketch.wrap(Memory.wrap(heap.toByteArray(false)));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkBadFraction() {
+    final DoublesSketch heap = DoublesSketch.newInstance(32);
+    heap.update(1.0);
+    DirectCompactDoublesSketch.wrap(Memory.wrap(heap.toByteArray())).getQuantile(1.5);
+  }
+
+  private static void assertSameAnswers(final DirectCompactDoublesSketch direct,
+      final DoublesSketch heap) {
+    Assert.assertEquals(direct.getN(), heap.getN());
+    Assert.assertEquals(direct.getK(), heap.getK());
+    Assert.assertEquals(direct.getMinValue(), heap.getMinValue());
+    Assert.assertEquals(direct.getMaxValue(), heap.getMaxValue());
+    Assert.assertEquals(direct.getRetainedItems(), heap.getRetainedItems());
+    Assert.assertEquals(direct.isEstimationMode(), heap.isEstimationMode());
+    final double[] fractions = new double[101];
+    for (int i = 0; i <= 100; i++) { fractions[i] = i / 100.0; }
+    Assert.assertEquals(direct.getQuantiles(fractions), heap.getQuantiles(fractions));
+    Assert.assertEquals(direct.getQuantile(0.37), heap.getQuantile(0.37));
+    final double[] splits = {-1, 0, 100, 250.5, 499, 1000};
+    Assert.assertEquals(direct.getPMF(splits), heap.getPMF(splits));
+    Assert.assertEquals(direct.getCDF(splits), heap.getCDF(splits));
+    for (final double v : splits) {
+      Assert.assertEquals(direct.getRank(v), heap.getRank(v));
+    }
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(final String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
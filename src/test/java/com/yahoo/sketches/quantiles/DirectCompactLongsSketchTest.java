@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.SplittableRandom;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+
+import com.yahoo.sketches.SketchesStateException;
+
+public class DirectCompactLongsSketchTest {
+
+  @Test
+  public void emptyImage() {
+    final DirectCompactLongsSketch sketch =
+        DirectCompactLongsSketch.wrap(Memory.wrap(LongsSketch.newInstance(64).toByteArray()));
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertEquals(sketch.getMinValue(), Long.MAX_VALUE);
+    Assert.assertEquals(sketch.getMaxValue(), Long.MIN_VALUE);
+    Assert.assertNull(sketch.getQuantiles(new double[] {0.5}));
+    Assert.assertNull(sketch.getPMF(new long[] {5}));
+    Assert.assertTrue(Double.isNaN(sketch.getRank(5)));
+  }
+
+  @Test(expectedExceptions = SketchesStateException.class)
+  public void checkEmptyQuantile() {
+    DirectCompactLongsSketch.wrap(Memory.wrap(LongsSketch.newInstance(64).toByteArray()))
+      .getQuantile(0.5);
+  }
+
+  @Test
+  public void matchesHeapifiedSketch() {
+    final SplittableRandom rand = new SplittableRandom(13);
+    for (final boolean ordered : new boolean[] {true, false}) {
+      for (final int n : new int[] {1, 100, 256, 5000}) {
+        final LongsSketch heap = LongsSketch.newInstance(32, 3L);
+        for (int i = 0; i < n; i++) {
+          heap.update(rand.nextLong(-300, 300));
+        }
+        final Memory mem = Memory.wrap(heap.toByteArray(ordered));
+        final DirectCompactLongsSketch direct = DirectCompactLongsSketch.wrap(mem);
+        Assert.assertEquals(direct.getN(), heap.getN());
+        Assert.assertEquals(direct.getMinValue(), heap.getMinValue());
+        Assert.assertEquals(direct.getMaxValue(), heap.getMaxValue());
+        final double[] fractions = new double[51];
+        for (int i = 0; i <= 50; i++) { fractions[i] = i / 50.0; }
+        Assert.assertEquals(direct.getQuantiles(fractions), heap.getQuantiles(fractions));
+        final long[] splits = {-300, -1, 0, 7, 299};
+        Assert.assertEquals(direct.getPMF(splits), heap.getPMF(splits));
+        Assert.assertEquals(direct.getCDF(splits), heap.getCDF(splits));
+        Assert.assertEquals(direct.getRank(7), heap.getRank(7));
+      }
+    }
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(final String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
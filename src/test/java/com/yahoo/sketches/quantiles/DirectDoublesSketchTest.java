@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.SplittableRandom;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.MemoryRequestServer;
+import com.yahoo.memory.WritableMemory;
+
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class DirectDoublesSketchTest {
+
+  @Test
+  public void emptySketch() {
+    final WritableMemory mem = WritableMemory.allocate(8);
+    final DirectDoublesSketch sketch = DirectDoublesSketch.newInstance(128, mem);
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertTrue(sketch.isDirect());
+    Assert.assertFalse(sketch.isEstimationMode());
+    Assert.assertEquals(sketch.getK(), 128);
+    Assert.assertEquals(sketch.getN(), 0);
+    Assert.assertTrue(Double.isNaN(sketch.getMinValue()));
+    Assert.assertTrue(Double.isNaN(sketch.getMaxValue()));
+    Assert.assertEquals(sketch.getRetainedItems(), 0);
+    Assert.assertEquals(sketch.toByteArray(false).length, 8);
+    Assert.assertTrue(DoublesSketch.heapify(mem).isEmpty());
+    sketch.update(Double.NaN);
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertTrue(sketch.toString().length() > 0);
+  }
+
+  @Test
+  public void matchesHeapSketchWithSameSeed() {
+    final int k = 16;
+    final DoublesSketch heap = DoublesSketch.newInstance(k, new SplittableRandom(7));
+    final DirectDoublesSketch direct = DirectDoublesSketch.newInstance(
+        k, WritableMemory.allocate(8), null, new SplittableRandom(7));
+    final SplittableRandom values = new SplittableRandom(1);
+    for (int i = 0; i < 10_000; i++) {
+      final double v = values.nextDouble();
+      heap.update(v);
+      direct.update(v);
+    }
+    Assert.assertEquals(direct.getN(), heap.getN());
+    Assert.assertEquals(direct.getMinValue(), heap.getMinValue());
+    Assert.assertEquals(direct.getMaxValue(), heap.getMaxValue());
+    Assert.assertEquals(direct.getRetainedItems(), heap.getRetainedItems());
+    Assert.assertEquals(direct.toByteArray(true), heap.toByteArray(true));
+    final double[] fractions = {0.0, 0.1, 0.5, 0.9, 1.0};
+    Assert.assertEquals(direct.getQuantiles(fractions), heap.getQuantiles(fractions));
+    Assert.assertEquals(direct.getQuantile(0.5), heap.getQuantile(0.5));
+    final double[] splits = {0.25, 0.5, 0.75};
+    Assert.assertEquals(direct.getPMF(splits), heap.getPMF(splits));
+    Assert.assertEquals(direct.getCDF(splits), heap.getCDF(splits));
+  }
+
+  @Test
+  public void growsThroughMemoryRequestServer() {
+    final CountingServer server = new CountingServer();
+    final WritableMemory mem = WritableMemory.allocate(8);
+    final DirectDoublesSketch sketch = DirectDoublesSketch.newInstance(32, mem, server);
+    sketch.update(1.0);
+    Assert.assertEquals(server.requests, 1); //the whole base buffer at once
+    for (int i = 2; i <= 64; i++) { sketch.update(i); }
+    Assert.assertEquals(server.requests, 2); //the first level
+    for (int i = 65; i <= 10_000; i++) { sketch.update(i); }
+    Assert.assertEquals(server.closes, server.requests);
+    Assert.assertNotSame(sketch.getMemory(), mem);
+    Assert.assertEquals(sketch.getMemory().getCapacity(),
+        DoublesSketch.getUpdatableStorageBytes(32, 10_000));
+
+    final DoublesSketch heap = DoublesSketch.heapify(sketch.getMemory());
+    Assert.assertEquals(heap.getN(), 10_000);
+    Assert.assertEquals(heap.getMinValue(), 1.0);
+    Assert.assertEquals(heap.getMaxValue(), 10_000.0);
+    Assert.assertEquals(heap.getQuantile(0.5), 5000, 10_000 * heap.getNormalizedRankError());
+  }
+
+  @Test
+  public void wrapUpdatableHeapImage() {
+    final DoublesSketch heap = DoublesSketch.newInstance(64);
+    for (int i = 0; i < 1000; i++) { heap.update(i); }
+    final WritableMemory mem = WritableMemory.wrap(heap.toByteArray(false));
+    final DirectDoublesSketch direct = DirectDoublesSketch.wrap(mem);
+    Assert.assertEquals(direct.getK(), 64);
+    Assert.assertEquals(direct.getN(), 1000);
+    Assert.assertEquals(direct.toByteArray(true), heap.toByteArray(true));
+    for (int i = 1000; i < 5000; i++) { direct.update(i); }
+    Assert.assertEquals(direct.getN(), 5000);
+    Assert.assertEquals(direct.getMinValue(), 0.0);
+    Assert.assertEquals(direct.getMaxValue(), 4999.0);
+    Assert.assertEquals(direct.getQuantile(0.5), 2500, 5000 * heap.getNormalizedRankError());
+
+    direct.reset();
+    Assert.assertTrue(direct.isEmpty());
+    Assert.assertEquals(direct.getK(), 64);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void wrapCompactImage() {
+    final DoublesSketch heap = DoublesSketch.newInstance(64);
+    heap.update(1.0);
+    DirectDoublesSketch.wrap(WritableMemory.wrap(heap.toByteArray(true)));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkMemTooSmall() {
+    DirectDoublesSketch.newInstance(64, WritableMemory.allocate(4));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkServerTooStingy() {
+    final MemoryRequestServer stingy = new MemoryRequestServer() {
+      @Override
+      public WritableMemory request(final long capacityBytes) {
+        return WritableMemory.allocate(8);
+      }
+
+      @Override
+      public void requestClose(final WritableMemory memoryToClose, final WritableMemory newMemory) { }
+    };
+    DirectDoublesSketch.newInstance(64, WritableMemory.allocate(8), stingy).update(1.0);
+  }
+
+  static final class CountingServer implements MemoryRequestServer {
+    int requests = 0;
+    int closes = 0;
+
+    @Override
+    public WritableMemory request(final long capacityBytes) {
+      requests++;
+      return WritableMemory.allocate((int) capacityBytes);
+    }
+
+    @Override
+    public void requestClose(final WritableMemory memoryToClose, final WritableMemory newMemory) {
+      closes++;
+    }
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(final String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+
+public class DirectDoublesUnionTest {
+
+  @Test
+  public void nullAndEmpty() {
+    final DirectDoublesUnion union = DirectDoublesUnion.newInstance(128, WritableMemory.allocate(8));
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertTrue(union.isDirect());
+    Assert.assertEquals(union.getMaxK(), 128);
+    Assert.assertEquals(union.getEffectiveK(), 128);
+    Assert.assertTrue(union.toString().length() > 0);
+
+    union.update(Double.NaN);
+    union.update((DoublesSketch) null);
+    union.update(DoublesSketch.newInstance());
+    Assert.assertTrue(union.getResult().isEmpty());
+    Assert.assertEquals(union.toByteArray().length, 8);
+
+    union.update(1.0);
+    final DoublesSketch result = union.getResultAndReset();
+    Assert.assertEquals(result.getN(), 1);
+    Assert.assertTrue(union.isEmpty());
+  }
+
+  @Test
+  public void sameK() {
+    final DirectDoublesUnion union = DirectDoublesUnion.newInstance(128, WritableMemory.allocate(8));
+    for (int s = 0; s < 4; s++) {
+      final DoublesSketch sketch = DoublesSketch.newInstance(128);
+      for (int i = 0; i < 1000; i++) {
+        sketch.update(s * 1000 + i);
+      }
+      union.update(sketch);
+      Assert.assertEquals(sketch.getN(), 1000); // source untouched
+    }
+    final DoublesSketch result = union.getResult();
+    Assert.assertEquals(result.getN(), 4000);
+    Assert.assertEquals(result.getMinValue(), 0.0);
+    Assert.assertEquals(result.getMaxValue(), 3999.0);
+    Assert.assertEquals(result.getQuantile(0.5), 2000.0, 4000 * 0.02);
+  }
+
+  @Test
+  public void matchesHeapUnionInExactLevels() {
+    //a source with only levels and k equal to the union is merged without randomness
+    final DoublesSketch sketch = DoublesSketch.newInstance(16);
+    for (int i = 0; i < 64; i++) { sketch.update(i); }
+    Assert.assertEquals(sketch.getBaseBufferCount(), 0);
+
+    final DirectDoublesUnion direct = DirectDoublesUnion.newInstance(16, WritableMemory.allocate(8));
+    direct.update(sketch);
+    final DoublesUnion heap = DoublesUnion.newInstance(16);
+    heap.update(sketch);
+    Assert.assertEquals(direct.getResult().toByteArray(true), heap.getResult().toByteArray(true));
+  }
+
+  @Test
+  public void largerAndSmallerK() {
+    final DirectDoublesUnion union = DirectDoublesUnion.newInstance(128, WritableMemory.allocate(8));
+    final DoublesSketch big = DoublesSketch.newInstance(256);
+    for (int i = 0; i < 10_000; i++) { big.update(i); }
+    union.update(big);
+    Assert.assertEquals(union.getEffectiveK(), 128);
+
+    final DoublesSketch small = DoublesSketch.newInstance(32);
+    for (int i = 10_000; i < 20_000; i++) { small.update(i); }
+    union.update(Memory.wrap(small.toByteArray()));
+    Assert.assertEquals(union.getEffectiveK(), 32);
+    Assert.assertEquals(union.getMaxK(), 128);
+
+    final DoublesSketch result = union.getResult();
+    Assert.assertEquals(result.getK(), 32);
+    Assert.assertEquals(result.getN(), 20_000);
+    Assert.assertEquals(result.getMinValue(), 0.0);
+    Assert.assertEquals(result.getMaxValue(), 19_999.0);
+    Assert.assertEquals(result.getQuantile(0.5), 10_000.0, 20_000 * result.getNormalizedRankError());
+
+    union.reset();
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertEquals(union.getEffectiveK(), 128);
+  }
+
+  @Test
+  public void wrapUnionImage() {
+    final DirectDoublesUnion union = DirectDoublesUnion.newInstance(64, WritableMemory.allocate(8));
+    for (int i = 0; i < 1000; i++) { union.update(i); }
+    final DirectDoublesUnion wrapped = DirectDoublesUnion.wrap(union.getMemory(), null);
+    Assert.assertEquals(wrapped.getMaxK(), 64);
+    Assert.assertEquals(wrapped.getResult().getN(), 1000);
+    Assert.assertEquals(wrapped.toByteArray(), union.toByteArray());
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(final String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
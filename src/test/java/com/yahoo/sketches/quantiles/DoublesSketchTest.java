@@ -0,0 +1,296 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class DoublesSketchTest {
+  private static final long SEED = 32749; // makes the sketches deterministic for testing
+
+  @Test
+  public void empty() {
+    DoublesSketch sketch = DoublesSketch.newInstance(128, SEED);
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertFalse(sketch.isDirect());
+    Assert.assertFalse(sketch.isEstimationMode());
+    Assert.assertEquals(sketch.getN(), 0);
+    Assert.assertEquals(sketch.getRetainedItems(), 0);
+    Assert.assertTrue(Double.isNaN(sketch.getMinValue()));
+    Assert.assertTrue(Double.isNaN(sketch.getMaxValue()));
+    Assert.assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    Assert.assertNull(sketch.getQuantiles(2));
+    Assert.assertNull(sketch.getQuantiles(new double[] {0.0, 1.0}));
+    Assert.assertNull(sketch.getPMF(new double[0]));
+    Assert.assertNull(sketch.getCDF(new double[0]));
+    Assert.assertTrue(Double.isNaN(sketch.getRank(1.0)));
+    Assert.assertEquals(sketch.toByteArray().length, 8);
+    Assert.assertEquals(sketch.toByteArray(false).length, 8);
+    Assert.assertTrue(DoublesSketch.heapify(Memory.wrap(sketch.toByteArray())).isEmpty());
+  }
+
+  @Test
+  public void oneItem() {
+    DoublesSketch sketch = DoublesSketch.newInstance(128, SEED);
+    sketch.update(Double.NaN); // ignored
+    sketch.update(1.0);
+    Assert.assertEquals(sketch.getN(), 1);
+    Assert.assertEquals(sketch.getRetainedItems(), 1);
+    Assert.assertEquals(sketch.getMinValue(), 1.0);
+    Assert.assertEquals(sketch.getMaxValue(), 1.0);
+    Assert.assertEquals(sketch.getQuantile(0.5), 1.0);
+    Assert.assertEquals(sketch.getRank(1.0), 0.0);
+    Assert.assertEquals(sketch.getPMF(new double[] {1.0}), new double[] {0.0, 1.0});
+    Assert.assertEquals(sketch.getCDF(new double[] {1.0}), new double[] {0.0, 1.0});
+
+    sketch.reset();
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertEquals(sketch.getRetainedItems(), 0);
+    Assert.assertTrue(Double.isNaN(sketch.getMinValue()));
+  }
+
+  @Test
+  public void estimation() {
+    DoublesSketch sketch = DoublesSketch.newInstance(128, SEED);
+    for (int i = 1; i <= 1000; i++) {
+      sketch.update(i);
+    }
+    Assert.assertTrue(sketch.isEstimationMode());
+    Assert.assertEquals(sketch.getN(), 1000);
+    Assert.assertTrue(sketch.getRetainedItems() < 1000);
+    Assert.assertEquals(sketch.getMinValue(), 1.0);
+    Assert.assertEquals(sketch.getMaxValue(), 1000.0);
+    // based on ~1.7% normalized rank error for this particular case
+    Assert.assertEquals(sketch.getQuantile(0.5), 500.0, 17);
+    Assert.assertEquals(sketch.getQuantile(0.0), 1.0);
+    Assert.assertEquals(sketch.getQuantile(1.0), 1000.0);
+
+    double[] quantiles = sketch.getQuantiles(new double[] {0.0, 0.5, 1.0});
+    Assert.assertEquals(quantiles[0], 1.0);
+    Assert.assertEquals(quantiles[1], 500.0, 17);
+    Assert.assertEquals(quantiles[2], 1000.0);
+    Assert.assertEquals(sketch.getQuantiles(3), quantiles);
+
+    Assert.assertEquals(sketch.getRank(500), 0.5, 0.017);
+    double[] cdf = sketch.getCDF(new double[] {250, 500, 750});
+    Assert.assertEquals(cdf[0], 0.25, 0.017);
+    Assert.assertEquals(cdf[1], 0.5, 0.017);
+    Assert.assertEquals(cdf[2], 0.75, 0.017);
+    Assert.assertEquals(cdf[3], 1.0);
+  }
+
+  @Test
+  public void pmfManySplitPointsDoesNotModifySketch() {
+    DoublesSketch sketch = DoublesSketch.newInstance(16, SEED);
+    for (int i = 100; i > 0; i--) {
+      sketch.update(i);
+    }
+    final double[] before = sketch.getCombinedBuffer().clone();
+    final double[] splitPoints = new double[60];
+    for (int i = 0; i < splitPoints.length; i++) {
+      splitPoints[i] = i + 0.5;
+    }
+    final double[] pmf1 = sketch.getPMF(splitPoints);
+    Assert.assertEquals(sketch.getCombinedBuffer(), before);
+
+    // the bilinear path must give the same answers
+    double sum = 0;
+    for (int i = 0; i < pmf1.length; i++) { sum += pmf1[i]; }
+    Assert.assertEquals(sum, 1.0, 1e-12);
+    final double[] cdf = sketch.getCDF(splitPoints);
+    for (int i = 0; i < splitPoints.length; i += 10) {
+      Assert.assertEquals(sketch.getRank(splitPoints[i]), cdf[i]);
+    }
+  }
+
+  @Test
+  public void matchesItemsSketch() {
+    final ItemsSketch<Double> itemsSketch = ItemsSketchTest.newSketch(64, Comparator.naturalOrder());
+    final DoublesSketch sketch = DoublesSketch.newInstance(64, SEED);
+    for (int i = 0; i < 10000; i++) {
+      final double v = (i * 7919) % 10007;
+      itemsSketch.update(v);
+      sketch.update(v);
+    }
+    Assert.assertEquals(sketch.getRetainedItems(), itemsSketch.getRetainedItems());
+    Assert.assertEquals(sketch.getMinValue(), itemsSketch.getMinValue());
+    Assert.assertEquals(sketch.getMaxValue(), itemsSketch.getMaxValue());
+    for (double f = 0.05; f < 1.0; f += 0.05) {
+      Assert.assertEquals(sketch.getQuantile(f), itemsSketch.getQuantile(f), 10007 * 0.05);
+    }
+  }
+
+  @Test
+  public void serializeDeserializeCompact() {
+    DoublesSketch sketch1 = DoublesSketch.newInstance(PreambleUtil.DEFAULT_K, SEED);
+    for (int i = 0; i < 1000; i++) {
+      sketch1.update(i);
+    }
+    byte[] bytes = sketch1.toByteArray();
+    Assert.assertEquals(bytes.length, sketch1.getCompactStorageBytes());
+    DoublesSketch sketch2 = DoublesSketch.heapify(Memory.wrap(bytes));
+    assertSameState(sketch1, sketch2);
+
+    for (int i = 0; i < 1000; i++) {
+      sketch2.update(i + 1000);
+    }
+    Assert.assertEquals(sketch2.getMinValue(), 0.0);
+    Assert.assertEquals(sketch2.getMaxValue(), 1999.0);
+    Assert.assertEquals(sketch2.getQuantile(0.5), 1000.0, 40);
+  }
+
+  @Test
+  public void serializeDeserializeUpdatable() {
+    for (int n : new int[] {3, 100, 256, 1000, 3333}) {
+      DoublesSketch sketch1 = DoublesSketch.newInstance(64, SEED);
+      for (int i = 0; i < n; i++) {
+        sketch1.update(i);
+      }
+      byte[] bytes = sketch1.toByteArray(false);
+      Assert.assertEquals(bytes.length, sketch1.getUpdatableStorageBytes());
+      assertSameState(sketch1, DoublesSketch.heapify(Memory.wrap(bytes)));
+    }
+  }
+
+  @Test
+  public void putMemory() {
+    DoublesSketch sketch1 = DoublesSketch.newInstance(16, SEED);
+    for (int i = 0; i < 100; i++) {
+      sketch1.update(i);
+    }
+    WritableMemory mem = WritableMemory.allocate(sketch1.getUpdatableStorageBytes());
+    sketch1.putMemory(mem, false);
+    assertSameState(sketch1, DoublesSketch.heapify(mem));
+    sketch1.putMemory(mem);
+    assertSameState(sketch1, DoublesSketch.heapify(mem));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void putMemoryTooSmall() {
+    DoublesSketch sketch = DoublesSketch.newInstance(16, SEED);
+    sketch.update(1);
+    sketch.putMemory(WritableMemory.allocate(8));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void heapifyBadSerVer() {
+    DoublesSketch sketch = DoublesSketch.newInstance(16, SEED);
+    sketch.update(1);
+    WritableMemory mem = WritableMemory.wrap(sketch.toByteArray());
+    PreambleUtil.insertSerVer(mem, 2);
+    DoublesSketch.heapify(mem);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void heapifyTooSmall() {
+    DoublesSketch sketch = DoublesSketch.newInstance(16, SEED);
+    for (int i = 0; i < 100; i++) {
+      sketch.update(i);
+    }
+    byte[] bytes = sketch.toByteArray();
+    DoublesSketch.heapify(Memory.wrap(bytes).region(0, bytes.length - 8));
+  }
+
+  @Test
+  public void downSample() {
+    DoublesSketch sketch1 = DoublesSketch.newInstance(256, SEED);
+    for (int i = 0; i < 1000; i++) {
+      sketch1.update(i);
+    }
+    DoublesSketch sketch2 = sketch1.downSample(128);
+    Assert.assertEquals(sketch2.getK(), 128);
+    Assert.assertEquals(sketch2.getN(), 1000);
+    Assert.assertEquals(sketch2.getMinValue(), 0.0);
+    Assert.assertEquals(sketch2.getMaxValue(), 999.0);
+    Assert.assertEquals(sketch2.getQuantile(0.5), 500.0, 17);
+  }
+
+  @Test
+  public void seededSketchesAreReproducible() {
+    DoublesSketch sketch1 = DoublesSketch.newInstance(16, SEED);
+    DoublesSketch sketch2 = DoublesSketch.newInstance(16, SEED);
+    for (int i = 0; i < 1000; i++) {
+      sketch1.update((i * 7919) % 10007);
+      sketch2.update((i * 7919) % 10007);
+    }
+    Assert.assertEquals(sketch2.toByteArray(), sketch1.toByteArray());
+    Assert.assertEquals(sketch2.downSample(4).toByteArray(), sketch1.downSample(4).toByteArray());
+  }
+
+  @Test
+  public void checkStorageBytes() {
+    Assert.assertEquals(DoublesSketch.getCompactStorageBytes(128, 0), 8);
+    Assert.assertEquals(DoublesSketch.getUpdatableStorageBytes(128, 0), 8);
+    Assert.assertEquals(DoublesSketch.getCompactStorageBytes(128, 1), 40);
+    Assert.assertEquals(DoublesSketch.getCompactStorageBytes(128, 256), 32 + (128 << 3));
+    Assert.assertEquals(DoublesSketch.getUpdatableStorageBytes(128, 256), 32 + ((3 * 128) << 3));
+  }
+
+  @Test
+  public void checkToString() {
+    DoublesSketch sketch = DoublesSketch.newInstance(16, SEED);
+    for (int i = 0; i < 100; i++) {
+      sketch.update(i);
+    }
+    println(sketch.toString(true, true));
+    Assert.assertTrue(sketch.toString().length() > 0);
+  }
+
+  static void assertSameState(final DoublesSketch expected, final DoublesSketch actual) {
+    Assert.assertEquals(actual.getK(), expected.getK());
+    Assert.assertEquals(actual.getN(), expected.getN());
+    Assert.assertEquals(actual.getRetainedItems(), expected.getRetainedItems());
+    Assert.assertEquals(actual.getMinValue(), expected.getMinValue());
+    Assert.assertEquals(actual.getMaxValue(), expected.getMaxValue());
+    Assert.assertEquals(actual.getBitPattern(), expected.getBitPattern());
+    for (double f = 0.1; f < 0.95; f += 0.1) {
+      Assert.assertEquals(actual.getQuantile(f), expected.getQuantile(f));
+    }
+  }
+
+  @Test
+  public void quantilesIntoOutArray() {
+    final DoublesSketch sketch = DoublesSketch.newInstance(32, SEED);
+    final double[] fractions = new double[21];
+    for (int i = 0; i <= 20; i++) { fractions[i] = i / 20.0; }
+    final double[] out = new double[22];
+    out[21] = -1;
+    sketch.getQuantiles(fractions, out);
+    Assert.assertTrue(Double.isNaN(out[0]));
+    for (int i = 0; i < 10_000; i++) { sketch.update(i); }
+    sketch.getQuantiles(fractions, out);
+    for (int i = 0; i <= 20; i++) {
+      Assert.assertEquals(out[i], sketch.getQuantile(fractions[i]));
+    }
+    Assert.assertEquals(out[21], -1.0);
+    Assert.assertEquals(sketch.getQuantiles(fractions), Arrays.copyOf(out, 21));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkQuantilesOutArrayTooSmall() {
+    DoublesSketch.newInstance(32, SEED).getQuantiles(new double[] {0.1, 0.2}, new double[1]);
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
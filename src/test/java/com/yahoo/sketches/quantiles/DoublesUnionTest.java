@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.DEFAULT_K;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+
+public class DoublesUnionTest {
+
+  @Test
+  public void nullAndEmpty() {
+    DoublesUnion union = DoublesUnion.newInstance();
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertFalse(union.isDirect());
+    Assert.assertEquals(union.getMaxK(), DEFAULT_K);
+    Assert.assertEquals(union.getEffectiveK(), DEFAULT_K);
+    Assert.assertTrue(union.toString().length() > 0);
+
+    union.update(Double.NaN);
+    DoublesSketch result = union.getResult();
+    Assert.assertTrue(result.isEmpty());
+    Assert.assertNull(union.getResultAndReset());
+
+    union.update((DoublesSketch) null);
+    union.update(DoublesSketch.newInstance());
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertEquals(union.toByteArray().length, 8);
+
+    union.update(1.0);
+    Assert.assertFalse(union.isEmpty());
+    result = union.getResultAndReset();
+    Assert.assertEquals(result.getN(), 1);
+    Assert.assertTrue(union.isEmpty());
+  }
+
+  @Test
+  public void sameK() {
+    final DoublesUnion union = DoublesUnion.newInstance(128);
+    for (int s = 0; s < 4; s++) {
+      final DoublesSketch sketch = DoublesSketch.newInstance(128);
+      for (int i = 0; i < 1000; i++) {
+        sketch.update(s * 1000 + i);
+      }
+      union.update(sketch);
+      Assert.assertEquals(sketch.getN(), 1000); // source untouched
+    }
+    final DoublesSketch result = union.getResult();
+    Assert.assertEquals(result.getN(), 4000);
+    Assert.assertEquals(result.getMinValue(), 0.0);
+    Assert.assertEquals(result.getMaxValue(), 3999.0);
+    Assert.assertEquals(result.getQuantile(0.5), 2000.0, 4000 * 0.02);
+  }
+
+  @Test
+  public void differentK() {
+    final DoublesSketch sketch1 = DoublesSketch.newInstance(256);
+    final DoublesSketch sketch2 = DoublesSketch.newInstance(64);
+    for (int i = 0; i < 1000; i++) {
+      sketch1.update(i);
+      sketch2.update(i + 1000);
+    }
+    DoublesUnion union = DoublesUnion.newInstance(256);
+    union.update(sketch1);
+    union.update(sketch2);
+    DoublesSketch result = union.getResult();
+    Assert.assertEquals(result.getK(), 64);
+    Assert.assertEquals(result.getN(), 2000);
+    Assert.assertEquals(result.getMinValue(), 0.0);
+    Assert.assertEquals(result.getMaxValue(), 1999.0);
+    Assert.assertEquals(result.getQuantile(0.5), 1000.0, 2000 * 0.04);
+
+    // reverse order, gadget has smaller k than the incoming sketch
+    union = DoublesUnion.newInstance(256);
+    union.update(sketch2);
+    union.update(sketch1);
+    result = union.getResult();
+    Assert.assertEquals(result.getK(), 64);
+    Assert.assertEquals(result.getN(), 2000);
+    Assert.assertEquals(result.getQuantile(0.5), 1000.0, 2000 * 0.04);
+  }
+
+  @Test
+  public void exactModeAndMaxK() {
+    final DoublesSketch sketch = DoublesSketch.newInstance(256);
+    for (int i = 0; i < 100; i++) {
+      sketch.update(i);
+    }
+    final DoublesUnion union = DoublesUnion.newInstance(32);
+    union.update(sketch);
+    final DoublesSketch result = union.getResult();
+    Assert.assertEquals(result.getK(), 32);
+    Assert.assertEquals(result.getN(), 100);
+    Assert.assertEquals(result.getMinValue(), 0.0);
+    Assert.assertEquals(result.getMaxValue(), 99.0);
+  }
+
+  @Test
+  public void memoryUpdateAndHeapify() {
+    final DoublesSketch sketch = DoublesSketch.newInstance(128);
+    for (int i = 0; i < 1000; i++) {
+      sketch.update(i);
+    }
+    final DoublesUnion union = DoublesUnion.newInstance(128);
+    union.update(Memory.wrap(sketch.toByteArray()));
+    union.update(Memory.wrap(sketch.toByteArray(false)));
+    Assert.assertEquals(union.getResult().getN(), 2000);
+
+    final DoublesUnion union2 = DoublesUnion.heapify(Memory.wrap(union.toByteArray()));
+    Assert.assertEquals(union2.getEffectiveK(), 128);
+    Assert.assertEquals(union2.getResult().getN(), 2000);
+    Assert.assertEquals(union2.getResult().getMaxValue(), 999.0);
+
+    final DoublesUnion union3 = DoublesUnion.newInstance(sketch);
+    union3.update(1000.0);
+    Assert.assertEquals(union3.getResult().getN(), 1001);
+    Assert.assertEquals(sketch.getN(), 1000);
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Comparator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.sketches.SketchesArgumentException;
+
+public class ItemsSketchPoolTest {
+
+  @Test
+  public void acquireAndRelease() {
+    final ItemsSketchPool<Integer> pool = ItemsSketchPool.newInstance(16, Comparator.naturalOrder());
+    Assert.assertEquals(pool.getK(), 16);
+    Assert.assertEquals(pool.getIdleCount(), 0);
+
+    final ItemsSketch<Integer> sketch = pool.acquire();
+    Assert.assertTrue(sketch.isEmpty());
+    for (int i = 0; i < 1000; i++) {
+      sketch.update(i);
+    }
+    final Object[] buffer = sketch.getCombinedBuffer();
+    pool.release(sketch);
+    Assert.assertEquals(pool.getIdleCount(), 1);
+
+    final ItemsSketch<Integer> sketch2 = pool.acquire();
+    Assert.assertSame(sketch2, sketch);
+    Assert.assertEquals(pool.getIdleCount(), 0);
+    Assert.assertTrue(sketch2.isEmpty());
+    Assert.assertNull(sketch2.getMinValue());
+    Assert.assertSame(sketch2.getCombinedBuffer(), buffer); //buffer retained
+    for (Object item : buffer) {
+      Assert.assertNull(item);
+    }
+    for (int i = 0; i < 1000; i++) {
+      sketch2.update(i);
+    }
+    Assert.assertSame(sketch2.getCombinedBuffer(), buffer); //no regrowth
+    Assert.assertEquals(sketch2.getN(), 1000);
+    Assert.assertEquals(sketch2.getMaxValue(), Integer.valueOf(999));
+
+    pool.release(null);
+    Assert.assertEquals(pool.getIdleCount(), 0);
+  }
+
+  @Test
+  public void maxIdle() {
+    final ItemsSketchPool<Integer> pool =
+        ItemsSketchPool.newInstance(16, Comparator.naturalOrder(), 1);
+    final ItemsSketch<Integer> sketch1 = pool.acquire();
+    final ItemsSketch<Integer> sketch2 = pool.acquire();
+    Assert.assertNotSame(sketch1, sketch2);
+    pool.release(sketch1);
+    pool.release(sketch2);
+    Assert.assertEquals(pool.getIdleCount(), 1);
+    pool.clear();
+    Assert.assertEquals(pool.getIdleCount(), 0);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void releaseWrongK() {
+    final ItemsSketchPool<Integer> pool = ItemsSketchPool.newInstance(16, Comparator.naturalOrder());
+    pool.release(ItemsSketch.newInstance(32, Comparator.naturalOrder()));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void releaseWrongComparator() {
+    final ItemsSketchPool<Integer> pool = ItemsSketchPool.newInstance(16, Comparator.naturalOrder());
+    pool.release(ItemsSketch.newInstance(16, Comparator.reverseOrder()));
+  }
+
+  @Test
+  public void releaseTwice() {
+    final ItemsSketchPool<Integer> pool = ItemsSketchPool.newInstance(16, Comparator.naturalOrder());
+    final ItemsSketch<Integer> sketch = pool.acquire();
+    pool.release(sketch);
+    try {
+      pool.release(sketch);
+      Assert.fail();
+    } catch (final SketchesArgumentException e) {
+      //expected
+    }
+    Assert.assertEquals(pool.getIdleCount(), 1);
+    Assert.assertNotSame(pool.acquire(), pool.acquire());
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void releaseToOtherPool() {
+    final ItemsSketchPool<Integer> pool1 =
+        ItemsSketchPool.newInstance(16, Comparator.naturalOrder());
+    final ItemsSketchPool<Integer> pool2 =
+        ItemsSketchPool.newInstance(16, pool1.getComparator());
+    pool2.release(pool1.acquire());
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void badMaxIdle() {
+    ItemsSketchPool.newInstance(16, Comparator.naturalOrder(), -1);
+  }
+
+  @Test
+  public void resetRetainingBuffer() {
+    final ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    for (int i = 0; i < 100; i++) {
+      sketch.update(Integer.toString(i));
+    }
+    final int capacity = sketch.getCombinedBufferAllocatedCount();
+    sketch.reset(true);
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertEquals(sketch.getRetainedItems(), 0);
+    Assert.assertEquals(sketch.getCombinedBufferAllocatedCount(), capacity);
+    sketch.reset(false);
+    Assert.assertEquals(sketch.getCombinedBufferAllocatedCount(), 4);
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
@@ -7,10 +7,17 @@ package com.yahoo.sketches.quantiles;
 
 import static org.testng.Assert.assertEquals;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.testng.Assert;
-import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import com.yahoo.memory.Memory;
@@ -22,15 +29,18 @@ import com.yahoo.sketches.ArrayOfStringsSerDe;
 import com.yahoo.sketches.SketchesArgumentException;
 
 public class ItemsSketchTest {
+  private static final long SEED = 32749; // makes the sketches deterministic for testing
 
-  @BeforeMethod
-  public void setUp() {
-    ItemsSketch.rand.setSeed(32749); // make sketches deterministic for testing
+  /**
+   * Returns a new sketch with the seed of this test.
+   */
+  static <T> ItemsSketch<T> newSketch(final int k, final Comparator<? super T> comparator) {
+    return ItemsSketch.<T>builder().setK(k).setSeed(SEED).build(comparator);
   }
 
   @Test
   public void empty() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(128, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(128, Comparator.naturalOrder());
     Assert.assertNotNull(sketch);
     Assert.assertTrue(sketch.isEmpty());
     Assert.assertEquals(sketch.getN(), 0);
@@ -49,7 +59,7 @@ public class ItemsSketchTest {
 
   @Test
   public void oneItem() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(128, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(128, Comparator.naturalOrder());
     sketch.update("a");
     Assert.assertEquals(sketch.getN(), 1);
     Assert.assertEquals(sketch.getRetainedItems(), 1);
@@ -95,7 +105,7 @@ public class ItemsSketchTest {
 
   @Test
   public void estimation() {
-    ItemsSketch<Integer> sketch = ItemsSketch.newInstance(128, Comparator.naturalOrder());
+    ItemsSketch<Integer> sketch = newSketch(128, Comparator.naturalOrder());
     for (int i = 1; i <= 1000; i++) {
       sketch.update(i);
     }
@@ -172,7 +182,7 @@ public class ItemsSketchTest {
 
   @Test
   public void serializeDeserializeLong() {
-    ItemsSketch<Long> sketch1 = ItemsSketch.newInstance(128, Comparator.naturalOrder());
+    ItemsSketch<Long> sketch1 = newSketch(128, Comparator.naturalOrder());
     for (int i = 1; i <= 500; i++) {
       sketch1.update((long) i);
     }
@@ -194,7 +204,7 @@ public class ItemsSketchTest {
 
   @Test
   public void serializeDeserializeDouble() {
-    ItemsSketch<Double> sketch1 = ItemsSketch.newInstance(128, Comparator.naturalOrder());
+    ItemsSketch<Double> sketch1 = newSketch(128, Comparator.naturalOrder());
     for (int i = 1; i <= 500; i++) {
       sketch1.update((double) i);
     }
@@ -225,7 +235,7 @@ public class ItemsSketchTest {
         return i1.compareTo(i2);
       }
     };
-    ItemsSketch<String> sketch1 = ItemsSketch.newInstance(128, numericOrder);
+    ItemsSketch<String> sketch1 = newSketch(128, numericOrder);
     for (int i = 1; i <= 500; i++)
      {
       sketch1.update(Integer.toBinaryString(i << 10)); // to make strings longer
@@ -248,7 +258,7 @@ public class ItemsSketchTest {
 
   @Test
   public void toStringCrudeCheck() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
     String brief, full, part;
     brief = sketch.toString();
     full = sketch.toString(true, true);
@@ -269,7 +279,7 @@ public class ItemsSketchTest {
 
   @Test
   public void toStringBiggerCheck() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     for (int i=0; i<40; i++) {
       sketch.update(Integer.toString(i));
     }
@@ -281,7 +291,7 @@ public class ItemsSketchTest {
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void checkDownsampleException() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     for (int i=0; i<40; i++) {
       sketch.update(Integer.toString(i));
     }
@@ -290,14 +300,14 @@ public class ItemsSketchTest {
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void zeroEvenlySpacedMustThrow() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     sketch.update("a");
     sketch.getQuantiles(0);
   }
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void negativeQuantileMustThrow() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     sketch.update(null);
     sketch.getQuantile(-0.1);
   }
@@ -316,7 +326,7 @@ public class ItemsSketchTest {
 
   @Test
   public void checkGoodSerDeId() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
     byte[] byteArr = sketch.toByteArray(new ArrayOfStringsSerDe());
     Memory mem = Memory.wrap(byteArr);
     //println(PreambleUtil.toString(mem));
@@ -325,7 +335,7 @@ public class ItemsSketchTest {
 
   @Test
   public void checkDownsample() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     for (int i=0; i<40; i++) {
       sketch.update(Integer.toString(i));
     }
@@ -335,21 +345,21 @@ public class ItemsSketchTest {
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void unorderedSplitPoints() {
-    ItemsSketch<Integer> sketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    ItemsSketch<Integer> sketch = newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
     sketch.update(1);
     sketch.getPMF(new Integer[] {2, 1});
   }
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void nonUniqueSplitPoints() {
-    ItemsSketch<Integer> sketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    ItemsSketch<Integer> sketch = newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
     sketch.update(1);
     sketch.getPMF(new Integer[] {1, 1});
   }
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void nullInSplitPoints() {
-    ItemsSketch<Integer> sketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    ItemsSketch<Integer> sketch = newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
     sketch.update(1);
     sketch.getPMF(new Integer[] {1, null});
   }
@@ -357,7 +367,7 @@ public class ItemsSketchTest {
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void compactNotSupported() {
     ArrayOfDoublesSerDe serDe = new ArrayOfDoublesSerDe();
-    ItemsSketch<Double> sketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    ItemsSketch<Double> sketch = newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
     byte[] byteArr = sketch.toByteArray(serDe);
     WritableMemory mem = WritableMemory.wrap(byteArr);
     mem.clearBits(PreambleUtil.FLAGS_BYTE, (byte) PreambleUtil.COMPACT_FLAG_MASK);
@@ -367,7 +377,7 @@ public class ItemsSketchTest {
 
   @Test
   public void checkPutMemory() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     for (int i=0; i<40; i++) {
       sketch.update(Integer.toString(i));
     }
@@ -378,7 +388,7 @@ public class ItemsSketchTest {
 
   @Test(expectedExceptions = SketchesArgumentException.class)
   public void checkPutMemoryException() {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
     for (int i=0; i<40; i++) {
       sketch.update(Integer.toString(i));
     }
@@ -431,18 +441,879 @@ public class ItemsSketchTest {
     }
   }
 
+  @Test
+  public void bulkUpdateMatchesItemUpdate() {
+    final Integer[] items = new Integer[5000];
+    for (int i = 0; i < items.length; i++) {
+      items[i] = (i % 97 == 0) ? null : Integer.valueOf((i * 7919) % 10007);
+    }
+    final ItemsSketchBuilder<Integer> builder = ItemsSketch.<Integer>builder().setK(32)
+        .setSeed(32749);
+    final ItemsSketch<Integer> sketch1 = builder.build(Comparator.naturalOrder());
+    for (int i = 10; i < 4010; i++) {
+      sketch1.update(items[i]);
+    }
+
+    final ItemsSketch<Integer> sketch2 = builder.build(Comparator.naturalOrder());
+    sketch2.update(items, 10, 1);
+    sketch2.update(items, 11, 100);
+    sketch2.update(items, 111, 0);
+    sketch2.update(items, 111, 3899);
+
+    final ItemsSketch<Integer> sketch3 = builder.build(Comparator.naturalOrder());
+    sketch3.updateAll(Arrays.asList(items).subList(10, 4010));
+
+    for (ItemsSketch<Integer> sketch : Arrays.asList(sketch2, sketch3)) {
+      Assert.assertEquals(sketch.getN(), sketch1.getN());
+      Assert.assertEquals(sketch.getBaseBufferCount(), sketch1.getBaseBufferCount());
+      Assert.assertEquals(sketch.getMinValue(), sketch1.getMinValue());
+      Assert.assertEquals(sketch.getMaxValue(), sketch1.getMaxValue());
+      Assert.assertEquals(sketch.getCombinedBuffer(), sketch1.getCombinedBuffer());
+    }
+  }
+
+  @Test
+  public void bulkUpdateExactMode() {
+    final ItemsSketch<String> sketch = newSketch(128, Comparator.naturalOrder());
+    sketch.update(new String[] {"c", "a", null, "b"}, 0, 4);
+    Assert.assertEquals(sketch.getN(), 3);
+    Assert.assertEquals(sketch.getMinValue(), "a");
+    Assert.assertEquals(sketch.getMaxValue(), "c");
+    sketch.update(new String[0], 0, 0);
+    sketch.updateAll(Collections.<String>emptyList());
+    Assert.assertEquals(sketch.getN(), 3);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void bulkUpdateBadSlice() {
+    final ItemsSketch<String> sketch = newSketch(128, Comparator.naturalOrder());
+    sketch.update(new String[] {"a", "b"}, 1, 2);
+  }
+
+  @Test
+  public void radixSorterMatchesComparatorSorter() {
+    final ItemsSketch<Long> sketch1 = ItemsSketch.<Long>builder().setK(256).setSeed(32749)
+        .build(Comparator.naturalOrder());
+    final ItemsSketch<Long> sketch2 = ItemsSketch.<Long>builder().setK(256).setSeed(32749)
+        .setBaseBufferSorter(BaseBufferSorter.radixSort(Long::longValue))
+        .build(Comparator.naturalOrder());
+    for (long i = 0; i < 10000; i++) {
+      final long v = (i * 7919) % 10007 - 5000;
+      sketch1.update(v);
+    }
+    for (long i = 0; i < 10000; i++) {
+      final long v = (i * 7919) % 10007 - 5000;
+      sketch2.update(v);
+    }
+    Assert.assertEquals(sketch2.getCombinedBuffer(), sketch1.getCombinedBuffer());
+    final Long[] splitPoints = new Long[60];
+    for (int i = 0; i < splitPoints.length; i++) { splitPoints[i] = i * 100L - 3000; }
+    Assert.assertEquals(sketch2.getCDF(splitPoints), sketch1.getCDF(splitPoints));
+    Assert.assertEquals(sketch2.getQuantiles(11), sketch1.getQuantiles(11));
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    Assert.assertEquals(sketch2.toByteArray(true, serDe), sketch1.toByteArray(true, serDe));
+    Assert.assertSame(sketch2.downSample(128).getBaseBufferSorter(), sketch2.getBaseBufferSorter());
+    Assert.assertSame(ItemsUnion.newInstance(sketch2).getResult().getBaseBufferSorter(),
+        sketch2.getBaseBufferSorter());
+  }
+
+  @Test
+  public void reverseComparatorIsUsedForBaseBuffer() {
+    // the base buffer must be sorted with the comparator, not the natural order
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.reverseOrder());
+    for (int i = 0; i < 1000; i++) {
+      sketch.update(i);
+    }
+    Assert.assertEquals(sketch.getMinValue(), Integer.valueOf(999));
+    Assert.assertEquals(sketch.getMaxValue(), Integer.valueOf(0));
+    Assert.assertEquals(sketch.getQuantile(0.25), Integer.valueOf(750), 50);
+    final Integer[] splitPoints = new Integer[60];
+    for (int i = 0; i < splitPoints.length; i++) { splitPoints[i] = 990 - (i * 10); }
+    Assert.assertEquals(sketch.getCDF(splitPoints)[0], 0.01, 0.05);
+  }
+
+  @Test
+  public void checkBuilder() {
+    final ItemsSketchBuilder<String> bldr = ItemsSketch.builder();
+    Assert.assertEquals(bldr.getK(), PreambleUtil.DEFAULT_K);
+    Assert.assertNull(bldr.getBaseBufferSorter());
+    Assert.assertNull(bldr.getSeed());
+    bldr.setK(64);
+    Assert.assertEquals(bldr.build(Comparator.naturalOrder()).getK(), 64);
+    bldr.setSeed(32749);
+    Assert.assertEquals(bldr.getSeed(), Long.valueOf(32749));
+    println(bldr.toString());
+  }
+
+  @Test
+  public void seededSketchesAreReproducible() {
+    final ItemsSketchBuilder<Integer> builder = ItemsSketch.<Integer>builder().setK(16)
+        .setSeed(32749);
+    final ItemsSketch<Integer> sketch1 = builder.build(Comparator.naturalOrder());
+    final ItemsSketch<Integer> sketch2 = builder.build(Comparator.naturalOrder());
+    for (int i = 0; i < 1000; i++) {
+      sketch1.update((i * 7919) % 10007);
+      sketch2.update((i * 7919) % 10007);
+    }
+    Assert.assertEquals(sketch2.getCombinedBuffer(), sketch1.getCombinedBuffer());
+    Assert.assertEquals(sketch2.downSample(4).getCombinedBuffer(),
+        sketch1.downSample(4).getCombinedBuffer());
+
+    // derived sketches continue with independent, but still reproducible, sources
+    final ItemsUnion<Integer> union1 = ItemsUnion.newInstance(8, Comparator.naturalOrder());
+    union1.update(sketch1);
+    union1.update(sketch1);
+    final ItemsUnion<Integer> union2 = ItemsUnion.newInstance(8, Comparator.naturalOrder());
+    union2.update(sketch2);
+    union2.update(sketch2);
+    Assert.assertEquals(union2.getResult().getCombinedBuffer(),
+        union1.getResult().getCombinedBuffer());
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkBuilderBadK() {
+    ItemsSketch.builder().setK(3);
+  }
+
+  @Test
+  public void expectedNPreallocatesBuffers() {
+    final int n = 10000;
+    final ItemsSketchBuilder<Integer> builder = ItemsSketch.<Integer>builder().setK(16)
+        .setSeed(32749).setExpectedN(n);
+    Assert.assertEquals(builder.getExpectedN(), n);
+    final ItemsSketch<Integer> sketch1 = builder.build(Comparator.naturalOrder());
+    final Object[] buffer = sketch1.getCombinedBuffer();
+    Assert.assertEquals(buffer.length, Util.computeCombinedBufferItemCapacity(16, n));
+    final ItemsSketch<Integer> sketch2 = builder.setExpectedN(0).build(Comparator.naturalOrder());
+    for (int i = 0; i < n; i++) {
+      sketch1.update(i);
+      sketch2.update(i);
+    }
+    Assert.assertSame(sketch1.getCombinedBuffer(), buffer); //never reallocated
+    Assert.assertEquals(sketch1.getRetainedItems(), sketch2.getRetainedItems());
+    Assert.assertEquals(sketch1.getQuantiles(11), sketch2.getQuantiles(11));
+
+    // still grows past the expected N
+    for (int i = 0; i < n; i++) { sketch1.update(i); }
+    Assert.assertEquals(sketch1.getN(), 2 * n);
+
+    // a small expected N only sizes the base buffer
+    final ItemsSketch<Integer> sketch3 = builder.setExpectedN(5).build(Comparator.naturalOrder());
+    Assert.assertEquals(sketch3.getCombinedBufferAllocatedCount(), 8);
+  }
+
+  @Test
+  public void weightedUpdate() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    sketch.update(5, 3);
+    sketch.update(1, 1);
+    Assert.assertEquals(sketch.getN(), 4);
+    Assert.assertEquals(sketch.getBaseBufferCount(), 4);
+    Assert.assertEquals(sketch.getMinValue(), Integer.valueOf(1));
+    Assert.assertEquals(sketch.getMaxValue(), Integer.valueOf(5));
+
+    // 10 * 1000 + 10 * 100000 + 1000000 items in 21 weighted updates
+    for (int i = 0; i < 10; i++) {
+      sketch.update(1000 + i, 1000);
+      sketch.update(2000 + i, 100000);
+    }
+    sketch.update(3000, 1000000);
+    final long n = 4 + 10000 + 1000000 + 1000000;
+    Assert.assertEquals(sketch.getN(), n);
+    Assert.assertEquals(sketch.getBitPattern(), n / 32);
+    Assert.assertEquals(sketch.getBaseBufferCount(), n % 32);
+    Assert.assertEquals(sketch.getMaxValue(), Integer.valueOf(3000));
+    final double eps = Util.EpsilonFromK.getAdjustedEpsilon(16);
+    final double[] cdf = sketch.getCDF(new Integer[] {1500, 2500});
+    Assert.assertEquals(cdf[0], 10004.0 / n, eps);
+    Assert.assertEquals(cdf[1], 1010004.0 / n, eps);
+    Assert.assertEquals(sketch.getQuantile(0.75), Integer.valueOf(3000));
+  }
+
+  @Test
+  public void weightedUpdateMatchesRepeatedUpdateInExactMode() {
+    final ItemsSketch<String> sketch1 = newSketch(128, Comparator.naturalOrder());
+    final ItemsSketch<String> sketch2 = newSketch(128, Comparator.naturalOrder());
+    for (int i = 0; i < 20; i++) {
+      final String item = Integer.toString(i);
+      sketch1.update(item, i + 1);
+      for (int j = 0; j <= i; j++) { sketch2.update(item); }
+    }
+    sketch1.update(null, 5);
+    Assert.assertEquals(sketch1.getN(), sketch2.getN());
+    Assert.assertEquals(sketch1.getQuantiles(21), sketch2.getQuantiles(21));
+  }
+
+  @Test
+  public void weightedUpdateKeyed() {
+    final ItemsSketch<Long> sketch = ItemsSketch.<Long>builder().setK(16)
+        .buildLongKeyed(Long::longValue);
+    for (long i = 0; i < 100; i++) {
+      sketch.update(i, 1 + i * 37);
+    }
+    Assert.assertEquals(sketch.getN(), 100 + 37 * 4950);
+    checkKeys(sketch);
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(16, Comparator.naturalOrder());
+    union.update(7L, 1000);
+    union.update(sketch);
+    Assert.assertEquals(union.getResult().getN(), sketch.getN() + 1000);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void weightedUpdateBadWeight() {
+    ItemsSketch.<String>newInstance(16, Comparator.naturalOrder()).update("a", 0);
+  }
+
+  @Test
+  public void keyedSketchMatchesComparatorSketch() {
+    final ItemsSketchBuilder<long[]> builder = ItemsSketch.<long[]>builder().setK(16)
+        .setSeed(32749);
+    final ItemsSketch<long[]> sketch1 = builder.build(Comparator.comparingLong(r -> r[0]));
+    final ItemsSketch<long[]> sketch2 = builder.buildLongKeyed(r -> r[0]);
+    final long[][] records = new long[5000][];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = new long[] {((i * 7919L) % 10007) - 5000, i};
+    }
+    for (int i = 0; i < 3000; i++) {
+      sketch1.update(records[i]);
+      sketch2.update(records[i]);
+    }
+    sketch1.update(records, 3000, 2000);
+    sketch2.update(records, 3000, 2000);
+    assertSameItems(sketch2, sketch1);
+    checkKeys(sketch2);
+
+    final long[][] splitPoints = new long[60][];
+    for (int i = 0; i < splitPoints.length; i++) { splitPoints[i] = new long[] {i * 150L - 4500}; }
+    Assert.assertEquals(sketch2.getCDF(splitPoints), sketch1.getCDF(splitPoints));
+    Assert.assertEquals(sketch2.getPMF(new long[][] {splitPoints[30]}),
+        sketch1.getPMF(new long[][] {splitPoints[30]}));
+    Assert.assertEquals(sketch2.getQuantiles(11), sketch1.getQuantiles(11));
+    checkKeys(sketch2);
+
+    final ItemsSketch<long[]> down1 = sketch1.downSample(4);
+    final ItemsSketch<long[]> down2 = sketch2.downSample(4);
+    assertSameItems(down2, down1);
+    checkKeys(down2);
+    checkKeys(ItemsSketch.copy(sketch2));
+
+    // a keyed union result stays keyed, also when unkeyed sketches are merged into it
+    final ItemsUnion<long[]> union = ItemsUnion.newInstance(8, sketch1.getComparator());
+    union.update(sketch2);
+    union.update(sketch1);
+    union.update(down2);
+    final ItemsSketch<long[]> result = union.getResult();
+    Assert.assertTrue(result.isKeyed());
+    Assert.assertEquals(result.getN(), 3 * 5000);
+    Assert.assertEquals(result.getMinValue()[0], -5000);
+    checkKeys(result);
+  }
+
+  @Test
+  public void doubleKeyedSketch() {
+    final ItemsSketch<double[]> sketch = ItemsSketch.<double[]>builder().setK(16)
+        .buildDoubleKeyed(r -> r[0]);
+    final double[] values = {3.5, -0.0, 0.0, -2.25, Double.NaN, Double.NEGATIVE_INFINITY, 1e300};
+    for (int i = 0; i < 200; i++) {
+      sketch.update(new double[] {values[i % values.length]});
+    }
+    Assert.assertEquals(sketch.getMinValue()[0], Double.NEGATIVE_INFINITY);
+    Assert.assertTrue(Double.isNaN(sketch.getMaxValue()[0]));
+    final double[][] quantiles = sketch.getQuantiles(20);
+    for (int i = 1; i < quantiles.length; i++) {
+      Assert.assertTrue(Double.compare(quantiles[i - 1][0], quantiles[i][0]) <= 0);
+    }
+    checkKeys(sketch);
+    final double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    for (int i = 1; i < sorted.length; i++) {
+      Assert.assertTrue(ItemsKeyedImpl.doubleKey(sorted[i - 1]) < ItemsKeyedImpl.doubleKey(sorted[i]));
+    }
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void keyedSketchBadSplitPoints() {
+    final ItemsSketch<Long> sketch = ItemsSketch.<Long>builder().buildLongKeyed(Long::longValue);
+    sketch.update(1L);
+    sketch.getCDF(new Long[] {2L, 1L});
+  }
+
+  private static <T> void assertSameItems(final ItemsSketch<T> actual, final ItemsSketch<T> expected) {
+    Assert.assertEquals(actual.getN(), expected.getN());
+    Assert.assertEquals(actual.getBitPattern(), expected.getBitPattern());
+    Assert.assertEquals(actual.getBaseBufferCount(), expected.getBaseBufferCount());
+    Assert.assertSame(actual.getMinValue(), expected.getMinValue());
+    Assert.assertSame(actual.getMaxValue(), expected.getMaxValue());
+    final int k = actual.getK();
+    for (int lvl = 0; lvl < 64; lvl++) {
+      if ((actual.getBitPattern() & (1L << lvl)) == 0) { continue; }
+      for (int i = (2 + lvl) * k; i < (3 + lvl) * k; i++) {
+        Assert.assertSame(actual.getCombinedBuffer()[i], expected.getCombinedBuffer()[i]);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void checkKeys(final ItemsSketch<T> sketch) {
+    final Object[] items = sketch.getCombinedBuffer();
+    final long[] keys = sketch.combinedKeys_;
+    Assert.assertEquals(keys.length, items.length);
+    for (int i = 0; i < sketch.getBaseBufferCount(); i++) {
+      Assert.assertEquals(keys[i], sketch.getKeyFunction().applyAsLong((T) items[i]));
+    }
+    final int k = sketch.getK();
+    for (int lvl = 0; lvl < 64; lvl++) {
+      if ((sketch.getBitPattern() & (1L << lvl)) == 0) { continue; }
+      for (int i = (2 + lvl) * k; i < (3 + lvl) * k; i++) {
+        Assert.assertEquals(keys[i], sketch.getKeyFunction().applyAsLong((T) items[i]));
+      }
+    }
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkBuilderBadExpectedN() {
+    ItemsSketch.builder().setExpectedN(-1);
+  }
+
+  @Test
+  public void auxiliaryIsCachedUntilChanged() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    for (int i = 0; i < 1000; i++) { sketch.update(i); }
+    final Integer median = sketch.getQuantile(0.5);
+    final ItemsAuxiliary<Integer> aux = sketch.aux_;
+    Assert.assertNotNull(aux);
+    sketch.getQuantiles(new double[] {0.1, 0.9});
+    Assert.assertSame(sketch.aux_, aux);
+    Assert.assertSame(ItemsSketch.copy(sketch).aux_, aux);
+
+    sketch.update((Integer) null); //ignored
+    Assert.assertSame(sketch.aux_, aux);
+    sketch.update(1000);
+    Assert.assertNull(sketch.aux_);
+    Assert.assertEquals(sketch.getQuantile(0.5), median, 1000 * 0.1);
+    Assert.assertNotSame(sketch.aux_, aux);
+
+    sketch.getQuantile(0.5);
+    sketch.update(new Integer[] {1001, 1002}, 0, 2);
+    Assert.assertNull(sketch.aux_);
+    sketch.getQuantile(0.5);
+    sketch.updateAll(Arrays.asList(1003, 1004));
+    Assert.assertNull(sketch.aux_);
+    sketch.getQuantile(0.5);
+    sketch.update(1005, 100);
+    Assert.assertNull(sketch.aux_);
+
+    //a merge of a source with only levels does not update the base buffer of the target
+    final ItemsSketch<Integer> levelsOnly = newSketch(16, Comparator.naturalOrder());
+    for (int i = 0; i < 32; i++) { levelsOnly.update(-i); }
+    sketch.getQuantile(0.5);
+    ItemsMergeImpl.mergeInto(levelsOnly, sketch);
+    Assert.assertNull(sketch.aux_);
+    Assert.assertEquals(sketch.getQuantile(0.0), Integer.valueOf(-31));
+
+    sketch.getQuantile(0.5);
+    sketch.reset(true);
+    Assert.assertNull(sketch.aux_);
+    sketch.update(7);
+    Assert.assertEquals(sketch.getQuantile(0.5), Integer.valueOf(7));
+  }
+
   static ItemsSketch<String> buildStringIS(int k, int n) {
     return buildStringIS(k, n, 0);
   }
 
   static ItemsSketch<String> buildStringIS(int k, int n, int start) {
-    ItemsSketch<String> sketch = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+    ItemsSketch<String> sketch = newSketch(k, Comparator.naturalOrder());
     for (int i = 0; i < n; i++) {
       sketch.update(Integer.toString(i + start));
     }
     return sketch;
   }
 
+  @Test
+  public void quantilesIntoOutArray() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    final double[] fractions = new double[21];
+    for (int i = 0; i <= 20; i++) { fractions[i] = i / 20.0; }
+    final Integer[] out = new Integer[21];
+    Arrays.fill(out, 0);
+    sketch.getQuantiles(fractions, out);
+    Assert.assertNull(out[20]);
+    for (int i = 0; i < 5000; i++) { sketch.update(i % 100); } //many duplicates
+    sketch.getQuantiles(fractions, out);
+    for (int i = 0; i <= 20; i++) {
+      Assert.assertEquals(out[i], sketch.getQuantile(fractions[i]));
+    }
+    Assert.assertEquals(sketch.getQuantiles(fractions), out);
+  }
+
+  @Test
+  public void chunkContainingPosFromMatchesBinarySearch() {
+    final long[] cumWts = {0, 1, 3, 3, 7, 15, 16, 31, 47, 48, 50};
+    for (int from = 0; from < (cumWts.length - 1); from++) {
+      for (long pos = cumWts[from]; pos < 50; pos++) {
+        Assert.assertEquals(ItemsAuxiliary.chunkContainingPosFrom(cumWts, pos, from),
+            ItemsAuxiliary.chunkContainingPos(cumWts, pos));
+      }
+    }
+  }
+
+  @Test
+  public void rankMatchesCdf() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    Assert.assertTrue(Double.isNaN(sketch.getRank(1)));
+    Assert.assertNull(sketch.getRanks(new Integer[] {1}));
+    for (int i = 0; i < 5000; i++) { sketch.update((i * 7) % 1000); }
+    final Integer[] values = {-1, 0, 1, 250, 499, 500, 999, 1000, 3};
+    final double[] cdfs = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      cdfs[i] = sketch.getCDF(new Integer[] {values[i]})[0];
+      Assert.assertEquals(sketch.getRank(values[i]), cdfs[i]); //searches the levels
+    }
+    Assert.assertNull(sketch.aux_);
+    Assert.assertEquals(sketch.getRanks(values), cdfs);
+    Assert.assertNotNull(sketch.aux_);
+    for (int i = 0; i < values.length; i++) {
+      Assert.assertEquals(sketch.getRank(values[i]), cdfs[i]); //searches the cached view
+    }
+  }
+
+  @Test
+  public void keyedRankMatchesCdf() {
+    final ItemsSketch<Long> sketch = ItemsSketch.<Long>builder().setK(16).buildLongKeyed(v -> v);
+    for (long i = 0; i < 3000; i++) { sketch.update(i % 700); }
+    final Long[] values = {-5L, 0L, 350L, 699L, 700L};
+    final double[] ranks = sketch.getRanks(values);
+    for (int i = 0; i < values.length; i++) {
+      Assert.assertEquals(ranks[i], sketch.getCDF(new Long[] {values[i]})[0]);
+    }
+    sketch.update(1L);
+    Assert.assertEquals(sketch.getRank(350L), sketch.getCDF(new Long[] {350L})[0]);
+  }
+
+  @Test
+  public void cdfDoesNotReorderBaseBuffer() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    for (int i = 0; i < 1000; i++) { sketch.update((i * 37) % 1009); }
+    final Integer[] splits = new Integer[200]; //many split points, walks the levels
+    for (int i = 0; i < splits.length; i++) { splits[i] = i * 5; }
+    final Object[] before = sketch.getCombinedBuffer().clone();
+    final double[] cdf = sketch.getCDF(splits);
+    Assert.assertEquals(sketch.getCombinedBuffer(), before);
+    for (int i = 0; i < splits.length; i++) {
+      Assert.assertEquals(cdf[i], sketch.getRank(splits[i]));
+    }
+    final Integer[] fewSplits = {5, 500, 995}; //few split points, searches the levels
+    final double[] fewCdf = sketch.getCDF(fewSplits);
+    Assert.assertEquals(fewCdf[0], cdf[1]);
+    Assert.assertEquals(fewCdf[1], cdf[100]);
+    Assert.assertEquals(fewCdf[2], cdf[199]);
+    Assert.assertEquals(fewCdf[3], 1.0);
+  }
+
+  @Test
+  public void keyedCdfDoesNotReorderBaseBuffer() {
+    final ItemsSketch<Long> sketch = ItemsSketch.<Long>builder().setK(16).buildLongKeyed(v -> v);
+    for (long i = 0; i < 1000; i++) { sketch.update((i * 37) % 1009); }
+    final Long[] splits = new Long[200];
+    for (int i = 0; i < splits.length; i++) { splits[i] = i * 5L; }
+    final Object[] before = sketch.getCombinedBuffer().clone();
+    final double[] cdf = sketch.getCDF(splits);
+    Assert.assertEquals(sketch.getCombinedBuffer(), before);
+    final double[] pmf = sketch.getPMF(new Long[] {5L, 995L});
+    Assert.assertEquals(pmf[0], cdf[1]);
+    Assert.assertEquals(pmf[0] + pmf[1], cdf[199], 1e-12);
+  }
+
+  @Test
+  public void checkPreferSearch() {
+    Assert.assertTrue(ItemsPmfCdfImpl.preferSearch(128, 3));
+    Assert.assertFalse(ItemsPmfCdfImpl.preferSearch(128, 100));
+  }
+
+  @Test
+  public void parallelQueriesMatchSequential() {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final ItemsSketchBuilder<Integer> bldr = ItemsSketch.<Integer>builder().setK(32768).setSeed(1);
+      final ItemsSketch<Integer> seq = bldr.build(Comparator.naturalOrder());
+      final ItemsSketch<Integer> par = bldr.setForkJoinPool(pool).build(Comparator.naturalOrder());
+      Assert.assertEquals(bldr.getForkJoinPool(), pool);
+      for (int i = 0; i < (3 * 65536) + 17; i++) {
+        final int v = (i * 7919) % 100003;
+        seq.update(v);
+        par.update(v);
+      }
+      Assert.assertTrue(par.getRetainedItems() >= Util.MIN_PARALLEL_ITEMS);
+      final Integer[] splits = new Integer[100];
+      for (int i = 0; i < splits.length; i++) { splits[i] = i * 1000; }
+      Assert.assertEquals(par.getCDF(splits), seq.getCDF(splits));
+      Assert.assertEquals(par.getPMF(new Integer[] {500}), seq.getPMF(new Integer[] {500}));
+      final double[] fractions = {0.0, 0.1, 0.5, 0.9, 1.0};
+      Assert.assertEquals(par.getQuantiles(fractions), seq.getQuantiles(fractions));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void parallelMergeSortMatchesSequential() {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final int blkSize = 4;
+      final int arrLen = 37; //a short final block
+      final Integer[] items = new Integer[arrLen];
+      final long[] keys = new long[arrLen];
+      final long[] vals = new long[arrLen];
+      for (int i = 0; i < arrLen; i++) {
+        items[i] = ((i / blkSize) * 13) + ((i % blkSize) * 5); //sorted within each block
+        keys[i] = items[i];
+        vals[i] = i;
+      }
+      final Integer[] seqItems = items.clone();
+      final long[] seqVals = vals.clone();
+      ItemsMergeImpl.blockyTandemMergeSort(seqItems, seqVals, arrLen, blkSize,
+          Comparator.naturalOrder());
+      final Integer[] parItems = items.clone();
+      final long[] parVals = vals.clone();
+      ItemsMergeImpl.blockyTandemMergeSort(parItems, parVals, arrLen, blkSize,
+          Comparator.naturalOrder(), pool, 8);
+      Assert.assertEquals(parItems, seqItems);
+      Assert.assertEquals(parVals, seqVals);
+
+      final long[] parKeys = keys.clone();
+      final Object[] parKeyedItems = items.clone();
+      final long[] parKeyedVals = vals.clone();
+      ItemsKeyedImpl.blockyTandemMergeSort(parKeys, parKeyedItems, parKeyedVals, arrLen, blkSize,
+          pool, 8);
+      Assert.assertEquals(parKeyedItems, seqItems);
+      Assert.assertEquals(parKeyedVals, seqVals);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void gallopingMergeMatchesPlainMerge() {
+    final Comparator<long[]> byKey = (a, b) -> Long.compare(a[0], b[0]); //a[1] is the identity
+    final Random rand = new Random(1);
+    for (int trial = 0; trial < 200; trial++) {
+      final int len1 = rand.nextInt(40);
+      final int len2 = rand.nextInt(40);
+      final int range = 1 + rand.nextInt(100); //small ranges give many ties
+      final long[][] src = new long[len1 + len2][];
+      final long[] vals = new long[len1 + len2];
+      for (int i = 0; i < src.length; i++) {
+        src[i] = new long[] {rand.nextInt(range), i};
+      }
+      Arrays.sort(src, 0, len1, byKey);
+      Arrays.sort(src, len1, len1 + len2, byKey);
+      final long[][] expected = new long[src.length][];
+      int i1 = 0;
+      int i2 = len1;
+      for (int i = 0; i < expected.length; i++) { //plain stable merge
+        final boolean takeTwo = (i1 == len1) || ((i2 < src.length) && (src[i2][0] < src[i1][0]));
+        expected[i] = takeTwo ? src[i2++] : src[i1++];
+      }
+      final long[][] dst = new long[src.length][];
+      final long[] valDst = new long[src.length];
+      for (int i = 0; i < src.length; i++) { vals[i] = src[i][1]; } //values follow the keys
+      ItemsMergeImpl.gallopingMerge(src, 0, len1, src, len1, len2, dst, 0, vals, valDst, byKey);
+      Assert.assertEquals(dst, expected);
+      for (int i = 0; i < src.length; i++) { Assert.assertEquals(valDst[i], dst[i][1]); }
+    }
+  }
+
+  @Test
+  public void gallopingMergeOfDisjointRunsComparesLittle() {
+    final int k = 1024;
+    final Integer[] src = new Integer[2 * k];
+    for (int i = 0; i < src.length; i++) { src[i] = i; } //time-ordered: run 1 precedes run 2
+    final int[] comparisons = new int[1];
+    final Comparator<Integer> counting = (a, b) -> {
+      comparisons[0]++;
+      return Integer.compare(a, b);
+    };
+    final Integer[] dst = new Integer[2 * k];
+    ItemsMergeImpl.gallopingMerge(src, 0, k, src, k, k, dst, 0, null, null, counting);
+    Assert.assertEquals(dst, src);
+    Assert.assertTrue(comparisons[0] < 64, "comparisons: " + comparisons[0]);
+  }
+
+  @Test
+  public void checkGallopCounts() {
+    final Comparator<Integer> natural = Comparator.naturalOrder();
+    final Integer[] arr = {9, 1, 2, 2, 2, 5, 8, 9};
+    Assert.assertEquals(ItemsMergeImpl.gallopCountNotAbove(2, arr, 1, 7, natural), 4);
+    Assert.assertEquals(ItemsMergeImpl.gallopCountBelow(2, arr, 1, 7, natural), 1);
+    Assert.assertEquals(ItemsMergeImpl.gallopCountNotAbove(0, arr, 1, 7, natural), 0);
+    Assert.assertEquals(ItemsMergeImpl.gallopCountBelow(10, arr, 1, 7, natural), 7);
+    Assert.assertEquals(ItemsMergeImpl.gallopCountNotAbove(9, arr, 1, 7, natural), 7);
+    Assert.assertEquals(ItemsMergeImpl.gallopCountBelow(9, arr, 1, 0, natural), 0);
+  }
+
+  @Test
+  public void bulkBaseBufferMergeMatchesItemUpdates() {
+    final ItemsSketchBuilder<Long> bldr = ItemsSketch.<Long>builder().setK(16).setSeed(7);
+    for (final boolean keyed : new boolean[] {false, true}) {
+      final ItemsSketch<Long> bulk = keyed ? bldr.buildLongKeyed(v -> v)
+          : bldr.build(Comparator.naturalOrder());
+      final ItemsSketch<Long> single = keyed ? bldr.buildLongKeyed(v -> v)
+          : bldr.build(Comparator.naturalOrder());
+      for (int s = 0; s < 20; s++) {
+        final ItemsSketch<Long> src = newSketch(16, Comparator.naturalOrder());
+        for (long i = 0; i < 23; i++) { src.update(((s * 31L) + (i * 17L)) % 500); }
+        Assert.assertFalse(src.isEstimationMode());
+        ItemsMergeImpl.mergeInto(src, bulk);
+        for (int i = 0; i < src.getBaseBufferCount(); i++) {
+          single.update((Long) src.getCombinedBuffer()[i]);
+        }
+      }
+      Assert.assertEquals(bulk.getN(), single.getN());
+      Assert.assertEquals(bulk.getBitPattern(), single.getBitPattern());
+      Assert.assertEquals(bulk.getCombinedBuffer(), single.getCombinedBuffer());
+      if (keyed) { Assert.assertEquals(bulk.combinedKeys_, single.combinedKeys_); }
+      Assert.assertEquals(bulk.getMinValue(), single.getMinValue());
+      Assert.assertEquals(bulk.getMaxValue(), single.getMaxValue());
+    }
+  }
+
+  @Test
+  public void downSampleInPlaceMatchesDownSample() {
+    for (final int newK : new int[] {8, 32, 64}) {
+      for (final int n : new int[] {0, 5, 20, 100, 127, 128, 200, 1000, 12345, 100000}) {
+        final ItemsSketch<Integer> sketch = newSketch(64, Comparator.naturalOrder());
+        for (int i = 0; i < n; i++) { sketch.update((i * 7919) % n); }
+        final ItemsSketch<Integer> down = sketch.downSample(newK);
+        sketch.downSampleInPlace(newK);
+
+        Assert.assertEquals(sketch.getK(), newK);
+        Assert.assertEquals(sketch.getN(), n);
+        Assert.assertEquals(sketch.getBitPattern(), down.getBitPattern());
+        Assert.assertEquals(sketch.getBaseBufferCount(), down.getBaseBufferCount());
+        Assert.assertEquals(sketch.getRetainedItems(), down.getRetainedItems());
+        Assert.assertEquals(sketch.getCombinedBufferAllocatedCount(),
+            Util.computeCombinedBufferItemCapacity(newK, n));
+        Assert.assertEquals(sketch.getCombinedBuffer().length,
+            sketch.getCombinedBufferAllocatedCount());
+        if (n == 0) {
+          Assert.assertTrue(sketch.isEmpty());
+          continue;
+        }
+        Assert.assertEquals(sketch.getMinValue(), Integer.valueOf(0));
+        Assert.assertEquals(sketch.getMaxValue(), Integer.valueOf(n - 1));
+        final Object[] buf = sketch.getCombinedBuffer();
+        for (int i = sketch.getBaseBufferCount(); i < Math.min(2 * newK, buf.length); i++) {
+          Assert.assertNull(buf[i]); //no stale references are retained
+        }
+        for (int lvl = 0; ((2 + lvl) * newK) < buf.length; lvl++) {
+          if ((sketch.getBitPattern() & (1L << lvl)) == 0) {
+            for (int i = (2 + lvl) * newK; i < ((3 + lvl) * newK); i++) {
+              Assert.assertNull(buf[i]);
+            }
+            continue;
+          }
+          for (int i = ((2 + lvl) * newK) + 1; i < ((3 + lvl) * newK); i++) {
+            Assert.assertTrue((Integer) buf[i - 1] <= (Integer) buf[i]);
+          }
+        }
+        final double eps = Util.EpsilonFromK.getAdjustedEpsilon(newK);
+        Assert.assertEquals(sketch.getRank(n / 2), (n / 2) / (double) n, eps);
+
+        for (int i = 0; i < n; i++) { sketch.update(i); } //the sketch keeps working
+        Assert.assertEquals(sketch.getN(), 2L * n);
+        Assert.assertEquals(sketch.getRank(n / 2), (n / 2) / (double) n, eps);
+      }
+    }
+  }
+
+  @Test
+  public void downSampleInPlaceOfKeyedSketch() {
+    final ItemsSketch<Long> sketch = ItemsSketch.<Long>builder().setK(128)
+        .buildLongKeyed(Long::longValue);
+    for (long i = 0; i < 10000; i++) { sketch.update(-i); }
+    sketch.downSampleInPlace(16);
+    Assert.assertEquals(sketch.getK(), 16);
+    Assert.assertEquals(sketch.getN(), 10000);
+    checkKeys(sketch);
+    Assert.assertEquals(sketch.getRank(-5000L), 0.5, Util.EpsilonFromK.getAdjustedEpsilon(16));
+  }
+
+  @Test
+  public void downSampleInPlaceLeavesSharedResultAlone() {
+    final ItemsUnion<Integer> union = ItemsUnion.newInstance(64, Comparator.naturalOrder());
+    for (int i = 0; i < 1000; i++) { union.update(i); }
+    final ItemsSketch<Integer> result = union.getResult();
+    final Object[] snapshot = result.getCombinedBuffer().clone();
+    result.downSampleInPlace(16);
+    Assert.assertEquals(result.getK(), 16);
+    Assert.assertEquals(union.getEffectiveK(), 64);
+    Assert.assertEquals(union.getResult().getCombinedBuffer(), snapshot);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkDownSampleInPlaceException() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    sketch.update(1);
+    sketch.downSampleInPlace(32);
+  }
+
+  @Test
+  public void streamingSerializationMatchesToByteArray() throws IOException {
+    for (final int n : new int[] {0, 1, 50, 1000, 100000}) {
+      final ItemsSketch<Long> longs = newSketch(32, Comparator.naturalOrder());
+      final ItemsSketch<String> strings = newSketch(32, Comparator.naturalOrder());
+      final ItemsSketch<Double> doubles = newSketch(32, Comparator.naturalOrder());
+      for (int i = 0; i < n; i++) {
+        final long v = (i * 7919L) % 100003;
+        longs.update(v);
+        strings.update(Long.toString(v));
+        doubles.update((double) v);
+      }
+      checkStreamingSerialization(longs, new ArrayOfLongsSerDe()); //overrides the range methods
+      checkStreamingSerialization(strings, new ArrayOfStringsSerDe()); //serializes whole arrays
+      checkStreamingSerialization(doubles, new ArrayOfDoublesSerDe());
+    }
+  }
+
+  private static <T> void checkStreamingSerialization(final ItemsSketch<T> sketch,
+      final ArrayOfItemsSerDe<T> serDe) throws IOException {
+    final byte[] expected = sketch.toByteArray(serDe);
+    final int numBytes = sketch.getSerializedSizeBytes(serDe);
+    Assert.assertEquals(numBytes, expected.length);
+
+    final byte[] memBytes = new byte[numBytes + 8];
+    Arrays.fill(memBytes, (byte) 0x55); //the preamble must not keep any of these
+    sketch.putMemory(WritableMemory.wrap(memBytes), serDe);
+    Assert.assertEquals(Arrays.copyOf(memBytes, numBytes), expected);
+    Assert.assertEquals(memBytes[numBytes], (byte) 0x55);
+
+    final ByteBuffer buf = ByteBuffer.allocate(numBytes + 10).order(ByteOrder.BIG_ENDIAN);
+    buf.position(3);
+    sketch.putByteBuffer(buf, serDe);
+    Assert.assertEquals(buf.position(), numBytes + 3);
+    Assert.assertEquals(buf.order(), ByteOrder.BIG_ENDIAN);
+    Assert.assertEquals(Arrays.copyOfRange(buf.array(), 3, numBytes + 3), expected);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sketch.writeTo(out, serDe);
+    Assert.assertEquals(out.toByteArray(), expected);
+
+    final WritableMemory ordered = WritableMemory.wrap(new byte[numBytes]);
+    ItemsByteArrayImpl.putMemory(sketch, true, serDe, ordered);
+    final byte[] orderedBytes = new byte[numBytes];
+    ordered.getByteArray(0, orderedBytes, 0, numBytes);
+    Assert.assertEquals(orderedBytes, sketch.toByteArray(true, serDe));
+
+    final ItemsSketch<T> copy = ItemsSketch.heapify(Memory.wrap(memBytes),
+        sketch.getComparator(), serDe);
+    Assert.assertEquals(copy.getN(), sketch.getN());
+    Assert.assertEquals(copy.toByteArray(serDe), expected);
+  }
+
+  @Test
+  public void serDeWithArrayHeaderIsSerializedOnce() throws IOException {
+    final int[] calls = {0};
+    final ArrayOfStringsSerDe strings = new ArrayOfStringsSerDe();
+    final ArrayOfItemsSerDe<String> serDe = new ArrayOfItemsSerDe<String>() {
+      @Override
+      public byte[] serializeToByteArray(final String[] items) { //prefixed with the item count
+        calls[0]++;
+        final byte[] itemBytes = strings.serializeToByteArray(items);
+        final byte[] bytes = new byte[Integer.BYTES + itemBytes.length];
+        final WritableMemory mem = WritableMemory.wrap(bytes);
+        mem.putInt(0, items.length);
+        mem.putByteArray(Integer.BYTES, itemBytes, 0, itemBytes.length);
+        return bytes;
+      }
+
+      @Override
+      public String[] deserializeFromMemory(final Memory mem, final int numItems) {
+        Assert.assertEquals(mem.getInt(0), numItems);
+        return strings.deserializeFromMemory(
+            mem.region(Integer.BYTES, mem.getCapacity() - Integer.BYTES), numItems);
+      }
+    };
+    final ItemsSketch<String> sketch = newSketch(16, Comparator.naturalOrder());
+    for (int i = 0; i < 1000; i++) { sketch.update(Integer.toString(i)); }
+    final byte[] expected = sketch.toByteArray(serDe);
+
+    calls[0] = 0;
+    final byte[] memBytes = new byte[expected.length];
+    sketch.putMemory(WritableMemory.wrap(memBytes), serDe);
+    Assert.assertEquals(calls[0], 1);
+    Assert.assertEquals(memBytes, expected);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sketch.writeTo(out, serDe);
+    Assert.assertEquals(out.toByteArray(), expected);
+    Assert.assertEquals(ItemsSketch.heapify(Memory.wrap(memBytes), sketch.getComparator(), serDe)
+        .getN(), 1000);
+  }
+
+  @Test
+  public void serDeOfSupertypeSerializesMixedItems() {
+    final ArrayOfItemsSerDe<Number> serDe = new ArrayOfItemsSerDe<Number>() {
+      @Override
+      public byte[] serializeToByteArray(final Number[] items) { //a tag byte and 8 bytes each
+        final byte[] bytes = new byte[items.length * 9];
+        final WritableMemory mem = WritableMemory.wrap(bytes);
+        for (int i = 0; i < items.length; i++) {
+          final boolean isLong = items[i] instanceof Long;
+          mem.putByte(i * 9, (byte) (isLong ? 0 : 1));
+          mem.putLong((i * 9) + 1, isLong
+              ? items[i].longValue() : Double.doubleToLongBits(items[i].doubleValue()));
+        }
+        return bytes;
+      }
+
+      @Override
+      public Number[] deserializeFromMemory(final Memory mem, final int numItems) {
+        final Number[] items = new Number[numItems];
+        for (int i = 0; i < numItems; i++) {
+          final long bits = mem.getLong((i * 9) + 1);
+          items[i] = (mem.getByte(i * 9) == 0) ? (Number) bits : Double.longBitsToDouble(bits);
+        }
+        return items;
+      }
+
+      @Override
+      public boolean serializesItemsIndependently() { //relies on the default range methods
+        return true;
+      }
+    };
+    final Comparator<Number> comparator = Comparator.comparingDouble(Number::doubleValue);
+    final ItemsSketch<Number> sketch = newSketch(16, comparator);
+    for (int i = 0; i < 1000; i++) {
+      sketch.update(((i % 2) == 0) ? (Number) (long) i : (Number) (i + 0.5));
+    }
+    final byte[] bytes = new byte[sketch.getSerializedSizeBytes(serDe)];
+    sketch.putMemory(WritableMemory.wrap(bytes), serDe);
+    final ItemsSketch<Number> copy = ItemsSketch.heapify(Memory.wrap(bytes), comparator, serDe);
+    Assert.assertEquals(copy.getN(), 1000);
+    Assert.assertEquals(copy.getMinValue(), 0L);
+    Assert.assertEquals(copy.getMaxValue(), 999.5);
+    final Number[] items = {1L, 2.5, 3L};
+    Assert.assertEquals(serDe.getSerializedSizeBytes(items, 0, 3), 27);
+    final WritableMemory mem = WritableMemory.wrap(new byte[27]);
+    Assert.assertEquals(serDe.serializeToMemory(items, 0, 3, mem, 0), 27);
+    Assert.assertEquals(serDe.deserializeFromMemory(mem, 3), items);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkPutByteBufferTooSmall() {
+    final ItemsSketch<Long> sketch = newSketch(32, Comparator.naturalOrder());
+    for (long i = 0; i < 100; i++) { sketch.update(i); }
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    sketch.putByteBuffer(ByteBuffer.allocate(sketch.getSerializedSizeBytes(serDe) - 1), serDe);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void checkRankOfNull() {
+    final ItemsSketch<Integer> sketch = newSketch(16, Comparator.naturalOrder());
+    sketch.update(1);
+    sketch.getRank(null);
+  }
+
   @Test
   public void printlnTest() {
     println("PRINTING: "+this.getClass().getName());
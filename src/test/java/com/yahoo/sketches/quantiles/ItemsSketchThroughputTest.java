@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+/**
+ * Throughput benchmarks, which are in the "benchmark" group that the default build excludes.
+ * Run them with <code>mvn test -P benchmark</code>.
+ */
+public class ItemsSketchThroughputTest {
+
+  /**
+   * Prints the update throughput of sketches that use the default source of randomness, one
+   * sketch per thread, for 1, 2, 4, ... threads up to the number of processors. The throughput
+   * should grow with the number of threads, as the threads share no source of randomness.
+   */
+  @Test(groups = "benchmark")
+  public void compactionThroughputScalesWithThreads() throws Exception {
+    final int itemsPerThread = 1 << 22;
+    final int maxThreads = Runtime.getRuntime().availableProcessors();
+    final Long[] items = new Long[1 << 16];
+    for (int i = 0; i < items.length; i++) { items[i] = (long) ((i * 7919L) % 65537); }
+    System.out.println("Threads\tItems/sec");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      final ExecutorService exec = Executors.newFixedThreadPool(threads);
+      final Future<?>[] futures = new Future<?>[threads];
+      final long start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        futures[t] = exec.submit(() -> {
+          // k = 16 compacts every 32 items, so the random source is hit constantly
+          final ItemsSketch<Long> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+          for (int i = 0; i < itemsPerThread; i++) {
+            sketch.update(items[i & (items.length - 1)]);
+          }
+        });
+      }
+      for (Future<?> f : futures) { f.get(); }
+      final long nanos = System.nanoTime() - start;
+      exec.shutdown();
+      System.out.println(threads + "\t" + (((double) threads * itemsPerThread * 1e9) / nanos));
+    }
+  }
+
+}
@@ -7,7 +7,11 @@ package com.yahoo.sketches.quantiles;
 
 import static com.yahoo.sketches.quantiles.PreambleUtil.DEFAULT_K;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -380,6 +384,19 @@ public class ItemsUnionTest {
     Assert.assertEquals(bytesOut, byteArr); // assumes consistent internal use of toByteArray()
   }
 
+  @Test
+  public void quantilesWithoutCopy() {
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(128, Comparator.naturalOrder());
+    Assert.assertNull(union.getQuantile(0.5));
+    Assert.assertNull(union.getQuantiles(new double[] {0.5}));
+    union.update(buildIS(128, 1000));
+    final Long median = union.getQuantile(0.5);
+    Assert.assertEquals(median, union.getResult().getQuantile(0.5));
+    Assert.assertEquals(union.getQuantiles(new double[] {0.5})[0], median);
+    union.update(buildIS(128, 1000, 1000));
+    Assert.assertEquals(union.getQuantile(0.5), 1000, 2000 * 0.02);
+  }
+
   private static ItemsSketch<Long> buildIS(final int k, final int n) {
     return buildIS(k, n, 0);
   }
@@ -390,6 +407,302 @@ public class ItemsUnionTest {
     return is;
   }
 
+  @Test
+  public void mergeContextReusesScratch() {
+    final ItemsMergeContext ctx = new ItemsMergeContext();
+    final Object[] scratch = ctx.scratchBuf(64);
+    Assert.assertSame(ctx.scratchBuf(32), scratch);
+    Assert.assertNotSame(ctx.scratchBuf(128), scratch);
+    Assert.assertEquals(ctx.scratchBuf(64).length, 128);
+    final long[] keys = ctx.scratchKeys(64);
+    Assert.assertSame(ctx.scratchKeys(64), keys);
+    Assert.assertSame(ctx.downBuf(16), ctx.downBuf(8));
+    Assert.assertSame(ctx.downKeys(16), ctx.downKeys(8));
+    Assert.assertSame(ctx.sourceKeys(16), ctx.sourceKeys(8));
+  }
+
+  @Test
+  public void manyMergesWithSharedContext() {
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(64, Comparator.naturalOrder());
+    final ItemsUnion<Long> keyedUnion = ItemsUnion.newInstance(
+        ItemsSketch.<Long>builder().setK(64).buildLongKeyed(v -> v));
+    long n = 0;
+    for (int s = 0; s < 50; s++) {
+      final int k = ((s % 2) == 0) ? 64 : 128; //the odd sketches are down-sampled
+      final ItemsSketch<Long> sketch = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+      for (long i = 0; i < 1000; i++) { sketch.update((s * 1000L) + i); }
+      union.update(sketch);
+      keyedUnion.update(sketch);
+      n += 1000;
+    }
+    for (final ItemsUnion<Long> u : Arrays.asList(union, keyedUnion)) {
+      final ItemsSketch<Long> result = u.getResult();
+      Assert.assertEquals(result.getN(), n);
+      Assert.assertEquals(result.getK(), 64);
+      Assert.assertEquals(result.getMinValue(), Long.valueOf(0));
+      Assert.assertEquals(result.getMaxValue(), Long.valueOf(n - 1));
+      Assert.assertEquals(result.getQuantile(0.5), n / 2.0, n * 0.05);
+    }
+  }
+
+  @Test
+  public void batchedIngestionKeepsRankErrorBound() {
+    final int n = 1_000_000;
+    for (final int k : new int[] {32, 128}) {
+      final double eps = Util.EpsilonFromK.getAdjustedEpsilon(k);
+      for (int seed = 1; seed <= 4; seed++) {
+        final ItemsUnion<Integer> union = ItemsUnion.newInstance(
+            ItemsSketch.<Integer>builder().setK(k).setSeed(seed).build(Comparator.naturalOrder()));
+        ItemsSketch<Integer> small = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+        for (int i = 0; i < n; i++) {
+          small.update((int) ((i * 7919L) % n)); //a permutation of 0 .. n-1
+          if (small.getN() == (k / 2)) { //the sketches stay in exact mode, so they are batched
+            union.update(small);
+            small = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+          }
+        }
+        union.update(small);
+        Assert.assertEquals(union.getResult().getN(), n);
+        for (int v = 0; v <= n; v += n / 200) {
+          Assert.assertEquals(union.getRank(v), v / (double) n, eps);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void memoryUpdateMatchesHeapifiedUpdate() {
+    checkMemoryUpdateMatchesHeapifiedUpdate(new ArrayOfLongsSerDe()); //read one level at a time
+    checkMemoryUpdateMatchesHeapifiedUpdate(new ArrayOfLongsSerDe() { //read all at once
+      @Override
+      public boolean serializesItemsIndependently() {
+        return false;
+      }
+    });
+  }
+
+  private static void checkMemoryUpdateMatchesHeapifiedUpdate(final ArrayOfLongsSerDe serDe) {
+    for (final boolean keyed : new boolean[] {false, true}) {
+      final ItemsSketchBuilder<Long> bldr = ItemsSketch.<Long>builder().setK(32).setSeed(3);
+      final ItemsUnion<Long> direct = ItemsUnion.newInstance(
+          keyed ? bldr.buildLongKeyed(v -> v) : bldr.build(Comparator.naturalOrder()));
+      final ItemsUnion<Long> heapified = ItemsUnion.newInstance(
+          keyed ? bldr.buildLongKeyed(v -> v) : bldr.build(Comparator.naturalOrder()));
+      for (int s = 0; s < 12; s++) {
+        final int k = (s % 3 == 0) ? 32 : (s % 3 == 1) ? 64 : 128; //some are down-sampled
+        final ItemsSketch<Long> sketch = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+        final int n = (s % 4 == 0) ? 20 : 1000 + (s * 37); //some are exact
+        for (long i = 0; i < n; i++) { sketch.update(((s * 7919L) + (i * 31L)) % 10007); }
+        final Memory mem = Memory.wrap(sketch.toByteArray(serDe));
+        direct.update(mem, serDe);
+        heapified.update(ItemsSketch.heapify(mem, Comparator.<Long>naturalOrder(), serDe));
+      }
+      final ItemsSketch<Long> r1 = direct.getResult();
+      final ItemsSketch<Long> r2 = heapified.getResult();
+      Assert.assertEquals(r1.getN(), r2.getN());
+      Assert.assertEquals(r1.getK(), r2.getK());
+      Assert.assertEquals(r1.getMinValue(), r2.getMinValue());
+      Assert.assertEquals(r1.getMaxValue(), r2.getMaxValue());
+      Assert.assertEquals(r1.getBitPattern(), r2.getBitPattern());
+      Assert.assertEquals(r1.getCombinedBuffer(), r2.getCombinedBuffer());
+    }
+  }
+
+  @Test
+  public void memoryUpdateIntoNewUnion() {
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    final ItemsSketch<Long> big = ItemsSketch.newInstance(256, Comparator.naturalOrder());
+    for (long i = 0; i < 10000; i++) { big.update(i); }
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(64, Comparator.naturalOrder());
+    union.update(Memory.wrap(big.toByteArray(serDe)), serDe); //down-sampled into a new gadget
+    Assert.assertEquals(union.getEffectiveK(), 64);
+    Assert.assertEquals(union.getResult().getN(), 10000);
+
+    final ItemsSketch<Long> small = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    for (long i = 0; i < 1000; i++) { small.update(i); }
+    union.update(Memory.wrap(small.toByteArray(serDe)), serDe); //k shrinks, heapified
+    Assert.assertEquals(union.getEffectiveK(), 16);
+    Assert.assertEquals(union.getResult().getN(), 11000);
+    Assert.assertEquals(union.getResult().getMaxValue(), Long.valueOf(9999));
+
+    final ItemsUnion<Long> empty = ItemsUnion.newInstance(64, Comparator.naturalOrder());
+    empty.update(Memory.wrap(ItemsSketch.<Long>newInstance(32, Comparator.naturalOrder())
+        .toByteArray(serDe)), serDe);
+    Assert.assertTrue(empty.isEmpty());
+    Assert.assertEquals(empty.getEffectiveK(), 32);
+  }
+
+  @Test
+  public void unionAllMatchesSerialUpdates() {
+    final ArrayOfLongsSerDe serDe = new ArrayOfLongsSerDe();
+    final List<ItemsSketch<Long>> sketches = new ArrayList<>();
+    final List<Memory> images = new ArrayList<>();
+    long n = 0;
+    for (int s = 0; s < (3 * ItemsUnion.UNION_ALL_LEAF_SIZE) + 5; s++) {
+      final int k = ((s % 5) == 0) ? 128 : 64;
+      final ItemsSketch<Long> sketch = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+      final int len = ((s % 3) == 0) ? 10 : 300;
+      for (long i = 0; i < len; i++) { sketch.update((s * 1000L) + i); }
+      n += len;
+      sketches.add(sketch);
+      images.add(Memory.wrap(sketch.toByteArray(serDe)));
+    }
+    sketches.add(null);
+    final ItemsUnion<Long> serial = ItemsUnion.newInstance(128, Comparator.naturalOrder());
+    for (final ItemsSketch<Long> sketch : sketches) { serial.update(sketch); }
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final ItemsUnion<Long> all = ItemsUnion.newInstance(128, Comparator.naturalOrder());
+      all.update(-1L);
+      all.unionAll(sketches, pool);
+      final ItemsUnion<Long> allImages = ItemsUnion.newInstance(128, Comparator.naturalOrder());
+      allImages.unionAll(images, serDe, pool);
+      all.unionAll(new ArrayList<ItemsSketch<Long>>(), pool); //no-op
+
+      Assert.assertEquals(all.getResult().getN(), n + 1);
+      Assert.assertEquals(all.getResult().getMinValue(), Long.valueOf(-1));
+      Assert.assertEquals(allImages.getResult().getN(), n);
+      for (final ItemsUnion<Long> u : Arrays.asList(all, allImages)) {
+        final ItemsSketch<Long> result = u.getResult();
+        Assert.assertEquals(result.getK(), serial.getEffectiveK());
+        Assert.assertEquals(result.getMaxValue(), serial.getResult().getMaxValue());
+        Assert.assertEquals(serial.getResult().getRank(result.getQuantile(0.5)), 0.5, 0.05);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void unionAllInCommonPool() {
+    final List<ItemsSketch<Long>> sketches = new ArrayList<>();
+    for (long s = 0; s < 10; s++) {
+      final ItemsSketch<Long> sketch = ItemsSketch.newInstance(32, Comparator.naturalOrder());
+      sketch.update(s);
+      sketches.add(sketch);
+    }
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(32, Comparator.naturalOrder());
+    union.unionAll(sketches);
+    Assert.assertEquals(union.getResult().getN(), 10);
+    Assert.assertEquals(union.getResult().getMaxValue(), Long.valueOf(9));
+  }
+
+  @Test
+  public void resultIsCopyOnWrite() {
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(16, Comparator.naturalOrder());
+    for (long i = 0; i < 1000; i++) { union.update(i); }
+    final ItemsSketch<Long> result1 = union.getResult();
+    final ItemsSketch<Long> result2 = union.getResult();
+    Assert.assertSame(result1.getCombinedBuffer(), union.gadget_.getCombinedBuffer());
+    Assert.assertSame(result2.getCombinedBuffer(), union.gadget_.getCombinedBuffer());
+    final Object[] snapshot = result1.getCombinedBuffer().clone();
+
+    for (long i = 1000; i < 2000; i++) { union.update(i); } //the union forks
+    Assert.assertNotSame(result1.getCombinedBuffer(), union.gadget_.getCombinedBuffer());
+    Assert.assertEquals(result1.getCombinedBuffer(), snapshot);
+    Assert.assertEquals(result1.getN(), 1000);
+    Assert.assertEquals(union.getResult().getN(), 2000);
+
+    result2.update(5000L); //the result forks, result1 is unaffected
+    Assert.assertEquals(result1.getCombinedBuffer(), snapshot);
+    Assert.assertEquals(result2.getMaxValue(), Long.valueOf(5000));
+    result1.reset(true);
+    Assert.assertTrue(result1.isEmpty());
+    Assert.assertEquals(union.getResult().getN(), 2000);
+
+    final ItemsSketch<Long> result3 = union.getResult();
+    final ItemsSketch<Long> other = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+    for (long i = 0; i < 100; i++) { other.update(i); }
+    final Object[] snapshot3 = result3.getCombinedBuffer().clone();
+    union.update(other); //a merge forks as well
+    Assert.assertEquals(result3.getCombinedBuffer(), snapshot3);
+    Assert.assertEquals(union.getResult().getN(), 2100);
+  }
+
+  @Test
+  public void queriesWithoutCopy() {
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(128, Comparator.naturalOrder());
+    Assert.assertTrue(Double.isNaN(union.getRank(1L)));
+    Assert.assertNull(union.getRanks(new Long[] {1L}));
+    Assert.assertNull(union.getCDF(new Long[] {1L}));
+    Assert.assertNull(union.getPMF(new Long[] {1L}));
+    for (long i = 0; i < 1000; i++) { union.update(i); }
+    final ItemsSketch<Long> result = union.getResult();
+    final Long[] splits = {100L, 500L};
+    Assert.assertEquals(union.getRank(500L), result.getRank(500L));
+    Assert.assertEquals(union.getRanks(splits), result.getRanks(splits));
+    Assert.assertEquals(union.getCDF(splits), result.getCDF(splits));
+    Assert.assertEquals(union.getPMF(splits), result.getPMF(splits));
+  }
+
+  @Test
+  public void smallSketchesAreBatched() {
+    final int k = 32;
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(k, Comparator.naturalOrder());
+    final int batchSize = (2 * k) << ItemsUnion.INGEST_BATCH_LEVEL;
+    final int numSketches = 1000;
+    long value = 0;
+    for (int s = 0; s < numSketches; s++) {
+      final ItemsSketch<Long> sketch = ItemsSketch.newInstance(k, Comparator.naturalOrder());
+      for (int i = 0; i < 5; i++) { sketch.update(value++ * 7919 % 5000); }
+      union.update(sketch);
+      if (s == 0) { Assert.assertEquals(union.gadget_.getN(), 5); }
+    }
+    // the first sketch became the gadget, all later items went through the ingestion buffer
+    final long batched = ((numSketches - 1) * 5L / batchSize) * batchSize;
+    Assert.assertEquals(union.gadget_.getN(), 5 + batched);
+    Assert.assertEquals(union.gadget_.getBitPattern() >>> ItemsUnion.INGEST_BATCH_LEVEL,
+        batched / batchSize);
+    Assert.assertFalse(union.isEmpty());
+
+    final ItemsSketch<Long> result = union.getResult();
+    Assert.assertEquals(result.getN(), numSketches * 5);
+    Assert.assertEquals(result.getMinValue(), Long.valueOf(0));
+    Assert.assertEquals(result.getMaxValue(), Long.valueOf(4999));
+    final double eps = Util.EpsilonFromK.getAdjustedEpsilon(k);
+    for (long v = 500; v < 5000; v += 500) {
+      Assert.assertEquals(result.getRank(v), v / 5000.0, eps);
+    }
+  }
+
+  @Test
+  public void batchedIngestionIntoKeyedGadget() {
+    final ItemsSketch<Long> gadget = ItemsSketch.<Long>builder().setK(16)
+        .buildLongKeyed(Long::longValue);
+    gadget.update(-1L);
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(gadget);
+    for (long s = 0; s < 200; s++) {
+      final ItemsSketch<Long> sketch = ItemsSketch.newInstance(16, Comparator.naturalOrder());
+      for (long i = 0; i < 10; i++) { sketch.update((s * 10) + i); }
+      union.update(sketch);
+    }
+    final ItemsSketch<Long> result = union.getResultAndReset();
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertEquals(result.getN(), 2001);
+    Assert.assertEquals(result.getMinValue(), Long.valueOf(-1));
+    Assert.assertEquals(result.getMaxValue(), Long.valueOf(1999));
+    Assert.assertEquals(result.getRank(1000L), 0.5, Util.EpsilonFromK.getAdjustedEpsilon(16));
+  }
+
+  @Test
+  public void unionAndCopyDoNotChangeSeededInput() {
+    final ItemsSketchBuilder<Long> bldr = ItemsSketch.<Long>builder().setK(16).setSeed(11);
+    final ItemsSketch<Long> input = bldr.build(Comparator.naturalOrder());
+    final ItemsSketch<Long> twin = bldr.build(Comparator.naturalOrder());
+    for (long i = 0; i < 10; i++) { input.update(i); twin.update(i); }
+
+    ItemsUnion.<Long>newInstance(16, Comparator.naturalOrder()).update(input); //exact, copied
+    ItemsSketch.copy(input);
+    final ItemsUnion<Long> union = ItemsUnion.newInstance(16, Comparator.naturalOrder());
+    union.update(ItemsSketch.<Long>builder().setK(16).build(Comparator.naturalOrder())); //empty
+    union.update(input);
+    union.getResult();
+
+    for (long i = 10; i < 1000; i++) { input.update(i); twin.update(i); }
+    Assert.assertEquals(input.getCombinedBuffer(), twin.getCombinedBuffer());
+  }
+
   @Test
   public void printlnTest() {
     println("PRINTING: " + this.getClass().getName());
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import java.util.Comparator;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+import com.yahoo.memory.WritableMemory;
+import com.yahoo.sketches.ArrayOfLongsSerDe;
+import com.yahoo.sketches.SketchesArgumentException;
+import com.yahoo.sketches.SketchesStateException;
+
+public class LongsSketchTest {
+  private static final long SEED = 32749; // makes the sketches deterministic for testing
+
+  @Test
+  public void empty() {
+    LongsSketch sketch = LongsSketch.newInstance(128, SEED);
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertFalse(sketch.isDirect());
+    Assert.assertEquals(sketch.getN(), 0);
+    Assert.assertEquals(sketch.getRetainedItems(), 0);
+    Assert.assertEquals(sketch.getMinValue(), Long.MAX_VALUE);
+    Assert.assertEquals(sketch.getMaxValue(), Long.MIN_VALUE);
+    Assert.assertNull(sketch.getQuantiles(2));
+    Assert.assertNull(sketch.getPMF(new long[0]));
+    Assert.assertNull(sketch.getCDF(new long[0]));
+    Assert.assertTrue(Double.isNaN(sketch.getRank(1)));
+    Assert.assertEquals(sketch.toByteArray().length, 8);
+    Assert.assertTrue(LongsSketch.heapify(Memory.wrap(sketch.toByteArray())).isEmpty());
+  }
+
+  @Test(expectedExceptions = SketchesStateException.class)
+  public void emptyQuantile() {
+    LongsSketch.newInstance(PreambleUtil.DEFAULT_K, SEED).getQuantile(0.5);
+  }
+
+  @Test
+  public void oneItem() {
+    LongsSketch sketch = LongsSketch.newInstance(128, SEED);
+    sketch.update(Long.MIN_VALUE);
+    Assert.assertEquals(sketch.getN(), 1);
+    Assert.assertEquals(sketch.getMinValue(), Long.MIN_VALUE);
+    Assert.assertEquals(sketch.getMaxValue(), Long.MIN_VALUE);
+    Assert.assertEquals(sketch.getQuantile(0.5), Long.MIN_VALUE);
+    Assert.assertEquals(sketch.getRank(Long.MIN_VALUE), 0.0);
+    Assert.assertEquals(sketch.getPMF(new long[] {0}), new double[] {1.0, 0.0});
+
+    sketch.reset();
+    Assert.assertTrue(sketch.isEmpty());
+    Assert.assertEquals(sketch.getMinValue(), Long.MAX_VALUE);
+  }
+
+  @Test
+  public void estimation() {
+    LongsSketch sketch = LongsSketch.newInstance(128, SEED);
+    for (long i = 1; i <= 1000; i++) {
+      sketch.update(i);
+    }
+    Assert.assertTrue(sketch.isEstimationMode());
+    Assert.assertEquals(sketch.getN(), 1000);
+    Assert.assertTrue(sketch.getRetainedItems() < 1000);
+    Assert.assertEquals(sketch.getMinValue(), 1);
+    Assert.assertEquals(sketch.getMaxValue(), 1000);
+    // based on ~1.7% normalized rank error for this particular case
+    Assert.assertEquals(sketch.getQuantile(0.5), 500, 17);
+    Assert.assertEquals(sketch.getQuantile(0.0), 1);
+    Assert.assertEquals(sketch.getQuantile(1.0), 1000);
+
+    long[] quantiles = sketch.getQuantiles(new double[] {0.0, 0.5, 1.0});
+    Assert.assertEquals(quantiles[0], 1);
+    Assert.assertEquals(quantiles[1], 500, 17);
+    Assert.assertEquals(quantiles[2], 1000);
+    Assert.assertEquals(sketch.getQuantiles(3), quantiles);
+    Assert.assertEquals(sketch.getRank(500), 0.5, 0.017);
+
+    final long[] splitPoints = new long[60];
+    for (int i = 0; i < splitPoints.length; i++) {
+      splitPoints[i] = (i + 1) * 16;
+    }
+    final double[] cdf = sketch.getCDF(splitPoints);
+    for (int i = 0; i < splitPoints.length; i++) {
+      Assert.assertEquals(cdf[i], splitPoints[i] / 1000.0, 0.017);
+    }
+  }
+
+  @Test
+  public void serializeDeserialize() {
+    LongsSketch sketch1 = LongsSketch.newInstance(PreambleUtil.DEFAULT_K, SEED);
+    for (long i = 0; i < 1000; i++) {
+      sketch1.update(System.nanoTime() + i);
+    }
+    byte[] bytes = sketch1.toByteArray();
+    Assert.assertEquals(bytes.length, sketch1.getStorageBytes());
+    LongsSketch sketch2 = LongsSketch.heapify(Memory.wrap(bytes));
+    Assert.assertEquals(sketch2.getN(), sketch1.getN());
+    Assert.assertEquals(sketch2.getMinValue(), sketch1.getMinValue());
+    Assert.assertEquals(sketch2.getMaxValue(), sketch1.getMaxValue());
+    Assert.assertEquals(sketch2.getRetainedItems(), sketch1.getRetainedItems());
+    for (double f = 0.1; f < 0.95; f += 0.1) {
+      Assert.assertEquals(sketch2.getQuantile(f), sketch1.getQuantile(f));
+    }
+
+    WritableMemory mem = WritableMemory.allocate(sketch1.getStorageBytes());
+    sketch1.putMemory(mem);
+    Assert.assertEquals(LongsSketch.heapify(mem).getQuantile(0.5), sketch1.getQuantile(0.5));
+  }
+
+  @Test
+  public void itemsCompatibility() {
+    final ItemsSketch<Long> itemsSketch = ItemsSketchTest.newSketch(PreambleUtil.DEFAULT_K, Comparator.naturalOrder());
+    final LongsSketch sketch = LongsSketch.newInstance(PreambleUtil.DEFAULT_K, SEED);
+    for (long i = 0; i < 1000; i++) {
+      itemsSketch.update(i);
+      sketch.update(i);
+    }
+    final byte[] itemsBytes = itemsSketch.toByteArray(true, new ArrayOfLongsSerDe());
+    Assert.assertEquals(LongsSketch.heapify(Memory.wrap(itemsBytes)).toByteArray(), itemsBytes);
+
+    final ItemsSketch<Long> itemsSketch2 =
+        ItemsSketch.heapify(Memory.wrap(sketch.toByteArray()), Comparator.naturalOrder(),
+            new ArrayOfLongsSerDe());
+    Assert.assertEquals(itemsSketch2.getN(), 1000);
+    Assert.assertEquals(itemsSketch2.getMaxValue(), Long.valueOf(999));
+    Assert.assertEquals(itemsSketch2.getQuantile(0.5), Long.valueOf(sketch.getQuantile(0.5)));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void heapifyDoublesImageWithNegatives() {
+    // negative doubles sort in reverse as longs, so the levels of the image are not sorted
+    final DoublesSketch doubles = DoublesSketch.newInstance(16);
+    for (int i = 0; i < 1000; i++) { doubles.update(i - 500.5); }
+    LongsSketch.heapify(Memory.wrap(doubles.toByteArray()));
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void heapifyItemOutsideMinMax() {
+    final LongsSketch sketch = LongsSketch.newInstance(16, SEED);
+    for (long i = 0; i < 10; i++) { sketch.update(i); }
+    final WritableMemory mem = WritableMemory.wrap(sketch.toByteArray());
+    PreambleUtil.insertMaxLong(mem, 5);
+    LongsSketch.heapify(mem);
+  }
+
+  @Test(expectedExceptions = SketchesArgumentException.class)
+  public void heapifyNotCompact() {
+    LongsSketch sketch = LongsSketch.newInstance(16, SEED);
+    sketch.update(1);
+    WritableMemory mem = WritableMemory.wrap(sketch.toByteArray());
+    PreambleUtil.insertFlags(mem, 0);
+    LongsSketch.heapify(mem);
+  }
+
+  @Test
+  public void downSample() {
+    LongsSketch sketch1 = LongsSketch.newInstance(256, SEED);
+    for (long i = 0; i < 1000; i++) {
+      sketch1.update(i);
+    }
+    LongsSketch sketch2 = sketch1.downSample(128);
+    Assert.assertEquals(sketch2.getK(), 128);
+    Assert.assertEquals(sketch2.getN(), 1000);
+    Assert.assertEquals(sketch2.getMinValue(), 0);
+    Assert.assertEquals(sketch2.getMaxValue(), 999);
+    Assert.assertEquals(sketch2.getQuantile(0.5), 500, 17);
+    println(sketch2.toString(true, true));
+  }
+
+  @Test
+  public void quantilesIntoOutArray() {
+    final LongsSketch sketch = LongsSketch.newInstance(32, SEED);
+    final double[] fractions = new double[21];
+    for (int i = 0; i <= 20; i++) { fractions[i] = i / 20.0; }
+    final long[] out = new long[21];
+    for (int i = 0; i < 10_000; i++) { sketch.update(i); }
+    sketch.getQuantiles(fractions, out);
+    for (int i = 0; i <= 20; i++) {
+      Assert.assertEquals(out[i], sketch.getQuantile(fractions[i]));
+    }
+    Assert.assertEquals(sketch.getQuantiles(fractions), out);
+  }
+
+  @Test
+  public void printlnTest() {
+    println("PRINTING: " + this.getClass().getName());
+  }
+
+  /**
+   * @param s value to print
+   */
+  static void println(String s) {
+    //System.out.println(s); //disable here
+  }
+
+}
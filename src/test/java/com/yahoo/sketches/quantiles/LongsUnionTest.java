@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018, Yahoo! Inc.
+ * Licensed under the terms of the Apache License 2.0. See LICENSE file at the project root for terms.
+ */
+
+package com.yahoo.sketches.quantiles;
+
+import static com.yahoo.sketches.quantiles.PreambleUtil.DEFAULT_K;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.yahoo.memory.Memory;
+
+public class LongsUnionTest {
+
+  @Test
+  public void nullAndEmpty() {
+    LongsUnion union = LongsUnion.newInstance();
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertEquals(union.getMaxK(), DEFAULT_K);
+    Assert.assertEquals(union.getEffectiveK(), DEFAULT_K);
+    Assert.assertTrue(union.toString().length() > 0);
+    Assert.assertTrue(union.getResult().isEmpty());
+    Assert.assertNull(union.getResultAndReset());
+
+    union.update((LongsSketch) null);
+    union.update(LongsSketch.newInstance());
+    Assert.assertTrue(union.isEmpty());
+    Assert.assertEquals(union.toByteArray().length, 8);
+  }
+
+  @Test
+  public void differentK() {
+    final LongsSketch sketch1 = LongsSketch.newInstance(256);
+    final LongsSketch sketch2 = LongsSketch.newInstance(64);
+    for (long i = 0; i < 1000; i++) {
+      sketch1.update(i);
+      sketch2.update(i + 1000);
+    }
+    final LongsUnion union = LongsUnion.newInstance(256);
+    union.update(sketch2);
+    union.update(sketch1);
+    union.update(-1L);
+    final LongsSketch result = union.getResult();
+    Assert.assertEquals(result.getK(), 64);
+    Assert.assertEquals(result.getN(), 2001);
+    Assert.assertEquals(result.getMinValue(), -1);
+    Assert.assertEquals(result.getMaxValue(), 1999);
+    Assert.assertEquals(result.getQuantile(0.5), 1000, 2000 * 0.04);
+  }
+
+  @Test
+  public void memoryUpdateAndHeapify() {
+    final LongsSketch sketch = LongsSketch.newInstance(128);
+    for (long i = 0; i < 1000; i++) {
+      sketch.update(i);
+    }
+    final LongsUnion union = LongsUnion.newInstance(sketch);
+    union.update(Memory.wrap(sketch.toByteArray()));
+    Assert.assertEquals(union.getResult().getN(), 2000);
+    Assert.assertEquals(sketch.getN(), 1000);
+
+    final LongsUnion union2 = LongsUnion.heapify(Memory.wrap(union.toByteArray()));
+    Assert.assertEquals(union2.getResult().getN(), 2000);
+    Assert.assertEquals(union2.getResult().getMaxValue(), 999);
+  }
+
+}
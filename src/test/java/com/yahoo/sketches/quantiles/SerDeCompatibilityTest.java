@@ -55,4 +55,52 @@ public class SerDeCompatibilityTest {
     Assert.assertEquals(sketch2.getQuantile(0.5), 500.0, 17);
   }
   
+  @Test
+  public void itemsToDoublesSketch() {
+    final ItemsSketch<Double> sketch1 = ItemsSketch.newInstance(Comparator.naturalOrder());
+    for (int i = 1; i <= 500; i++) { sketch1.update((double) i); }
+
+    final byte[] bytes = sketch1.toByteArray(true, serDe);
+    final DoublesSketch sketch2 = DoublesSketch.heapify(Memory.wrap(bytes));
+
+    for (int i = 501; i <= 1000; i++) { sketch2.update(i); }
+    Assert.assertEquals(sketch2.getN(), 1000);
+    Assert.assertTrue(sketch2.getRetainedItems() < 1000);
+    Assert.assertEquals(sketch2.getMinValue(), 1.0);
+    Assert.assertEquals(sketch2.getMaxValue(), 1000.0);
+    // based on ~1.7% normalized rank error for this particular case
+    Assert.assertEquals(sketch2.getQuantile(0.5), 500.0, 17);
+  }
+
+  @Test
+  public void doublesSketchToItems() {
+    final DoublesSketch sketch1 = DoublesSketch.newInstance();
+    for (int i = 1; i <= 500; i++) { sketch1.update(i); }
+
+    final byte[] bytes = sketch1.toByteArray(); // compact
+    final ItemsSketch<Double> sketch2 = ItemsSketch.heapify(Memory.wrap(bytes), Comparator.naturalOrder(), serDe);
+
+    for (int i = 501; i <= 1000; i++) { sketch2.update((double) i); }
+    Assert.assertEquals(sketch2.getN(), 1000);
+    Assert.assertTrue(sketch2.getRetainedItems() < 1000);
+    Assert.assertEquals(sketch2.getMinValue(), 1.0);
+    Assert.assertEquals(sketch2.getMaxValue(), 1000.0);
+    // based on ~1.7% normalized rank error for this particular case
+    Assert.assertEquals(sketch2.getQuantile(0.5), 500.0, 17);
+  }
+
+  @Test
+  public void doublesAndItemsImagesHaveSameData() {
+    final ItemsSketch<Double> itemsSketch = ItemsSketch.newInstance(Comparator.naturalOrder());
+    for (int i = 1; i <= 1000; i++) { itemsSketch.update((double) i); }
+    final byte[] itemsBytes = itemsSketch.toByteArray(true, serDe);
+    final byte[] doublesBytes = DoublesSketch.heapify(Memory.wrap(itemsBytes)).toByteArray();
+    Assert.assertEquals(doublesBytes.length, itemsBytes.length);
+    // the flags byte differs, the rest of the image must be identical
+    for (int i = 0; i < itemsBytes.length; i++) {
+      if (i == PreambleUtil.FLAGS_BYTE) { continue; }
+      Assert.assertEquals(doublesBytes[i], itemsBytes[i]);
+    }
+  }
+
 }